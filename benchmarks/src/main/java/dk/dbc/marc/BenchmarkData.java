@@ -0,0 +1,183 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.DanMarc2LineFormatReader;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.JsonLineReader;
+import dk.dbc.marc.reader.LineFormatReader;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.reader.MarcXchangeV1Reader;
+import dk.dbc.marc.reader.MarcXmlReader;
+import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.marc.writer.JsonLineWriter;
+import dk.dbc.marc.writer.LineFormatWriter;
+import dk.dbc.marc.writer.MarcWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sample records and inputs shared by the benchmarks
+ */
+final class BenchmarkData {
+    /* Number of records in generated inputs */
+    static final int RECORDS = 1000;
+
+    private static final String DANMARC2_RESOURCE = "marc_collection.xml";
+    private static final String MARC21_RESOURCE = "marcxml_collection.xml";
+
+    private BenchmarkData() {}
+
+    static List<MarcRecord> danMarc2Records() {
+        try {
+            return readAll(new MarcXchangeV1Reader(new ByteArrayInputStream(resource(DANMARC2_RESOURCE)),
+                    StandardCharsets.UTF_8));
+        } catch (MarcReaderException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static List<MarcRecord> marc21Records() {
+        try {
+            return readAll(new MarcXmlReader(new ByteArrayInputStream(resource(MARC21_RESOURCE)),
+                    StandardCharsets.UTF_8));
+        } catch (MarcReaderException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param records sample records
+     * @return list of {@link #RECORDS} records repeating the sample records
+     */
+    static List<MarcRecord> cycle(List<MarcRecord> records) {
+        final List<MarcRecord> cycled = new ArrayList<>(RECORDS);
+        for (int i = 0; i < RECORDS; i++) {
+            cycled.add(records.get(i % records.size()));
+        }
+        return cycled;
+    }
+
+    /**
+     * @param format input format
+     * @return input of {@link #RECORDS} records in the given format
+     */
+    static byte[] input(MarcFormatDeducer.FORMAT format) {
+        try {
+            switch (format) {
+                case ISO2709:
+                    return writeAll(new Iso2709MarcRecordWriter(), cycle(danMarc2Records()), StandardCharsets.UTF_8);
+                case LINE:
+                    return writeAll(new LineFormatWriter()
+                            .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
+                            .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                            .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, false),
+                            cycle(marc21Records()), StandardCharsets.UTF_8);
+                case DANMARC2_LINE:
+                    return writeAll(new DanMarc2LineFormatWriter()
+                            .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
+                            .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                            .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, false)
+                            .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, true),
+                            cycle(danMarc2Records()), StandardCharsets.UTF_8);
+                case JSONL:
+                    return writeAll(new JsonLineWriter(), cycle(danMarc2Records()), StandardCharsets.UTF_8);
+                case MARCXCHANGE:
+                    return new MarcXchangeV1Writer().writeCollection(cycle(danMarc2Records()), StandardCharsets.UTF_8);
+                case MARCXML:
+                    return repeatRecords(new String(resource(MARC21_RESOURCE), StandardCharsets.UTF_8),
+                            "<marc:record>", "</marc:record>");
+                default:
+                    throw new IllegalArgumentException("Unhandled format: " + format);
+            }
+        } catch (MarcWriterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param format input format
+     * @param is input stream
+     * @param encoding input encoding
+     * @return reader for the given format
+     */
+    static MarcReader reader(MarcFormatDeducer.FORMAT format, InputStream is, Charset encoding)
+            throws MarcReaderException {
+        switch (format) {
+            case JSONL:
+                return new JsonLineReader(is, encoding);
+            case LINE:
+                return new LineFormatReader(is, encoding);
+            case DANMARC2_LINE:
+                return new DanMarc2LineFormatReader(is, encoding);
+            case MARCXCHANGE:
+            case MARCXML:
+                return new StreamingMarcXmlReader(is, encoding);
+            default:
+                return new Iso2709Reader(is, encoding);
+        }
+    }
+
+    static byte[] writeAll(MarcWriter marcWriter, List<MarcRecord> records, Charset encoding)
+            throws MarcWriterException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (MarcRecord record : records) {
+            out.writeBytes(marcWriter.write(record, encoding));
+        }
+        return out.toByteArray();
+    }
+
+    private static List<MarcRecord> readAll(MarcReader reader) throws MarcReaderException {
+        final List<MarcRecord> records = new ArrayList<>();
+        MarcRecord record = reader.read();
+        while (record != null) {
+            records.add(record);
+            record = reader.read();
+        }
+        return records;
+    }
+
+    /* Repeats the records of an XML collection until it holds at least RECORDS records */
+    private static byte[] repeatRecords(String collection, String recordStart, String recordEnd) {
+        final int start = collection.indexOf(recordStart);
+        final int end = collection.lastIndexOf(recordEnd) + recordEnd.length();
+        final String records = collection.substring(start, end);
+        int count = 0;
+        for (int i = records.indexOf(recordStart); i >= 0; i = records.indexOf(recordStart, i + 1)) {
+            count++;
+        }
+        final StringBuilder repeated = new StringBuilder(collection.substring(0, start));
+        for (int i = 0; i < RECORDS; i += count) {
+            repeated.append(records);
+        }
+        repeated.append(collection.substring(end));
+        return repeated.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] resource(String name) {
+        try (InputStream is = BenchmarkData.class.getClassLoader().getResourceAsStream(name)) {
+            if (is == null) {
+                throw new IllegalStateException("Missing resource " + name);
+            }
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes and encodes one ISO2709 record per operation in the given character
+ * set, so throughput is in records/s and normalized allocation
+ * (gc.alloc.rate.norm) is in bytes/record.
+ * <p>
+ * With tables=true DANMARC2 and MARC-8 are wrapped by {@link TranscodingCharset},
+ * comparing its lookup tables to the plain charsets. The transcode benchmark
+ * converts a raw ISO2709 record to UTF-8 using {@link Iso2709Transcoder}, as done
+ * by ISO2709 to ISO2709 conversions with -o UTF-8.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CharsetBenchmark {
+    @Param({"UTF-8", "DANMARC2", "MARC-8"})
+    public String encoding;
+
+    @Param({"false", "true"})
+    public boolean tables;
+
+    private Charset charset;
+    private List<MarcRecord> records;
+    private List<byte[]> recordBytes;
+    private Iso2709Transcoder transcoder;
+    private byte[] input;
+    private MarcReader reader;
+    private Iso2709MarcRecordWriter marcWriter;
+    private int next;
+
+    @Setup
+    public void setup() throws MarcReaderException, MarcWriterException {
+        charset = Charset.forName(encoding);
+        if (tables) {
+            charset = TranscodingCharset.of(charset);
+        }
+        records = BenchmarkData.marc21Records();
+        marcWriter = new Iso2709MarcRecordWriter();
+        recordBytes = new ArrayList<>(records.size());
+        for (MarcRecord record : records) {
+            recordBytes.add(marcWriter.write(record, charset));
+        }
+        transcoder = new Iso2709Transcoder(charset, StandardCharsets.UTF_8);
+        input = BenchmarkData.writeAll(marcWriter, BenchmarkData.cycle(records), charset);
+        reader = new Iso2709Reader(new ByteArrayInputStream(input), charset);
+    }
+
+    @Benchmark
+    public MarcRecord decode() throws MarcReaderException {
+        MarcRecord record = reader.read();
+        if (record == null) {
+            reader = new Iso2709Reader(new ByteArrayInputStream(input), charset);
+            record = reader.read();
+        }
+        return record;
+    }
+
+    @Benchmark
+    public byte[] encode() throws MarcWriterException {
+        final MarcRecord record = records.get(next);
+        next = (next + 1) % records.size();
+        return marcWriter.write(record, charset);
+    }
+
+    @Benchmark
+    public byte[] transcode() {
+        final byte[] bytes = recordBytes.get(next);
+        next = (next + 1) % recordBytes.size();
+        return transcoder.transcode(bytes, 0);
+    }
+}
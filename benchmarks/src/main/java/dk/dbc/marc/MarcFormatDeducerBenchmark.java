@@ -0,0 +1,57 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduces the format of a 1000 byte prolog per operation, as done by mconv
+ * once per invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarcFormatDeducerBenchmark {
+    private static final int PROLOG_SIZE = 1000;
+
+    @Param({"ISO2709", "LINE", "DANMARC2_LINE", "JSONL", "MARCXCHANGE", "MARCXML"})
+    public MarcFormatDeducer.FORMAT format;
+
+    private byte[] prolog;
+    private MarcFormatDeducer deducer;
+
+    @Setup
+    public void setup() {
+        final byte[] input = BenchmarkData.input(format);
+        prolog = new byte[Math.min(PROLOG_SIZE, input.length)];
+        System.arraycopy(input, 0, prolog, 0, prolog.length);
+        deducer = new MarcFormatDeducer(PROLOG_SIZE);
+    }
+
+    @Benchmark
+    public MarcFormatDeducer.FORMAT deduce() {
+        return deducer.deduce(new PushbackInputStream(new ByteArrayInputStream(prolog), PROLOG_SIZE),
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads one record per operation, so throughput is in records/s and
+ * normalized allocation (gc.alloc.rate.norm) is in bytes/record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarcReaderBenchmark {
+    @Param({"ISO2709", "LINE", "DANMARC2_LINE", "JSONL", "MARCXCHANGE", "MARCXML"})
+    public MarcFormatDeducer.FORMAT format;
+
+    private byte[] input;
+    private MarcReader reader;
+
+    @Setup
+    public void setup() throws MarcReaderException {
+        input = BenchmarkData.input(format);
+        reader = newReader();
+    }
+
+    @Benchmark
+    public MarcRecord read() throws MarcReaderException {
+        MarcRecord record = reader.read();
+        if (record == null) {
+            // Start over, the cost is amortized over all records of the input
+            reader = newReader();
+            record = reader.read();
+        }
+        return record;
+    }
+
+    private MarcReader newReader() throws MarcReaderException {
+        return BenchmarkData.reader(format, new ByteArrayInputStream(input), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.marc.writer.JsonLineWriter;
+import dk.dbc.marc.writer.LineFormatWriter;
+import dk.dbc.marc.writer.MarcWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one record per operation, so throughput is in records/s and
+ * normalized allocation (gc.alloc.rate.norm) is in bytes/record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarcWriterBenchmark {
+    @Param({"LINE", "LINE_CONCAT", "MARCXCHANGE", "ISO", "JSONL"})
+    public RecordFormat format;
+
+    @Param({"DANMARC2", "MARC21"})
+    public String records;
+
+    private List<MarcRecord> input;
+    private MarcWriter marcWriter;
+    private int next;
+
+    @Setup
+    public void setup() {
+        input = "DANMARC2".equals(records) ? BenchmarkData.danMarc2Records() : BenchmarkData.marc21Records();
+        marcWriter = newWriter();
+    }
+
+    @Benchmark
+    public byte[] write() throws MarcWriterException {
+        final MarcRecord record = input.get(next);
+        next = (next + 1) % input.size();
+        return marcWriter.write(record, StandardCharsets.UTF_8);
+    }
+
+    /* Writers configured as in the STRICT mode of mconv */
+    private MarcWriter newWriter() {
+        final boolean danMarc2 = "DANMARC2".equals(records);
+        switch (format) {
+            case LINE:
+            case LINE_CONCAT:
+                if (danMarc2) {
+                    return (format == RecordFormat.LINE
+                            ? new DanMarc2LineFormatWriter() : new DanMarc2LineFormatConcatWriter())
+                            .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
+                            .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                            .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, false)
+                            .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, true);
+                }
+                return (format == RecordFormat.LINE
+                        ? new LineFormatWriter() : new LineFormatConcatWriter())
+                        .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
+                        .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                        .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, false);
+            case MARCXCHANGE:
+                return new MarcXchangeV1Writer();
+            case ISO:
+                return new Iso2709MarcRecordWriter();
+            case JSONL:
+                return new JsonLineWriter();
+            default:
+                throw new IllegalArgumentException("Unhandled format: " + format);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures mconv as a short-lived process, reporting the time to the first
+ * output byte and the total time of converting tiny, medium and large ISO2709
+ * inputs, eg. comparing the JVM jar to the native binary
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar dk.dbc.marc.StartupBenchmark \
+ *     "java -jar cli/target/mconv-cli-2.0.jar" cli-native/target/mconv
+ * </pre>
+ * <p>
+ * Every command is given as a single argument, to which the output format
+ * option and the input file are appended. The inputs are generated from the
+ * same records every time, and every command converts every input once before
+ * the measured runs, so that file system caches are warm. Options are
+ * </p>
+ * <ul>
+ *     <li>{@code --runs=N} measured runs of every command and input, defaults to 10</li>
+ *     <li>{@code --format=FORMAT} mconv output format, defaults to LINE</li>
+ *     <li>{@code --json} report results as JSON instead of a table</li>
+ *     <li>{@code --profiles=DIR} run a single instrumented native image, dumping the
+ *     profile of every run to its own file named {@code <input>-<run>.iprof} in the
+ *     given directory, eg. {@code tiny-1.iprof}, without the unmeasured runs</li>
+ * </ul>
+ * <p>
+ * The same workload drives the profile-guided optimization of the native image,
+ * see the pgo profile of the cli-native module. An instrumented image otherwise
+ * dumps its profile to {@code default.iprof}, so every run would overwrite the
+ * profile of the run before it.
+ * </p>
+ */
+public final class StartupBenchmark {
+    private static final int DEFAULT_RUNS = 10;
+
+    enum Input {
+        TINY(1),
+        MEDIUM(BenchmarkData.RECORDS),
+        LARGE(100 * BenchmarkData.RECORDS);
+
+        private final int records;
+
+        Input(int records) {
+            this.records = records;
+        }
+    }
+
+    private StartupBenchmark() {}
+
+    public static void main(String[] args) throws IOException, InterruptedException, MarcWriterException {
+        int runs = DEFAULT_RUNS;
+        String format = "LINE";
+        boolean json = false;
+        Path profiles = null;
+        final List<String> commands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(arg.substring("--runs=".length()));
+            } else if (arg.startsWith("--format=")) {
+                format = arg.substring("--format=".length());
+            } else if (arg.equals("--json")) {
+                json = true;
+            } else if (arg.startsWith("--profiles=")) {
+                profiles = Path.of(arg.substring("--profiles=".length()));
+            } else {
+                commands.add(arg);
+            }
+        }
+        if (commands.isEmpty() || runs < 1 || profiles != null && commands.size() > 1) {
+            System.err.println("Usage: StartupBenchmark [--runs=N] [--format=FORMAT] [--json] command...\n"
+                    + "       StartupBenchmark [--runs=N] [--format=FORMAT] [--json] --profiles=DIR command");
+            System.exit(2);
+        }
+        if (profiles != null) {
+            Files.createDirectories(profiles);
+        }
+
+        final Path directory = Files.createTempDirectory("mconv-startup");
+        try {
+            final List<Result> results = new ArrayList<>();
+            for (String command : commands) {
+                for (Input input : Input.values()) {
+                    final Path inputFile = directory.resolve(input.name().toLowerCase(Locale.ROOT) + ".iso");
+                    if (!Files.exists(inputFile)) {
+                        writeInput(inputFile, input.records);
+                    }
+                    final List<String> commandLine = new ArrayList<>(Arrays.asList(command.trim().split("\\s+")));
+                    commandLine.add("--format=" + format);
+                    commandLine.add(inputFile.toString());
+
+                    if (profiles == null) {
+                        run(commandLine);
+                    }
+                    final Result result = new Result(command, input, runs);
+                    for (int i = 0; i < runs; i++) {
+                        final long[] times = run(profiles == null ? commandLine
+                                : profiled(commandLine, profiles.resolve(inputFile.getFileName().toString()
+                                        .replace(".iso", "-" + (i + 1) + ".iprof"))));
+                        result.firstByteNanos[i] = times[0];
+                        result.totalNanos[i] = times[1];
+                    }
+                    results.add(result);
+                }
+            }
+            if (json) {
+                printJson(results);
+            } else {
+                printTable(results);
+            }
+        } finally {
+            for (Input input : Input.values()) {
+                Files.deleteIfExists(directory.resolve(input.name().toLowerCase(Locale.ROOT) + ".iso"));
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /* Adds the runtime option of an instrumented native image naming its profile file */
+    private static List<String> profiled(List<String> commandLine, Path profile) {
+        final List<String> profiled = new ArrayList<>(commandLine);
+        profiled.add(1, "-XX:ProfilesDumpFile=" + profile.toAbsolutePath());
+        return profiled;
+    }
+
+    /* Returns nanoseconds until the first output byte and until the process exits */
+    private static long[] run(List<String> commandLine) throws IOException, InterruptedException {
+        final ProcessBuilder processBuilder = new ProcessBuilder(commandLine)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        final byte[] buffer = new byte[65536];
+        final long start = System.nanoTime();
+        final Process process = processBuilder.start();
+        long firstByte = -1;
+        try (InputStream out = process.getInputStream()) {
+            if (out.read() >= 0) {
+                firstByte = System.nanoTime() - start;
+                while (out.read(buffer) >= 0) {
+                    // Output is discarded
+                }
+            }
+        }
+        final int exitCode = process.waitFor();
+        final long total = System.nanoTime() - start;
+        if (exitCode != 0) {
+            throw new IllegalStateException("Command exited with " + exitCode + ": " + String.join(" ", commandLine));
+        }
+        return new long[]{firstByte < 0 ? total : firstByte, total};
+    }
+
+    private static void writeInput(Path file, int count) throws IOException, MarcWriterException {
+        final List<MarcRecord> records = BenchmarkData.danMarc2Records();
+        final Iso2709MarcRecordWriter marcWriter = new Iso2709MarcRecordWriter();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            for (int i = 0; i < count; i++) {
+                out.write(marcWriter.write(records.get(i % records.size()), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void printTable(List<Result> results) {
+        System.out.printf("%-50s %-6s %8s %14s %14s %14s %14s%n", "Command", "Input", "Records",
+                "1st byte ms", "(min)", "Total ms", "(min)");
+        for (Result result : results) {
+            System.out.printf(Locale.ROOT, "%-50s %-6s %8d %14.1f %14.1f %14.1f %14.1f%n",
+                    abbreviate(result.command, 50), result.input, result.input.records,
+                    millis(median(result.firstByteNanos)), millis(min(result.firstByteNanos)),
+                    millis(median(result.totalNanos)), millis(min(result.totalNanos)));
+        }
+    }
+
+    private static void printJson(List<Result> results) {
+        final StringBuilder json = new StringBuilder("[");
+        for (Result result : results) {
+            if (json.length() > 1) {
+                json.append(",\n ");
+            }
+            json.append("{\"command\":\"")
+                    .append(result.command.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\",\"input\":\"").append(result.input)
+                    .append("\",\"records\":").append(result.input.records)
+                    .append(",\"runs\":").append(result.totalNanos.length)
+                    .append(String.format(Locale.ROOT,
+                            ",\"firstByteMedianMs\":%.3f,\"firstByteMinMs\":%.3f,\"totalMedianMs\":%.3f,\"totalMinMs\":%.3f}",
+                            millis(median(result.firstByteNanos)), millis(min(result.firstByteNanos)),
+                            millis(median(result.totalNanos)), millis(min(result.totalNanos))));
+        }
+        System.out.println(json.append("]"));
+    }
+
+    private static String abbreviate(String s, int length) {
+        return s.length() <= length ? s : "..." + s.substring(s.length() - length + 3);
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    private static double median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    private static long min(long[] values) {
+        return Arrays.stream(values).min().orElse(0);
+    }
+
+    private static class Result {
+        private final String command;
+        private final Input input;
+        private final long[] firstByteNanos;
+        private final long[] totalNanos;
+
+        Result(String command, Input input, int runs) {
+            this.command = command;
+            this.input = input;
+            this.firstByteNanos = new long[runs];
+            this.totalNanos = new long[runs];
+        }
+    }
+}
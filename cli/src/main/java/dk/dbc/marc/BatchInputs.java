@@ -0,0 +1,105 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Expands input arguments into the list of files to convert. Directories
+ * are searched recursively for regular files, and arguments which do not
+ * exist as files but contain glob characters are matched as glob patterns,
+ * which allows patterns to be passed quoted when the shell expansion
+ * would exceed the maximum length of a command line.
+ */
+final class BatchInputs {
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    private BatchInputs() {}
+
+    /**
+     * @param arguments input file arguments
+     * @return true if the arguments denote more than a single input file or stream
+     */
+    static boolean isBatch(List<File> arguments) {
+        return arguments.size() > 1
+                || arguments.stream().anyMatch(argument -> argument.isDirectory() || isGlob(argument));
+    }
+
+    /**
+     * @param arguments input files, directories and glob patterns
+     * @return input files in argument order, each directory and pattern expanded in sorted order
+     * @throws IllegalArgumentException if an argument is standard input or matches no files
+     */
+    static List<File> expand(List<File> arguments) {
+        final List<File> files = new ArrayList<>();
+        for (File argument : arguments) {
+            if ("-".equals(argument.getName())) {
+                throw new IllegalArgumentException("Standard input can not be combined with other inputs");
+            }
+            final List<File> expanded;
+            if (argument.isDirectory()) {
+                expanded = walk(argument.toPath(), Integer.MAX_VALUE, path -> true);
+            } else if (isGlob(argument)) {
+                expanded = glob(argument.getPath());
+            } else {
+                expanded = List.of(argument);
+            }
+            if (expanded.isEmpty()) {
+                throw new IllegalArgumentException("No input files found matching " + argument);
+            }
+            files.addAll(expanded);
+        }
+        return files;
+    }
+
+    private static boolean isGlob(File argument) {
+        return !argument.exists() && argument.getPath().chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0);
+    }
+
+    private static List<File> glob(String pattern) {
+        // Walk from the deepest directory not containing glob characters
+        final Path path = Paths.get(pattern);
+        Path base = path.isAbsolute() ? path.getRoot() : Paths.get("");
+        int depth = 0;
+        boolean inPattern = false;
+        for (Path element : path) {
+            if (inPattern || element.toString().chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0)) {
+                inPattern = true;
+                depth++;
+            } else {
+                base = base.resolve(element);
+            }
+        }
+        if (!Files.isDirectory(base)) {
+            return List.of();
+        }
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+        return walk(base, pattern.contains("**") ? Integer.MAX_VALUE : depth, matcher);
+    }
+
+    private static List<File> walk(Path start, int depth, PathMatcher matcher) {
+        try (Stream<Path> paths = Files.walk(start, depth)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(matcher::matches)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Position of a conversion after a fully written record, from which an
+ * interrupted conversion can be resumed.
+ * <p>
+ * A checkpoint holds the input offset after the record, the number of
+ * records read up to and including the record, the number of erroneous
+ * records among them, and the size of the output file at that point. The input file is identified by its path and size,
+ * so that a checkpoint is never applied to another input.
+ * Checkpoints are stored as properties files.
+ * </p>
+ */
+class Checkpoint {
+    private static final String INPUT = "input";
+    private static final String INPUT_SIZE = "input-size";
+    private static final String INPUT_OFFSET = "input-offset";
+    private static final String RECORD_NUMBER = "record-number";
+    private static final String ERROR_COUNT = "error-count";
+    private static final String OUTPUT_SIZE = "output-size";
+
+    private final String input;
+    private final long inputSize;
+    private final long inputOffset;
+    private final int recordNumber;
+    private final int errorCount;
+    private final long outputSize;
+
+    Checkpoint(File input, long inputOffset, int recordNumber, int errorCount, long outputSize) {
+        this(input.getAbsolutePath(), input.length(), inputOffset, recordNumber, errorCount, outputSize);
+    }
+
+    private Checkpoint(String input, long inputSize, long inputOffset, int recordNumber, int errorCount,
+                       long outputSize) {
+        this.input = input;
+        this.inputSize = inputSize;
+        this.inputOffset = inputOffset;
+        this.recordNumber = recordNumber;
+        this.errorCount = errorCount;
+        this.outputSize = outputSize;
+    }
+
+    /**
+     * Reads checkpoint from file
+     * @param path checkpoint file
+     * @return checkpoint
+     * @throws IOException on failure to read the file
+     * @throws IllegalArgumentException if the file is not a valid checkpoint
+     */
+    static Checkpoint read(Path path) throws IOException {
+        final Properties properties = new Properties();
+        try (InputStream is = Files.newInputStream(path)) {
+            properties.load(is);
+        }
+        try {
+            final Checkpoint checkpoint = new Checkpoint(
+                    properties.getProperty(INPUT),
+                    Long.parseLong(properties.getProperty(INPUT_SIZE)),
+                    Long.parseLong(properties.getProperty(INPUT_OFFSET)),
+                    Integer.parseInt(properties.getProperty(RECORD_NUMBER)),
+                    // Checkpoints written before errors were counted hold no error count
+                    Integer.parseInt(properties.getProperty(ERROR_COUNT, "0")),
+                    Long.parseLong(properties.getProperty(OUTPUT_SIZE)));
+            if (checkpoint.input == null || checkpoint.inputOffset < 0 || checkpoint.recordNumber < 0
+                    || checkpoint.errorCount < 0 || checkpoint.outputSize < 0) {
+                throw new IllegalArgumentException("Invalid checkpoint " + path);
+            }
+            return checkpoint;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid checkpoint " + path, e);
+        }
+    }
+
+    /**
+     * Writes checkpoint to file, atomically replacing any previous checkpoint
+     * once the new checkpoint is on disk, so that the file always holds a
+     * complete checkpoint
+     * @param path checkpoint file
+     * @throws IOException on failure to write the file
+     */
+    void write(Path path) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(INPUT, input);
+        properties.setProperty(INPUT_SIZE, String.valueOf(inputSize));
+        properties.setProperty(INPUT_OFFSET, String.valueOf(inputOffset));
+        properties.setProperty(RECORD_NUMBER, String.valueOf(recordNumber));
+        properties.setProperty(ERROR_COUNT, String.valueOf(errorCount));
+        properties.setProperty(OUTPUT_SIZE, String.valueOf(outputSize));
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final OutputStream os = Channels.newOutputStream(channel);
+            properties.store(os, "mconv checkpoint");
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file input file
+     * @return true if this checkpoint was written for the given file in its current state
+     */
+    boolean isFor(File file) {
+        return input.equals(file.getAbsolutePath()) && inputSize == file.length();
+    }
+
+    long getInputOffset() {
+        return inputOffset;
+    }
+
+    int getRecordNumber() {
+        return recordNumber;
+    }
+
+    int getErrorCount() {
+        return errorCount;
+    }
+
+    long getOutputSize() {
+        return outputSize;
+    }
+}
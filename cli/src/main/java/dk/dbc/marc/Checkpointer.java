@@ -0,0 +1,120 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a {@link Checkpoint} after a fully written record.
+ * <p>
+ * The numbers and input end offsets of records submitted for conversion are
+ * queued in input order, along with the number of erroneous records before
+ * them, and taken in the same order as their converted records are written,
+ * so that the input offset and error count after each written record are
+ * known. Before a checkpoint is written the output is flushed to its file and
+ * forced to disk, so that the recorded output size covers exactly the records
+ * written.
+ * </p>
+ */
+class Checkpointer {
+    private final Path path;
+    private final File input;
+    private final OutputSink out;
+    private final long intervalNanos;
+    private final Queue<SubmittedRecord> submitted = new ConcurrentLinkedQueue<>();
+    private long lastCheckpoint = System.nanoTime();
+
+    /**
+     * @param path checkpoint file
+     * @param input input file
+     * @param out output written to a file
+     * @param intervalSeconds minimum number of seconds between checkpoints
+     */
+    Checkpointer(Path path, File input, OutputSink out, long intervalSeconds) {
+        this.path = path;
+        this.input = input;
+        this.out = out;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+    }
+
+    /**
+     * Wraps output, reporting every written record
+     * @param output output of records submitted by {@link #submitted(int, long, int)}
+     * @return output checkpointing after written records
+     */
+    RecordOutput track(RecordOutput output) {
+        return bytes -> {
+            output.write(bytes);
+            final SubmittedRecord record = submitted.remove();
+            if (record.inputEnd >= 0) {
+                reached(record.recordNumber, record.inputEnd, record.errorCount);
+            }
+        };
+    }
+
+    /**
+     * Registers record submitted for conversion and output, in input order
+     * @param recordNumber number of the record
+     * @param inputEnd input offset after the record, or -1 if not known
+     * @param errorCount number of erroneous records before the record
+     */
+    void submitted(int recordNumber, long inputEnd, int errorCount) {
+        submitted.add(new SubmittedRecord(recordNumber, inputEnd, errorCount));
+    }
+
+    /**
+     * Writes a checkpoint if the interval has passed since the previous checkpoint
+     * @param recordNumber number of the last written record
+     * @param inputOffset input offset after the record
+     * @param errorCount number of erroneous records up to the record
+     * @throws IOException on failure to flush output or write the checkpoint
+     */
+    void reached(int recordNumber, long inputOffset, int errorCount) throws IOException {
+        if (System.nanoTime() - lastCheckpoint >= intervalNanos) {
+            checkpoint(recordNumber, inputOffset, errorCount);
+        }
+    }
+
+    /**
+     * Writes a checkpoint at the end of the input
+     * @param recordNumber number of the last record read
+     * @param inputOffset input offset after the record
+     * @param errorCount number of erroneous records in the input
+     * @throws IOException on failure to flush output or write the checkpoint
+     */
+    void finish(int recordNumber, long inputOffset, int errorCount) throws IOException {
+        checkpoint(recordNumber, inputOffset, errorCount);
+    }
+
+    /**
+     * Writes a checkpoint
+     * @param recordNumber number of the last written record
+     * @param inputOffset input offset after the record
+     * @param errorCount number of erroneous records up to the record
+     * @throws IOException on failure to flush output or write the checkpoint
+     */
+    void checkpoint(int recordNumber, long inputOffset, int errorCount) throws IOException {
+        new Checkpoint(input, inputOffset, recordNumber, errorCount, out.flushToFile()).write(path);
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private static class SubmittedRecord {
+        private final int recordNumber;
+        private final long inputEnd;
+        private final int errorCount;
+
+        SubmittedRecord(int recordNumber, long inputEnd, int errorCount) {
+            this.recordNumber = recordNumber;
+            this.inputEnd = inputEnd;
+            this.errorCount = errorCount;
+        }
+    }
+}
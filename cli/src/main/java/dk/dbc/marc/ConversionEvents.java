@@ -0,0 +1,53 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR events timing the stages of a conversion. The events are
+ * disabled unless a recording enables them, eg. by starting the
+ * JVM with -XX:StartFlightRecording.
+ */
+final class ConversionEvents {
+    private static final String CATEGORY = "mconv";
+
+    private ConversionEvents() {}
+
+    @Name("dk.dbc.marc.ReadRecord")
+    @Label("Read MARC Record")
+    @Description("Reading and parsing a single input record")
+    @Category(CATEGORY)
+    static class ReadRecord extends Event {
+        @Label("Record Number")
+        int recordNumber;
+    }
+
+    @Name("dk.dbc.marc.WriteRecord")
+    @Label("Write MARC Record")
+    @Description("Rendering a single record in the output format and encoding")
+    @Category(CATEGORY)
+    static class WriteRecord extends Event {
+        @Label("Size")
+        @DataAmount
+        int size;
+    }
+
+    @Name("dk.dbc.marc.Output")
+    @Label("Output")
+    @Description("Writing rendered records to the output")
+    @Category(CATEGORY)
+    static class Output extends Event {
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+}
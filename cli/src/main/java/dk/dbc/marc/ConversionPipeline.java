@@ -0,0 +1,153 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts records on a pool of worker threads while handling the
+ * results in the order in which they were submitted.
+ * <p>
+ * The submitting thread acts as the reader stage, the worker pool
+ * runs the conversions and a dedicated sequencer thread drains the
+ * results in submission order to the given result handler. The number
+ * of conversions in flight is bounded, so a slow output stage will
+ * eventually block the reader stage instead of exhausting the heap.
+ * </p>
+ * @param <T> conversion result type
+ */
+class ConversionPipeline<T> implements AutoCloseable {
+    private final Future<T> endOfInput = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<T>> inFlight;
+    private final ResultHandler<T> out;
+    private final Thread sequencer;
+    private volatile Throwable failure;
+
+    @FunctionalInterface
+    interface ResultHandler<T> {
+        void handle(T result) throws IOException, MarcReaderException, MarcWriterException;
+    }
+
+    /**
+     * @param threads number of worker threads
+     * @param capacity maximum number of conversions in flight
+     * @param out handler of conversion results
+     */
+    ConversionPipeline(int threads, int capacity, ResultHandler<T> out) {
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "mconv-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new ArrayBlockingQueue<>(capacity);
+        this.out = out;
+        this.sequencer = new Thread(this::sequence, "mconv-sequencer");
+        this.sequencer.setDaemon(true);
+        this.sequencer.start();
+    }
+
+    /**
+     * Schedules a conversion, blocking if too many conversions are already in flight
+     * @param conversion conversion yielding the result to be handled
+     * @throws MarcWriterException if an earlier conversion failed
+     */
+    void submit(Callable<T> conversion) throws MarcReaderException, MarcWriterException, IOException {
+        rethrowFailure();
+        try {
+            inFlight.put(workers.submit(conversion));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while submitting conversion", e);
+        }
+    }
+
+    /**
+     * Waits for all submitted conversions to be handled
+     * @throws MarcReaderException if reading input for a conversion failed
+     * @throws MarcWriterException if a conversion failed
+     * @throws IOException if writing to the output failed
+     */
+    void finish() throws MarcReaderException, MarcWriterException, IOException {
+        try {
+            inFlight.put(endOfInput);
+            sequencer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for conversions", e);
+        }
+        rethrowFailure();
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private void sequence() {
+        try {
+            Future<T> next = inFlight.take();
+            while (next != endOfInput) {
+                if (failure == null) {
+                    try {
+                        final T result = next.get();
+                        if (result != null) {
+                            out.handle(result);
+                        }
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    } catch (IOException | MarcReaderException | MarcWriterException | RuntimeException e) {
+                        failure = e;
+                    }
+                } else {
+                    // Keep draining so that the reader stage never blocks
+                    // on a full queue after a failure.
+                    next.cancel(true);
+                }
+                next = inFlight.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        }
+    }
+
+    private void rethrowFailure() throws MarcReaderException, MarcWriterException, IOException {
+        final Throwable cause = failure;
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof MarcReaderException) {
+            throw (MarcReaderException) cause;
+        }
+        if (cause instanceof MarcWriterException) {
+            throw (MarcWriterException) cause;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) cause).getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+}
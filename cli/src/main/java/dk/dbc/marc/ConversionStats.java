@@ -0,0 +1,194 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and stage timing statistics of a conversion.
+ * <p>
+ * Counters may be updated concurrently by worker threads. Stage times are
+ * cumulative over all threads, so with more than one thread they may add
+ * up to more than the elapsed time.
+ * </p>
+ */
+class ConversionStats {
+    enum Format {
+        TEXT,
+        JSON
+    }
+
+    /* Record sizes are counted in power of two buckets, the first covering up
+       to 2^MIN_BUCKET bytes and the last everything above 2^(MAX_BUCKET-1) bytes */
+    private static final int MIN_BUCKET = 8;
+    private static final int MAX_BUCKET = 24;
+
+    private final boolean enabled;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder outputNanos = new LongAdder();
+    private final LongAdder[] recordSizes = new LongAdder[MAX_BUCKET - MIN_BUCKET + 1];
+
+    /**
+     * @param enabled if false nothing is measured
+     */
+    ConversionStats(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < recordSizes.length; i++) {
+            recordSizes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return start time to be passed to one of the add methods, or 0 if not enabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void addRead(long start) {
+        if (enabled) {
+            readNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts a converted record
+     * @param start start time of the conversion
+     * @param size size in bytes of the converted record
+     */
+    void addWrite(long start, int size) {
+        if (enabled) {
+            writeNanos.add(System.nanoTime() - start);
+            records.increment();
+            final int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, size - 1));
+            recordSizes[Math.min(MAX_BUCKET, Math.max(MIN_BUCKET, bucket)) - MIN_BUCKET].increment();
+        }
+    }
+
+    void addOutput(long start) {
+        if (enabled) {
+            outputNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    void addBytesOut(long count) {
+        bytesOut.add(count);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Counts records copied without conversion
+     * @param count number of records
+     */
+    void addRecords(int count) {
+        if (enabled) {
+            records.add(count);
+        }
+    }
+
+    /**
+     * @param in input stream
+     * @return input stream counting bytes read from the given stream
+     */
+    InputStream countBytesIn(InputStream in) {
+        if (!enabled) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                final int bytesRead = super.read(bytes, offset, length);
+                if (bytesRead > 0) {
+                    bytesIn.add(bytesRead);
+                }
+                return bytesRead;
+            }
+        };
+    }
+
+    void addBytesIn(long count) {
+        if (enabled) {
+            bytesIn.add(count);
+        }
+    }
+
+    /**
+     * Prints summary
+     * @param out destination
+     * @param format summary format
+     * @param errors number of erroneous records
+     */
+    void print(PrintStream out, Format format, int errors) {
+        final double elapsed = seconds(System.nanoTime() - startNanos);
+        final long recordCount = records.sum();
+        final double recordsPerSecond = elapsed > 0 ? recordCount / elapsed : 0;
+        if (format == Format.JSON) {
+            final StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < recordSizes.length; i++) {
+                final long count = recordSizes[i].sum();
+                if (count > 0) {
+                    histogram.append(histogram.length() > 0 ? "," : "")
+                            .append("{\"maxBytes\":").append(i == recordSizes.length - 1 ? "null" : String.valueOf(bucketLimit(i)))
+                            .append(",\"count\":").append(count).append('}');
+                }
+            }
+            out.println(String.format(Locale.ROOT, "{\"records\":%d,\"errors\":%d,\"elapsedSeconds\":%.3f,"
+                            + "\"recordsPerSecond\":%.1f,\"bytesIn\":%d,\"bytesOut\":%d,\"readSeconds\":%.3f,"
+                            + "\"writeSeconds\":%.3f,\"outputSeconds\":%.3f,\"recordSizeHistogram\":[%s]}",
+                    recordCount, errors, elapsed, recordsPerSecond, bytesIn.sum(), bytesOut.sum(),
+                    seconds(readNanos.sum()), seconds(writeNanos.sum()), seconds(outputNanos.sum()), histogram));
+            return;
+        }
+        out.println(String.format(Locale.ROOT, "records:      %d", recordCount));
+        out.println(String.format(Locale.ROOT, "errors:       %d", errors));
+        out.println(String.format(Locale.ROOT, "elapsed:      %.3f s", elapsed));
+        out.println(String.format(Locale.ROOT, "records/s:    %.1f", recordsPerSecond));
+        out.println(String.format(Locale.ROOT, "bytes in:     %d", bytesIn.sum()));
+        out.println(String.format(Locale.ROOT, "bytes out:    %d", bytesOut.sum()));
+        out.println(String.format(Locale.ROOT, "read time:    %.3f s", seconds(readNanos.sum())));
+        out.println(String.format(Locale.ROOT, "write time:   %.3f s", seconds(writeNanos.sum())));
+        out.println(String.format(Locale.ROOT, "output time:  %.3f s", seconds(outputNanos.sum())));
+        out.println("record sizes:");
+        for (int i = 0; i < recordSizes.length; i++) {
+            final long count = recordSizes[i].sum();
+            if (count > 0) {
+                out.println(String.format(Locale.ROOT, "  %s %8d bytes: %d",
+                        i == recordSizes.length - 1 ? ">" : "<=", bucketLimit(i), count));
+            }
+        }
+    }
+
+    private static long bucketLimit(int index) {
+        return index == MAX_BUCKET - MIN_BUCKET ? 1L << (MAX_BUCKET - 1) : 1L << (index + MIN_BUCKET);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dump receiving error details together with the raw input of
+ * erroneous records. The dump may be shared by concurrent conversions.
+ * <p>
+ * A dump file is only created when the first error is dumped, and is then
+ * accompanied by an index file, named as the dump file with {@value #INDEX_SUFFIX}
+ * appended, holding a JSON line for every error with its record number, input
+ * byte offset when known, message and the position of the raw input in the dump
+ * file. Dump files are written in batches by a background thread, so that
+ * conversion of inputs with many erroneous records is not held up by writing them.
+ * </p>
+ * <p>
+ * A conversion resumed from a checkpoint continues the dump of the interrupted
+ * conversion, see {@link #resume(int)}.
+ * </p>
+ */
+class ErrorDump implements Closeable {
+    static final String INDEX_SUFFIX = ".jsonl";
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    private static final Entry END = new Entry(null, 0, -1, null, null);
+    private static final Pattern INDEX_LINE_END = Pattern.compile("\"dumpOffset\":(\\d+),\"length\":(\\d+)}$");
+
+    private final String filename;
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final BlockingQueue<Entry> queue;
+    private final Path path;
+    private OutputStream dumpStream;
+    private boolean append = false;
+    private long dumpEnd = 0;
+    private int maxErrors = -1;
+    private Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * @param path dump file, existing content is overwritten unless the dump is resumed
+     */
+    ErrorDump(Path path) {
+        this.filename = path.toString();
+        this.path = path;
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates dump written synchronously to the given stream, without index
+     * @param name name used when referring to the dump in messages
+     * @param out receiver of the dump, not closed by the dump
+     */
+    ErrorDump(String name, OutputStream out) {
+        this.filename = name;
+        this.path = null;
+        this.queue = null;
+        this.dumpStream = out;
+    }
+
+    /**
+     * Makes {@link #dump} abort the conversion once more than the given number of errors are seen
+     * @param maxErrors maximum number of errors allowed, negative for no limit
+     * @return this dump
+     */
+    ErrorDump withMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+        return this;
+    }
+
+    /**
+     * Continues the dump of an interrupted conversion, keeping the entries of
+     * its first errors in the dump and index files and appending the entries
+     * of further errors, which are counted on from the given count. Entries not
+     * written before the interruption are missing from the files, although
+     * their errors are counted.
+     * @param errorCount number of errors of the interrupted conversion to keep
+     * @throws IOException on failure to read or truncate the dump and index files
+     */
+    void resume(int errorCount) throws IOException {
+        this.errorCount.set(errorCount);
+        if (errorCount == 0) {
+            // Any existing files are overwritten by the first error dumped
+            return;
+        }
+        append = true;
+        final Path indexPath = Paths.get(filename + INDEX_SUFFIX);
+        if (!Files.exists(path) || !Files.exists(indexPath)) {
+            return;
+        }
+        final long indexSize = Files.size(indexPath);
+        final long dumpSize = Files.size(path);
+        long indexEnd = 0;
+        int entries = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexPath)) {
+            String line;
+            while (entries < errorCount && (line = reader.readLine()) != null) {
+                // Only entries completely written to both files are kept
+                final Matcher matcher = INDEX_LINE_END.matcher(line);
+                final long lineEnd = indexEnd + line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (!matcher.find() || lineEnd > indexSize) {
+                    break;
+                }
+                final long entryEnd = Long.parseLong(matcher.group(1)) + Long.parseLong(matcher.group(2));
+                if (entryEnd > dumpSize) {
+                    break;
+                }
+                indexEnd = lineEnd;
+                dumpEnd = entryEnd;
+                entries++;
+            }
+        }
+        truncate(indexPath, indexEnd);
+        truncate(path, dumpEnd);
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    int getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Dumps error details and raw input of an erroneous record
+     * @param source name of the input containing the record, or null if there is only one input
+     * @param recordNumber number of the record in its input, the first being number 1
+     * @param inputOffset byte offset of the record in its input, or -1 if unknown
+     * @param errorMessage description of the error
+     * @param inputBytes raw record bytes
+     * @throws IllegalArgumentException if the maximum number of errors is exceeded
+     */
+    void dump(String source, int recordNumber, long inputOffset, String errorMessage, byte[] inputBytes) {
+        final Entry entry = new Entry(source, recordNumber, inputOffset, errorMessage, inputBytes);
+        final int count;
+        if (queue == null) {
+            synchronized (this) {
+                count = errorCount.incrementAndGet();
+                try {
+                    write(entry, count == 1, null, 0, dumpStream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error writing dump " + filename, e);
+                }
+            }
+        } else {
+            synchronized (this) {
+                // Counting and queueing together keeps entries in the order of their count
+                count = errorCount.incrementAndGet();
+                if (writer == null) {
+                    writer = new Thread(this::writeEntries, "mconv-errdump");
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+                enqueue(entry);
+            }
+        }
+        if (maxErrors >= 0 && count > maxErrors) {
+            throw new IllegalArgumentException(String.format(
+                    "Aborted after %d erroneous records, see %s file for further details", count, filename));
+        }
+    }
+
+    /**
+     * Waits for all dumped errors to be written
+     * @throws UncheckedIOException if writing the dump failed
+     */
+    @Override
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            thread = writer;
+            if (thread != null && thread.isAlive()) {
+                enqueue(END);
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Error writing dump file " + filename, failure);
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        if (failure != null) {
+            throw new UncheckedIOException("Error writing dump file " + filename, failure);
+        }
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while dumping error"));
+        }
+    }
+
+    /* Writes queued entries in batches, only flushing when the queue runs dry */
+    private void writeEntries() {
+        final List<Entry> batch = new ArrayList<>();
+        final OpenOption[] options = append
+                ? new OpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.APPEND}
+                : new OpenOption[0];
+        try (OutputStream dump = new BufferedOutputStream(Files.newOutputStream(path, options), WRITE_BUFFER_SIZE);
+             OutputStream index = new BufferedOutputStream(
+                     Files.newOutputStream(Paths.get(filename + INDEX_SUFFIX), options), WRITE_BUFFER_SIZE)) {
+            long dumpOffset = dumpEnd;
+            boolean first = dumpEnd == 0;
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Entry entry : batch) {
+                    if (entry == END) {
+                        return;
+                    }
+                    dumpOffset = write(entry, first, index, dumpOffset, dump);
+                    first = false;
+                }
+                batch.clear();
+                if (queue.isEmpty()) {
+                    dump.flush();
+                    index.flush();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Interrupted while writing dump");
+        } finally {
+            // Keep conversions from blocking on a full queue after a failure
+            queue.clear();
+        }
+    }
+
+    private static long write(Entry entry, boolean first, OutputStream index, long dumpOffset, OutputStream dump)
+            throws IOException {
+        final byte[] message = ((first ? "" : "\n") + entry.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+        dump.write(message);
+        dump.write(entry.inputBytes);
+        if (index != null) {
+            final StringBuilder line = new StringBuilder(128)
+                    .append("{\"recordNumber\":").append(entry.recordNumber)
+                    .append(",\"inputOffset\":").append(entry.inputOffset < 0 ? "null" : String.valueOf(entry.inputOffset));
+            if (entry.source != null) {
+                line.append(",\"source\":");
+                appendJsonString(line, entry.source);
+            }
+            line.append(",\"message\":");
+            appendJsonString(line, entry.errorMessage);
+            line.append(",\"dumpOffset\":").append(dumpOffset + message.length)
+                    .append(",\"length\":").append(entry.inputBytes.length)
+                    .append("}\n");
+            index.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return dumpOffset + message.length + entry.inputBytes.length;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static class Entry {
+        private final String source;
+        private final int recordNumber;
+        private final long inputOffset;
+        private final String errorMessage;
+        private final byte[] inputBytes;
+
+        Entry(String source, int recordNumber, long inputOffset, String errorMessage, byte[] inputBytes) {
+            this.source = source;
+            this.recordNumber = recordNumber;
+            this.inputOffset = inputOffset;
+            this.errorMessage = errorMessage;
+            this.inputBytes = inputBytes;
+        }
+
+        String getMessage() {
+            final String message = "Record number " + recordNumber + " - " + errorMessage;
+            return source != null ? source + ": " + message : message;
+        }
+    }
+}
@@ -7,22 +7,27 @@ public class ExecutionExceptionHandler implements CommandLine.IExecutionExceptio
     @Override
     public int handleExecutionException(Exception e, CommandLine commandLine, CommandLine.ParseResult parseResult) {
 
+        final String errorMessage = getErrorMessage(e);
+
+        // bold red error message
+        commandLine.getErr().println(commandLine.getColorScheme().errorText(errorMessage));
+        e.printStackTrace();
+
+        return commandLine.getCommandSpec().exitCodeOnExecutionException();
+    }
+
+    static String getErrorMessage(Exception e) {
         String errorMessage = e.getMessage();
         if (e instanceof IllegalArgumentException) {
             // Attempt to unwrap real error message
             final Throwable cause = e.getCause();
-            if (cause instanceof MarcReaderException) {
+            if (cause instanceof MarcReaderException && cause.getCause() != null) {
                 errorMessage = cause.getCause().getMessage();
             }
         }
         if (errorMessage == null) {
             errorMessage = "Unexpected error";
         }
-
-        // bold red error message
-        commandLine.getErr().println(commandLine.getColorScheme().errorText(errorMessage));
-        e.printStackTrace();
-
-        return commandLine.getCommandSpec().exitCodeOnExecutionException();
+        return errorMessage;
     }
 }
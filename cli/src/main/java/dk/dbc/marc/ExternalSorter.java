@@ -0,0 +1,306 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts converted records by key using a bounded amount of memory.
+ * <p>
+ * Records are collected in a buffer until its estimated size exceeds the
+ * buffer size, at which point the buffer is sorted and spilled to a temporary
+ * run file holding length prefixed keys and records. Sorted output is produced
+ * by a k-way merge of the run files and the records still buffered.
+ * </p>
+ * <p>
+ * Runs are merged in levels, bounding the number of open files and read
+ * buffers while reading every record only once per level. Spilled runs are
+ * at level 0, and whenever the last {@value #MAX_MERGE_RUNS} runs are at the
+ * same level they are merged into one run at the next level. Before the final
+ * merge the last runs are merged until at most {@value #MAX_MERGE_RUNS} sources
+ * are left, including the buffer. Only adjacent runs are merged, so records
+ * having equal keys retain their input order.
+ * </p>
+ */
+class ExternalSorter implements Closeable {
+    /* Estimated memory used by a buffered record besides its key and bytes */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int MAX_MERGE_RUNS = 64;
+    private static final int RUN_BUFFER_SIZE = 65536;
+    private static final Comparator<Entry> ORDER = Comparator.comparing(entry -> entry.key);
+
+    private final long bufferSize;
+    private final List<Entry> buffer = new ArrayList<>();
+    private final List<Run> runs = new ArrayList<>();
+    private long bufferedBytes = 0;
+
+    /**
+     * @param bufferSize maximum estimated size in bytes of records kept in memory
+     */
+    ExternalSorter(long bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Sort buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Adds record, spilling buffered records to a run file if the buffer is full
+     * @param key sort key of the record
+     * @param bytes converted record
+     * @throws IOException on failure to write run file
+     */
+    void add(String key, byte[] bytes) throws IOException {
+        buffer.add(new Entry(key, bytes));
+        bufferedBytes += bytes.length + 2L * key.length() + ENTRY_OVERHEAD;
+        if (bufferedBytes >= bufferSize) {
+            buffer.sort(ORDER);
+            runs.add(writeRun(buffer.iterator(), buffer.size()));
+            buffer.clear();
+            bufferedBytes = 0;
+            mergeFullLevel();
+        }
+    }
+
+    /**
+     * Writes all added records in sorted order
+     * @param out receiver of the sorted records
+     * @throws IOException on failure to read run files
+     * @throws MarcWriterException if the receiver fails to write a record
+     */
+    void writeTo(RecordOutput out) throws IOException, MarcWriterException {
+        buffer.sort(ORDER);
+        if (runs.isEmpty()) {
+            for (Entry entry : buffer) {
+                out.write(entry.bytes);
+            }
+        } else {
+            // Leaves room for the buffer among the sources
+            while (runs.size() >= MAX_MERGE_RUNS) {
+                mergeLastRuns(Math.min(MAX_MERGE_RUNS, runs.size() - MAX_MERGE_RUNS + 2));
+            }
+            final List<Source> sources = openSources();
+            try {
+                merge(sources, entry -> out.write(entry.bytes));
+            } finally {
+                closeSources(sources);
+            }
+        }
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Deletes run files
+     */
+    @Override
+    public void close() throws IOException {
+        for (Run run : runs) {
+            Files.deleteIfExists(run.path);
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /* Runs are in input order with levels never increasing, so the
+       runs of the lowest level are always the last ones */
+    private void mergeFullLevel() throws IOException {
+        while (runs.size() >= MAX_MERGE_RUNS
+                && runs.get(runs.size() - MAX_MERGE_RUNS).level == runs.get(runs.size() - 1).level) {
+            mergeLastRuns(MAX_MERGE_RUNS);
+        }
+    }
+
+    /* Replaces the given number of last runs by a run merging them */
+    private void mergeLastRuns(int count) throws IOException {
+        final List<Run> last = runs.subList(runs.size() - count, runs.size());
+        final List<Run> merging = new ArrayList<>(last);
+        final List<Source> sources = new ArrayList<>();
+        final Path path = Files.createTempFile("mconv-sort", ".run");
+        long recordCount = 0;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), RUN_BUFFER_SIZE))) {
+            for (Run run : merging) {
+                sources.add(new RunSource(run, sources.size()));
+                recordCount += run.count;
+            }
+            merge(sources, entry -> write(out, entry));
+        } catch (MarcWriterException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            closeSources(sources);
+        }
+        for (Run run : merging) {
+            Files.deleteIfExists(run.path);
+        }
+        last.clear();
+        runs.add(new Run(path, recordCount, merging.get(0).level + 1));
+    }
+
+    private List<Source> openSources() throws IOException {
+        final List<Source> sources = new ArrayList<>();
+        try {
+            for (Run run : runs) {
+                sources.add(new RunSource(run, sources.size()));
+            }
+        } catch (IOException e) {
+            closeSources(sources);
+            throw e;
+        }
+        // Buffered records were added last, so they come last among equal keys
+        sources.add(new BufferSource(buffer.iterator(), sources.size()));
+        return sources;
+    }
+
+    /* Ties are broken by the order of the sources, which is their input order */
+    private static void merge(List<Source> sources, EntryHandler handler) throws IOException, MarcWriterException {
+        final PriorityQueue<Source> queue = new PriorityQueue<>(Math.max(1, sources.size()),
+                Comparator.comparing((Source source) -> source.current.key).thenComparingInt(source -> source.index));
+        for (Source source : sources) {
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final Source source = queue.poll();
+            handler.handle(source.current);
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    private static Run writeRun(Iterator<Entry> entries, long count) throws IOException {
+        final Path path = Files.createTempFile("mconv-sort", ".run");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), RUN_BUFFER_SIZE))) {
+            while (entries.hasNext()) {
+                write(out, entries.next());
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new Run(path, count, 0);
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        final byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(entry.bytes.length);
+        out.write(entry.bytes);
+    }
+
+    private static void closeSources(List<Source> sources) throws IOException {
+        for (Source source : sources) {
+            source.close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface EntryHandler {
+        void handle(Entry entry) throws IOException, MarcWriterException;
+    }
+
+    private static class Entry {
+        private final String key;
+        private final byte[] bytes;
+
+        Entry(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Run {
+        private final Path path;
+        private final long count;
+        private final int level;
+
+        Run(Path path, long count, int level) {
+            this.path = path;
+            this.count = count;
+            this.level = level;
+        }
+    }
+
+    private abstract static class Source implements Closeable {
+        private final int index;
+        Entry current;
+
+        Source(int index) {
+            this.index = index;
+        }
+
+        /* Moves to the next entry, returning false when there are no more */
+        abstract boolean advance() throws IOException;
+
+        @Override
+        public void close() throws IOException {}
+    }
+
+    private static class RunSource extends Source {
+        private final DataInputStream in;
+        private long remaining;
+
+        RunSource(Run run, int index) throws IOException {
+            super(index);
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path), RUN_BUFFER_SIZE));
+            this.remaining = run.count;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            final byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            current = new Entry(new String(key, StandardCharsets.UTF_8), bytes);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BufferSource extends Source {
+        private final Iterator<Entry> entries;
+
+        BufferSource(Iterator<Entry> entries, int index) {
+            super(index);
+            this.entries = entries;
+        }
+
+        @Override
+        boolean advance() {
+            current = entries.hasNext() ? entries.next() : null;
+            return current != null;
+        }
+    }
+}
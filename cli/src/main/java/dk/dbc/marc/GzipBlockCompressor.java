@@ -0,0 +1,112 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses blocks of output in parallel, in the style of pigz.
+ * <p>
+ * Every block is compressed independently into a gzip member of its own,
+ * and members are written in submission order, so the output is a standard
+ * multi-member gzip stream which any gzip implementation can decompress.
+ * </p>
+ * <p>
+ * Compressed members are written by the thread submitting blocks, so only
+ * that thread ever touches the underlying output.
+ * </p>
+ */
+class GzipBlockCompressor implements AutoCloseable {
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
+
+    @FunctionalInterface
+    interface MemberOutput {
+        void write(ByteBuffer member) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int capacity;
+    private final MemberOutput out;
+
+    /**
+     * @param threads number of compression threads
+     * @param out receiver of compressed gzip members
+     */
+    GzipBlockCompressor(int threads, MemberOutput out) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "mconv-gzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.capacity = threads * BLOCKS_IN_FLIGHT_PER_THREAD;
+        this.out = out;
+    }
+
+    /**
+     * Submits block for compression, blocking while too many
+     * blocks are waiting to be written
+     * @param block uncompressed bytes, must not be modified afterwards
+     * @throws IOException if writing a previously compressed member failed
+     */
+    void submit(byte[] block) throws IOException {
+        pending.addLast(executor.submit(() -> compress(block)));
+        while (pending.size() > capacity || !pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeNext();
+        }
+    }
+
+    /**
+     * Waits for all submitted blocks to be compressed and written
+     * @throws IOException if writing a compressed member failed
+     */
+    void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void writeNext() throws IOException {
+        final Future<byte[]> member = pending.removeFirst();
+        try {
+            out.write(ByteBuffer.wrap(member.get()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] block) {
+        final ByteArrayOutputStream member = new ByteArrayOutputStream(block.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, 8192)) {
+            gzip.write(block);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return member.toByteArray();
+    }
+}
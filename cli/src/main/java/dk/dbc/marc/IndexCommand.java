@@ -0,0 +1,54 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import picocli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+@CommandLine.Command(name = "index",
+        description = "Writes a sidecar index of the records in an ISO2709 or JSONL file, allowing the --records and --id options to seek directly to the selected records",
+        mixinStandardHelpOptions = true)
+public class IndexCommand implements Runnable {
+    @CommandLine.Parameters(
+            paramLabel = "inputfile",
+            description = "ISO2709 or JSONL file to index")
+    File inputFile;
+
+    @CommandLine.Option(
+            names = {"-i", "--input-encoding"},
+            defaultValue = "UTF-8",
+            description = "Character set of the input MARC record(s)\neg. LATIN-1, DANMARC2, MARC-8, UTF-8, and more.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Charset inputEncoding;
+
+    @CommandLine.Option(names = {"--ids"},
+            defaultValue = "false",
+            description = "Include the value of field 001 for every record, which is needed for the --id option.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Boolean includeIds = Boolean.FALSE;
+
+    @CommandLine.Option(names = {"-O", "--output"},
+            paramLabel = "indexfile",
+            description = "Index file, existing content is overwritten.\nDefaults to the input file name with " + RecordIndex.SUFFIX + " appended."
+    )
+    File indexFile;
+
+    @Override
+    public void run() {
+        final Path index = indexFile != null ? indexFile.toPath() : RecordIndex.sidecarOf(inputFile.toPath());
+        try {
+            final int count = RecordIndex.create(inputFile.toPath(), index, inputEncoding, Boolean.TRUE.equals(includeIds));
+            System.out.println("Indexed " + count + " records in " + index);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
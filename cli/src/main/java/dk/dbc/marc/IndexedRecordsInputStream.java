@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Input stream reading only the records at the given index entries,
+ * seeking directly to each record instead of reading the file up to it.
+ */
+class IndexedRecordsInputStream extends InputStream {
+    private final FileChannel channel;
+    private final Iterator<RecordIndex.Entry> entries;
+    private final byte[] separator;
+    private long position;
+    private long remaining = 0;
+    private int separatorRemaining = 0;
+
+    /**
+     * @param channel indexed file, closed when the stream is closed
+     * @param entries entries of the records to read
+     * @param separator bytes written after every record, eg. a newline for JSONL
+     */
+    IndexedRecordsInputStream(FileChannel channel, List<RecordIndex.Entry> entries, byte[] separator) {
+        this.channel = channel;
+        this.entries = entries.iterator();
+        this.separator = separator;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (remaining == 0 && separatorRemaining == 0) {
+            if (!entries.hasNext()) {
+                return -1;
+            }
+            final RecordIndex.Entry entry = entries.next();
+            position = entry.getOffset();
+            remaining = entry.getLength();
+            separatorRemaining = separator.length;
+        }
+        if (remaining > 0) {
+            final int bytesRead = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining)), position);
+            if (bytesRead < 0) {
+                throw new EOFException("Indexed record at offset " + position + " is beyond the end of the file");
+            }
+            position += bytesRead;
+            remaining -= bytesRead;
+            return bytesRead;
+        }
+        final int n = Math.min(length, separatorRemaining);
+        System.arraycopy(separator, separator.length - separatorRemaining, bytes, offset, n);
+        separatorRemaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
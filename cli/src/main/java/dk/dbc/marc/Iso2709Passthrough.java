@@ -0,0 +1,247 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies ISO2709 records unchanged from input to output, only validating
+ * the structure of their leader and directory.
+ * <p>
+ * Records failing validation are handed to an {@link ErrorHandler}
+ * instead of being copied. When reading from a file, runs of valid records
+ * are copied using channel transfer without passing through the heap.
+ * </p>
+ * <p>
+ * When given an {@link Iso2709Transcoder}, valid records are transcoded
+ * rather than copied, which requires reading them from a stream.
+ * </p>
+ */
+class Iso2709Passthrough {
+    private static final int SCAN_BUFFER_SIZE = 65536;
+
+    @FunctionalInterface
+    interface ErrorHandler {
+        void handle(int recordNumber, long inputOffset, String errorMessage, byte[] recordBytes);
+    }
+
+    private final OutputSink out;
+    private final ErrorHandler errorHandler;
+    private final Iso2709Transcoder transcoder;
+    private final byte[] buffer = new byte[Iso2709Structure.MAX_RECORD_LENGTH];
+    private int recordNumber = 0;
+    private int recordsCopied = 0;
+
+    Iso2709Passthrough(OutputSink out, ErrorHandler errorHandler) {
+        this(out, errorHandler, null);
+    }
+
+    /**
+     * @param out output of the records
+     * @param errorHandler receiver of records failing validation
+     * @param transcoder transcoder of valid records, or null to copy them unchanged
+     */
+    Iso2709Passthrough(OutputSink out, ErrorHandler errorHandler, Iso2709Transcoder transcoder) {
+        this.out = out;
+        this.errorHandler = errorHandler;
+        this.transcoder = transcoder;
+    }
+
+    /**
+     * Copies all records from the given file
+     * @param in input file channel
+     * @return number of records seen, both valid and invalid
+     * @throws IOException on failure to read input or write output
+     * @throws IllegalStateException if records are to be transcoded
+     */
+    int copy(FileChannel in) throws IOException {
+        if (transcoder != null) {
+            throw new IllegalStateException("Transcoded records must be read from a stream");
+        }
+        final long size = in.size();
+        long position = 0;
+        long runStart = 0;
+        while (position < size) {
+            final int headerLength = readAt(in, position, Iso2709Structure.LEADER_LENGTH);
+            final int recordLength = Iso2709Structure.recordLength(buffer);
+            String errorMessage = null;
+            if (recordLength < 0 || position + recordLength > size) {
+                errorMessage = "Invalid record length in leader";
+            } else {
+                final int baseAddress = Iso2709Structure.baseAddress(buffer);
+                final int directoryEnd = baseAddress > 0 && baseAddress < recordLength ? baseAddress : headerLength;
+                final int length = readAt(in, position, directoryEnd);
+                errorMessage = Iso2709Structure.validateHeader(buffer, length, recordLength);
+                if (errorMessage == null && !endsWithRecordTerminator(in, position + recordLength - 1)) {
+                    errorMessage = "Record is not terminated by a record terminator";
+                }
+            }
+            recordNumber++;
+            if (errorMessage == null) {
+                recordsCopied++;
+                position += recordLength;
+                continue;
+            }
+
+            // Copy run of valid records preceding the invalid one
+            out.transferFrom(in, runStart, position - runStart);
+            final long end = recordLength > 0 && position + recordLength <= size
+                    && endsWithRecordTerminator(in, position + recordLength - 1)
+                    ? position + recordLength : nextRecordTerminator(in, position) + 1;
+            errorHandler.handle(recordNumber, position, errorMessage, readRange(in, position, end));
+            position = end;
+            runStart = end;
+        }
+        out.transferFrom(in, runStart, position - runStart);
+        return recordNumber;
+    }
+
+    /**
+     * Copies all records from the given stream
+     * @param in input stream, should be buffered
+     * @return number of records seen, both valid and invalid
+     * @throws IOException on failure to read input or write output
+     */
+    int copy(InputStream in) throws IOException {
+        long position = 0;
+        int bytesRead = readFully(in, 0, Iso2709Structure.RECORD_LENGTH_SIZE);
+        while (bytesRead > 0) {
+            recordNumber++;
+            final int recordLength = bytesRead < Iso2709Structure.RECORD_LENGTH_SIZE
+                    ? -1 : Iso2709Structure.recordLength(buffer);
+            final byte[] recordBytes;
+            if (recordLength < 0) {
+                recordBytes = readUntilRecordTerminator(in, bytesRead);
+                errorHandler.handle(recordNumber, position, "Invalid record length in leader", recordBytes);
+                position += recordBytes.length;
+            } else {
+                bytesRead += readFully(in, bytesRead, recordLength - bytesRead);
+                String errorMessage = null;
+                if (bytesRead < recordLength) {
+                    errorMessage = "Record is truncated";
+                } else if (buffer[recordLength - 1] != Iso2709Structure.RECORD_TERMINATOR) {
+                    errorMessage = "Record is not terminated by a record terminator";
+                } else {
+                    errorMessage = Iso2709Structure.validateHeader(buffer, bytesRead, recordLength);
+                }
+                final byte[] transcoded = errorMessage == null && transcoder != null
+                        ? transcoder.transcode(buffer, 0) : null;
+                if (errorMessage == null && transcoder != null && transcoded == null) {
+                    errorMessage = "Record is too long after transcoding";
+                }
+                if (errorMessage == null) {
+                    if (transcoded != null) {
+                        out.write(transcoded, 0, transcoded.length);
+                    } else {
+                        out.write(buffer, 0, recordLength);
+                    }
+                    recordsCopied++;
+                    position += recordLength;
+                } else {
+                    if (bytesRead == recordLength
+                            && buffer[recordLength - 1] != Iso2709Structure.RECORD_TERMINATOR) {
+                        recordBytes = readUntilRecordTerminator(in, bytesRead);
+                    } else {
+                        recordBytes = new byte[bytesRead];
+                        System.arraycopy(buffer, 0, recordBytes, 0, bytesRead);
+                    }
+                    errorHandler.handle(recordNumber, position, errorMessage, recordBytes);
+                    position += recordBytes.length;
+                }
+            }
+            bytesRead = readFully(in, 0, Iso2709Structure.RECORD_LENGTH_SIZE);
+        }
+        return recordNumber;
+    }
+
+    /**
+     * @return number of valid records copied so far
+     */
+    int getRecordsCopied() {
+        return recordsCopied;
+    }
+
+    private int readAt(FileChannel in, long position, int length) throws IOException {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+        while (byteBuffer.hasRemaining()) {
+            if (in.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                break;
+            }
+        }
+        // Make sure no stale bytes from a previous record are interpreted
+        for (int i = byteBuffer.position(); i < length; i++) {
+            buffer[i] = 0;
+        }
+        return byteBuffer.position();
+    }
+
+    private static boolean endsWithRecordTerminator(FileChannel in, long position) throws IOException {
+        final ByteBuffer terminator = ByteBuffer.allocate(1);
+        return in.read(terminator, position) == 1 && terminator.get(0) == Iso2709Structure.RECORD_TERMINATOR;
+    }
+
+    private static long nextRecordTerminator(FileChannel in, long position) throws IOException {
+        final ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        final long size = in.size();
+        while (position < size) {
+            scanBuffer.clear();
+            final int bytesRead = in.read(scanBuffer, position);
+            if (bytesRead <= 0) {
+                break;
+            }
+            for (int i = 0; i < bytesRead; i++) {
+                if (scanBuffer.get(i) == Iso2709Structure.RECORD_TERMINATOR) {
+                    return position + i;
+                }
+            }
+            position += bytesRead;
+        }
+        return size - 1;
+    }
+
+    private static byte[] readRange(FileChannel in, long start, long end) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(end - start, Integer.MAX_VALUE - 8));
+        while (bytes.hasRemaining()) {
+            if (in.read(bytes, start + bytes.position()) < 0) {
+                break;
+            }
+        }
+        return bytes.array();
+    }
+
+    private int readFully(InputStream in, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int bytesRead = in.read(buffer, offset + total, length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private byte[] readUntilRecordTerminator(InputStream in, int bytesRead) throws IOException {
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        recordBytes.write(buffer, 0, bytesRead);
+        if (bytesRead > 0 && buffer[bytesRead - 1] == Iso2709Structure.RECORD_TERMINATOR) {
+            return recordBytes.toByteArray();
+        }
+        int b = in.read();
+        while (b >= 0) {
+            recordBytes.write(b);
+            if (b == Iso2709Structure.RECORD_TERMINATOR) {
+                break;
+            }
+            b = in.read();
+        }
+        return recordBytes.toByteArray();
+    }
+}
@@ -1,62 +1,70 @@
 package dk.dbc.marc;
 
-import dk.dbc.marc.binding.DataField;
-import dk.dbc.marc.binding.Field;
 import dk.dbc.marc.binding.MarcRecord;
-import dk.dbc.marc.reader.DanMarc2LineFormatReader;
-import dk.dbc.marc.reader.Iso2709Reader;
-import dk.dbc.marc.reader.Iso2709ReaderException;
-import dk.dbc.marc.reader.JsonLineReader;
-import dk.dbc.marc.reader.LineFormatReader;
-import dk.dbc.marc.reader.MarcReader;
 import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.reader.MarcXchangeV1Reader;
-import dk.dbc.marc.reader.MarcXmlReader;
-import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
-import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
-import dk.dbc.marc.writer.JsonLineWriter;
-import dk.dbc.marc.writer.LineFormatWriter;
 import dk.dbc.marc.writer.MarcWriter;
 import dk.dbc.marc.writer.MarcWriterException;
-import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import picocli.CommandLine;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static dk.dbc.marc.RecordFormat.LINE;
 
 @CommandLine.Command(name = "mconv ", version = "2.0",
         description = "Parses MARC records while supporting output in various formats",
-        mixinStandardHelpOptions = true)
+        mixinStandardHelpOptions = true,
+        subcommands = {IndexCommand.class, ServeCommand.class})
 public class MarcConversionApp implements Runnable {
-    private static final int PUSHBACK_BUFFER_SIZE = 1000;
+    private static final int RECORDS_IN_FLIGHT_PER_THREAD = 64;
+    private static final int SHARDS_IN_FLIGHT_PER_THREAD = 2;
+    private static final int SHARDS_PER_THREAD = 4;
+    private static final long MIN_SHARD_SIZE = 1L << 20;
+    private static final long MAX_SHARD_SIZE = 64L << 20;
+    private static final int PASSTHROUGH_BUFFER_SIZE = 65536;
 
-    private enum Mode {
-        LAX,
-        STRICT
+    private enum Keep {
+        FIRST,
+        LAST
     }
 
     @CommandLine.Parameters(
             paramLabel = "inputfile",
+            arity = "0..*",
             defaultValue = "-",
-            description="Input file or standard input if given as a dash (-)" )
-    File inputFile;
+            description="Input files, directories or glob patterns, or standard input if given as a dash (-). With more than one input file the files are converted concurrently, see --jobs and --output-dir." )
+    List<File> inputFiles;
 
     @CommandLine.Option(
             names = { "-m", "--mode"},
             defaultValue = "LAX",
             description = "Output mode ${COMPLETION-CANDIDATES}\nSee README.md for a detailed description of the mode option.\nDefaults to ${DEFAULT-VALUE}.")
-    Mode mode=Mode.LAX;
+    MarcConverter.Mode mode=MarcConverter.Mode.LAX;
 
     @CommandLine.Option(
             names = { "-f", "--format"},
@@ -90,12 +98,169 @@ public class MarcConversionApp implements Runnable {
 
     @CommandLine.Option(names = {"-c", "--as-collection"},
             defaultValue = "false",
-            description = "Output all input records in the same collection. Requires that the output format has support for collections.\nDefaults to ${DEFAULT-VALUE}."
+            description = "Output all input records in the same collection. Requires that the output format has support for collections. Records are streamed, so memory usage does not grow with the size of the collection.\nDefaults to ${DEFAULT-VALUE}."
     )
     Boolean asCollection = Boolean.FALSE;
 
+    @CommandLine.Option(names = {"-t", "--threads"},
+            defaultValue = "1",
+            description = "Number of threads used to convert records. With more than one thread records are converted in parallel while output retains the input order.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    int threads = 1;
+
+    @CommandLine.Option(names = {"-O", "--output"},
+            paramLabel = "outputfile",
+            description = "Output file, existing content is overwritten.\nDefaults to standard output."
+    )
+    File outputFile;
+
+    @CommandLine.Option(names = {"--output-buffer-size"},
+            defaultValue = "1048576",
+            description = "Size in bytes of the buffer collecting output before it is written.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    int outputBufferSize = 1048576;
+
+    @CommandLine.Option(names = {"-z", "--gzip"},
+            defaultValue = "false",
+            description = "Compress output using gzip. Blocks of the size given by --output-buffer-size are compressed in parallel on all available cores.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Boolean gzipOutput = Boolean.FALSE;
+
+    @CommandLine.Option(names = {"--records"},
+            paramLabel = "first[-last]",
+            description = "Only convert the records with numbers in the given range, the first record being number 1. The last number may be omitted to convert the remaining records. Requires an index created by the index subcommand."
+    )
+    String records;
+
+    @CommandLine.Option(names = {"--id"},
+            paramLabel = "id",
+            description = "Only convert records having the given value in field 001. Requires an index created by the index subcommand using the --ids option."
+    )
+    String recordId;
+
+    @CommandLine.Option(names = {"--index"},
+            paramLabel = "indexfile",
+            description = "Index used by the --records and --id options.\nDefaults to the input file name with " + RecordIndex.SUFFIX + " appended."
+    )
+    File indexFile;
+
+    @CommandLine.Option(names = {"-j", "--jobs"},
+            paramLabel = "jobs",
+            description = "Number of files converted concurrently when given more than one input file.\nDefaults to the number of available processors."
+    )
+    Integer jobs;
+
+    @CommandLine.Option(names = {"--output-dir"},
+            paramLabel = "outputdir",
+            description = "Directory receiving a separate output file for each input file, named after the input file with an extension matching the output format. Without this option the output of all input files is merged into a single output in input order."
+    )
+    File outputDir;
+
+    @CommandLine.Option(names = {"--stats"},
+            paramLabel = "format",
+            arity = "0..1",
+            fallbackValue = "TEXT",
+            description = "Print a summary of throughput, record sizes and time spent reading, writing and outputting records to standard error, as ${COMPLETION-CANDIDATES}.\nDefaults to TEXT when given without a format."
+    )
+    ConversionStats.Format statsFormat;
+
+    @CommandLine.Option(names = {"--where"},
+            paramLabel = "expression",
+            description = "Only convert records matching the given filter expression, eg. '001$b = 870970 and 245$a ~ \"^Harry\"'. See README.md for a description of filter expressions."
+    )
+    String where;
+
+    @CommandLine.Option(names = {"--fields"},
+            paramLabel = "tags",
+            description = "Only output the given comma separated fields, each tag optionally followed by $ and the subfield codes to keep, eg. 001,245$ac,6.. where a dot in a tag matches any character."
+    )
+    String fields;
+
+    @CommandLine.Option(names = {"--sort-by"},
+            paramLabel = "fields",
+            description = "Output records sorted by the values of the given comma separated fields, each tag optionally followed by $ and a subfield code, eg. 001$a,001$b. Records with equal values retain their input order."
+    )
+    String sortBy;
+
+    @CommandLine.Option(names = {"--sort-buffer-size"},
+            defaultValue = "67108864",
+            description = "Size in bytes of the records kept in memory when sorting, beyond which sorted runs of records are written to temporary files.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    long sortBufferSize = 67108864;
+
+    @CommandLine.Option(names = {"--dedupe"},
+            paramLabel = "fields",
+            description = "Only output one of the records having equal values in the given comma separated fields, each tag optionally followed by $ and a subfield code, eg. 001$a,001$b. Records having none of the fields are always output. See --keep."
+    )
+    String dedupe;
+
+    @CommandLine.Option(names = {"--keep"},
+            defaultValue = "FIRST",
+            description = "Record output by --dedupe among records having equal values ${COMPLETION-CANDIDATES}. Keeping the last record requires reading the input twice, so the input must be a file.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Keep keep = Keep.FIRST;
+
+    @CommandLine.Option(names = {"--dedupe-off-heap"},
+            defaultValue = "false",
+            description = "Keep the table of the values used by --dedupe, taking up to 22 bytes per distinct value, outside the Java heap. Its size is then limited by -XX:MaxDirectMemorySize.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Boolean dedupeOffHeap = Boolean.FALSE;
+
+    @CommandLine.Option(names = {"--split-records"},
+            paramLabel = "count",
+            description = "Write the output to numbered files of at most the given number of records each, named after --output with the file number added to the base name, eg. records-00001.iso. Requires --output, or --output-dir when converting multiple files."
+    )
+    Long splitRecords;
+
+    @CommandLine.Option(names = {"--split-bytes"},
+            paramLabel = "size",
+            description = "Write the output to numbered files of at most the given number of bytes each before compression, see --split-records. A record larger than the given size gets a file of its own."
+    )
+    Long splitBytes;
+
+    @CommandLine.Option(names = {"--checkpoint"},
+            paramLabel = "checkpointfile",
+            description = "Periodically record the input offset, the record number and the output size after a fully written record in the given file, allowing an interrupted conversion to be continued by --resume. Requires a single ISO2709, JSONL or line format input file and --output."
+    )
+    File checkpointFile;
+
+    @CommandLine.Option(names = {"--checkpoint-interval"},
+            paramLabel = "seconds",
+            defaultValue = "60",
+            description = "Minimum number of seconds between the checkpoints written by --checkpoint.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    long checkpointInterval = 60;
+
+    @CommandLine.Option(names = {"--resume"},
+            defaultValue = "false",
+            description = "Continue an interrupted conversion from the checkpoint given by --checkpoint, truncating the output and the error dump to the size and errors recorded by the checkpoint. Without an existing checkpoint the conversion starts from the beginning.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    Boolean resume = Boolean.FALSE;
+
     public static final String ERRDUMP_FILENAME = "mconv.errdump";
-    private FileOutputStream errdumpFile = null;
+
+    @CommandLine.Option(names = {"--error-dump"},
+            paramLabel = "dumpfile",
+            defaultValue = ERRDUMP_FILENAME,
+            description = "File receiving details and raw input of erroneous records, accompanied by an index of the errors in the same file name with " + ErrorDump.INDEX_SUFFIX + " appended.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    File errorDumpFile = new File(ERRDUMP_FILENAME);
+
+    @CommandLine.Option(names = {"--max-errors"},
+            paramLabel = "count",
+            description = "Abort the conversion when more than the given number of erroneous records have been seen.\nDefaults to no limit."
+    )
+    Integer maxErrors;
+
+    // Shared by all conversions of this command, see InputConversion
+    private ErrorDump errorDump;
+    private Map<String, MarcWriter> marcWriterCache = null;
+    private ConversionStats stats = new ConversionStats(false);
+    private MarcConverter converter = null;
+    private RecordFilter recordFilter = null;
+    private FieldProjection fieldProjection = null;
+    private RecordKey sortKey = null;
+    private RecordKey dedupeKey = null;
 
     public static void main(String[] args) {
         System.exit(runWith(args));
@@ -110,257 +275,887 @@ public class MarcConversionApp implements Runnable {
 
     @Override
     public void run() {
-        final File in = inputFile;
-        try (PushbackInputStream is = "-".equals(in.getName())
-                ? new PushbackInputStream(System.in, PUSHBACK_BUFFER_SIZE)
-                : new PushbackInputStream(new FileInputStream(inputFile.getAbsolutePath()), PUSHBACK_BUFFER_SIZE)) {
-            final MarcReader marcRecordReader = getMarcReader(is, inputEncoding);
-            MarcRecordOrError recordOrError = readMarcRecord(marcRecordReader);
-            if (recordOrError == null) {
-                throw new IllegalArgumentException("Unknown input format");
-            }
-            MarcWriter marcWriter = getMarcWriter(recordOrError);
-
-            final List<MarcRecord> recordBuffer = new ArrayList<>();
-            while (recordOrError != null) {
-                if (recordOrError.isError()) {
-                    dumpError(recordOrError);
+        stats = new ConversionStats(statsFormat != null);
+        if (where != null) {
+            recordFilter = RecordFilter.compile(where);
+        }
+        if (fields != null) {
+            fieldProjection = FieldProjection.parse(fields);
+        }
+        if (sortBy != null) {
+            sortKey = RecordKey.parse(sortBy);
+        }
+        if (dedupe != null) {
+            dedupeKey = RecordKey.parse(dedupe);
+        }
+        converter = createConverter();
+        if (splitRecords != null && splitRecords < 1 || splitBytes != null && splitBytes < 1) {
+            throw new IllegalArgumentException("Split size must be positive");
+        }
+        if (sortBufferSize < 1) {
+            throw new IllegalArgumentException("Sort buffer size must be positive");
+        }
+        if (Boolean.TRUE.equals(resume) && checkpointFile == null) {
+            throw new IllegalArgumentException("--resume requires --checkpoint");
+        }
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive");
+        }
+        if (maxErrors != null && maxErrors < 0) {
+            throw new IllegalArgumentException("Maximum number of errors must not be negative");
+        }
+        try (ErrorDump dump = new ErrorDump(errorDumpFile.toPath()).withMaxErrors(maxErrors != null ? maxErrors : -1)) {
+            errorDump = dump;
+            try {
+                if (BatchInputs.isBatch(inputFiles)) {
+                    convertBatch(BatchInputs.expand(inputFiles));
                 } else {
-                    if (marcWriter == null) {
-                        marcWriter = getMarcWriter(recordOrError);
+                    final InputConversion conversion = new InputConversion(inputFiles.get(0), outputFile, null,
+                            threads, Runtime.getRuntime().availableProcessors(), stats);
+                    if (isSplit() && outputFile == null) {
+                        throw new IllegalArgumentException("--split-records and --split-bytes require --output");
+                    }
+                    if (checkpointFile != null) {
+                        conversion.resumeFrom = conversion.loadCheckpoint();
                     }
-                    if (Boolean.TRUE.equals(asCollection)) {
-                        recordBuffer.add(recordOrError.getRecord());
-                    } else {
-                        System.out.write(marcWriter.write(recordOrError.getRecord(), outputEncoding));
+                    // Split output is written to numbered files by convert()
+                    try (OutputSink out = isSplit() ? null : conversion.openOutput()) {
+                        conversion.convertInput(out);
                     }
                 }
-                recordOrError = readMarcRecord(marcRecordReader);
-            }
-
-            if (!recordBuffer.isEmpty()) {
-                System.out.write(marcWriter.writeCollection(recordBuffer, outputEncoding));
-            }
-
-            if (errdumpFile != null) {
-                throw new IllegalArgumentException(String.format(
-                        "Input contained erroneous MARC data, see %s file for further details", ERRDUMP_FILENAME));
+            } finally {
+                if (stats.isEnabled()) {
+                    stats.print(System.err, statsFormat, errorDump.getErrorCount());
+                }
             }
-
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Converts multiple input files concurrently, each file by a separate
+       conversion, with results handled in input order */
+    private void convertBatch(List<File> files) throws IOException {
+        if (records != null || recordId != null) {
+            throw new IllegalArgumentException("--records and --id can only be used with a single input file");
+        }
+        if (checkpointFile != null) {
+            throw new IllegalArgumentException("--checkpoint can only be used with a single input file");
+        }
+        if (outputDir == null && Boolean.TRUE.equals(asCollection)) {
+            throw new IllegalArgumentException("--as-collection requires --output-dir when converting multiple files");
+        }
+        if (outputDir == null && isSplit()) {
+            throw new IllegalArgumentException("--split-records and --split-bytes require --output-dir when converting multiple files");
+        }
+        if (outputDir == null && sortKey != null) {
+            throw new IllegalArgumentException("--sort-by requires --output-dir when converting multiple files");
+        }
+        if (outputDir != null && outputFile != null) {
+            throw new IllegalArgumentException("Only one of --output and --output-dir can be given");
+        }
+        final int concurrency = jobs != null ? jobs : Runtime.getRuntime().availableProcessors();
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Number of jobs must be positive");
+        }
+        final Map<File, File> targets = outputDir != null ? getOutputTargets(files) : null;
+        final int[] failures = new int[1];
+        try (OutputSink merged = outputDir == null
+                ? openSink(outputFile != null ? outputFile.toPath() : null, null, Runtime.getRuntime().availableProcessors())
+                : null;
+             ConversionPipeline<BatchResult> pipeline = new ConversionPipeline<>(concurrency, concurrency * 2,
+                     result -> {
+                         if (result.output != null) {
+                             try (FileChannel output = FileChannel.open(result.output, StandardOpenOption.READ)) {
+                                 merged.transferFrom(output, 0, output.size());
+                             } finally {
+                                 Files.delete(result.output);
+                             }
+                         }
+                         if (result.errorMessage != null) {
+                             failures[0]++;
+                             System.err.println(result.input + ": " + result.errorMessage);
+                         }
+                     })) {
+            for (File file : files) {
+                final InputConversion conversion = new InputConversion(file,
+                        targets != null ? targets.get(file) : null, file.getPath(), 1, 1, stats);
+                pipeline.submit(conversion::convertBatchInput);
+            }
+            pipeline.finish();
         } catch (MarcReaderException | MarcWriterException e) {
             throw new IllegalArgumentException(e);
-        } finally {
-            if (errdumpFile != null) {
-                try {
-                    errdumpFile.close();
-                } catch (IOException e) {
-                    // noop
-                }
+        }
+        if (failures[0] > 0) {
+            throw new IllegalArgumentException(String.format("Conversion of %d out of %d files failed", failures[0], files.size()));
+        }
+    }
+
+    /**
+     * Creates a command converting a single request of the conversion server
+     * @param parameters request parameters named as the long form of the corresponding options
+     * @param charsets charset lookup
+     * @param marcWriterCache writers reused between requests, not thread-safe
+     * @return new command
+     * @throws IllegalArgumentException on unknown or invalid parameters
+     */
+    static MarcConversionApp forRequest(Map<String, String> parameters, Function<String, Charset> charsets,
+                                        Map<String, MarcWriter> marcWriterCache) {
+        final MarcConversionApp conversion = new MarcConversionApp();
+        conversion.includeLeader = Optional.empty();
+        conversion.includeWhitespacePadding = Optional.empty();
+        conversion.inputEncoding = StandardCharsets.UTF_8;
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            final String value = parameter.getValue();
+            switch (parameter.getKey()) {
+                case "format":
+                    conversion.outputFormat = RecordFormat.valueOf(value.toUpperCase());
+                    break;
+                case "mode":
+                    conversion.mode = MarcConverter.Mode.valueOf(value.toUpperCase());
+                    break;
+                case "input-encoding":
+                    conversion.inputEncoding = charsets.apply(value);
+                    break;
+                case "output-encoding":
+                    conversion.outputEncoding = charsets.apply(value);
+                    break;
+                case "include-leader":
+                    conversion.includeLeader = Optional.of(Boolean.parseBoolean(value));
+                    break;
+                case "include-whitespace-padding":
+                    conversion.includeWhitespacePadding = Optional.of(Boolean.parseBoolean(value));
+                    break;
+                case "as-collection":
+                    conversion.asCollection = Boolean.parseBoolean(value);
+                    break;
+                case "where":
+                    conversion.recordFilter = RecordFilter.compile(value);
+                    break;
+                case "fields":
+                    conversion.fieldProjection = FieldProjection.parse(value);
+                    break;
+                case "sort-by":
+                    conversion.sortKey = RecordKey.parse(value);
+                    break;
+                case "dedupe":
+                    conversion.dedupeKey = RecordKey.parse(value);
+                    break;
+                case "keep":
+                    conversion.keep = Keep.valueOf(value.toUpperCase());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter " + parameter.getKey());
             }
         }
+        conversion.marcWriterCache = marcWriterCache;
+        conversion.converter = conversion.createConverter();
+        return conversion;
     }
 
-    private MarcReader getMarcReader(PushbackInputStream is, Charset encoding) throws MarcReaderException {
-        final MarcFormatDeducer marcFormatDeducer = new MarcFormatDeducer(PUSHBACK_BUFFER_SIZE);
+    /* Conversion of records, shared by all conversions of this command */
+    private MarcConverter createConverter() {
+        return new MarcConverter(outputFormat)
+                .withMode(mode)
+                .withInputEncoding(inputEncoding)
+                .withOutputEncoding(outputEncoding)
+                .withIncludeLeader(includeLeader.orElse(null))
+                .withIncludeWhitespacePadding(includeWhitespacePadding.orElse(null))
+                .withCollection(Boolean.TRUE.equals(asCollection))
+                .withFilter(recordFilter)
+                .withProjection(fieldProjection);
+    }
 
-        Charset sampleEncoding = encoding;
-        if (!(encoding.name().equals("UTF-8"))) {
-            // Don't complicate the format deduction
-            // by introducing the DanMarc2 charset
-            // into the mix.
-            sampleEncoding = StandardCharsets.ISO_8859_1;
-        }
-        final MarcFormatDeducer.FORMAT format =
-                marcFormatDeducer.deduce(is, sampleEncoding);
+    /**
+     * Converts a single request of the conversion server
+     * @param in request input
+     * @param out request output
+     * @param dump receiver of erroneous records
+     * @throws IOException on failure to read input or write output
+     * @throws IllegalArgumentException if the input could not be converted
+     */
+    void convertRequest(InputStream in, OutputSink out, ErrorDump dump) throws IOException {
+        errorDump = dump;
+        final InputConversion conversion = new InputConversion(new File("-"), null, null, threads, 1, stats);
+        conversion.convertInput(conversion.inputFile, conversion.openStream(in), out);
+    }
 
-        if (format == MarcFormatDeducer.FORMAT.LINE
-                && encoding instanceof DanMarc2Charset) {
-            // For line format we need a special
-            // variant of the DanMarc2 charset.
-            encoding = new DanMarc2Charset(DanMarc2Charset.Variant.LINE_FORMAT);
+    /* Opens the given output file, or standard output if null, continuing
+       after the output of the checkpoint resumed from, if any */
+    private OutputSink openSink(Path path, Checkpoint resumeFrom, int gzipThreads) throws IOException {
+        if (outputBufferSize < 1) {
+            throw new IllegalArgumentException("Output buffer size must be positive");
         }
-
-        switch (format) {
-            case JSONL:
-                return new JsonLineReader(is, encoding);
-            case LINE:
-                return new LineFormatReader(is, encoding);
-            case DANMARC2_LINE:
-                return new DanMarc2LineFormatReader(is, encoding);
-            case MARCXCHANGE:
-                return new MarcXchangeV1Reader(is, encoding);
-            case MARCXML:
-                return new MarcXmlReader(is, encoding);
-            default:
-                return new Iso2709Reader(is, encoding);
+        final OutputSink out = path == null
+                ? OutputSink.toStream(System.out, outputBufferSize)
+                : resumeFrom != null
+                ? OutputSink.toFile(path, outputBufferSize, resumeFrom.getOutputSize())
+                : OutputSink.toFile(path, outputBufferSize);
+        if (stats.isEnabled()) {
+            out.withBytesWrittenCounter(stats::addBytesOut);
+        }
+        if (Boolean.TRUE.equals(gzipOutput)) {
+            return out.withGzipCompression(gzipThreads);
         }
+        return out;
     }
 
-    private MarcWriter getMarcWriter(MarcRecordOrError recordOrError) {
-        if (recordOrError.isError()) {
-            return null;
+    private Map<File, File> getOutputTargets(List<File> files) {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create output directory " + outputDir);
         }
-        MarcWriter marcWriter;
+        final Map<File, File> targets = new HashMap<>();
+        final Set<File> seen = new HashSet<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".gz")) {
+                name = name.substring(0, name.length() - 3);
+            }
+            final int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            name += "." + getFileExtension() + (Boolean.TRUE.equals(gzipOutput) ? ".gz" : "");
+            final File target = new File(outputDir, name);
+            if (!seen.add(target)) {
+                throw new IllegalArgumentException("More than one input file would be written to " + target);
+            }
+            targets.put(file, target);
+        }
+        return targets;
+    }
+
+    private String getFileExtension() {
         switch (outputFormat) {
-            case LINE: // pass-through
-            case LINE_CONCAT:
-                marcWriter = getLineFormatWriterVariant(recordOrError.getRecord());
-                break;
             case ISO:
-                marcWriter = new Iso2709MarcRecordWriter();
-                break;
+                return "iso";
             case JSONL:
-                marcWriter = new JsonLineWriter();
-                break;
+                return "jsonl";
             case MARCXCHANGE:
-                marcWriter = getMarcXchangeWriter();
-                break;
+                return "xml";
+            case LINE_CONCAT:
+                return "lin_concat";
             default:
-                throw new IllegalStateException("Unhandled format: " + outputFormat);
+                return "lin";
         }
+    }
 
-        if (Boolean.TRUE.equals(asCollection) && !marcWriter.canOutputCollection()) {
-                throw new IllegalArgumentException("Output format " + outputFormat + " does not support collections");
+    /**
+     * Conversion of a single input, holding the state of the conversion while
+     * sharing the options and record conversion of the command
+     */
+    private class InputConversion {
+        private final File inputFile;
+        private final File outputFile;
+        private final String errorSource;
+        private final int threads;
+        private final int gzipThreads;
+        private final ConversionStats stats;
+        private int recordNumber = 0;
+        private int errorCount = 0;
+        private boolean gzipInput = false;
+        private boolean indexedInput = false;
+        private RecordKeySet dedupeKeys = null;
+        private BitSet supersededRecords = null;
+        private Checkpoint resumeFrom = null;
+        private Checkpointer checkpointer = null;
+
+        /**
+         * @param inputFile input file, or - for standard input
+         * @param outputFile output file, or null for standard output
+         * @param errorSource name of the input in the error dump, or null
+         * @param threads number of conversion threads
+         * @param gzipThreads number of threads compressing gzip output
+         * @param stats receiver of conversion statistics
+         */
+        InputConversion(File inputFile, File outputFile, String errorSource, int threads, int gzipThreads,
+                        ConversionStats stats) {
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+            this.errorSource = errorSource;
+            this.threads = threads;
+            this.gzipThreads = gzipThreads;
+            this.stats = stats;
         }
 
-        return marcWriter;
-    }
+        /* Converts the current input file to the given output */
+        private void convertInput(OutputSink out) throws IOException {
+            try (PushbackInputStream is = openInput(inputFile)) {
+                convertInput(inputFile, is, out);
+            }
+        }
+
+        private void convertInput(File in, PushbackInputStream is, OutputSink out) throws IOException {
+            try {
+                final MarcFormatDeducer.FORMAT format = converter.deduceFormat(is);
+                if (isPassthrough(format)) {
+                    passthrough(in, is, out);
+                } else {
+                    convert(in, is, format, out);
+                }
+            } catch (MarcReaderException | MarcWriterException e) {
+                throw new IllegalArgumentException(e);
+            }
+
+            // The error dump is shared by all files of a batch, so errors are counted per conversion
+            if (errorCount > 0) {
+                throw new IllegalArgumentException(String.format(
+                        "Input contained erroneous MARC data, see %s file for further details", errorDump.getFilename()));
+            }
+        }
 
-    private MarcWriter getLineFormatWriterVariant(MarcRecord record) {
-        if (isDanMarc2(record)) {
-            final DanMarc2LineFormatWriter danMarc2LineFormatWriter = outputFormat == LINE
-                    ? new DanMarc2LineFormatWriter() : new DanMarc2LineFormatConcatWriter();
-
-            if (mode == Mode.LAX) {
-                danMarc2LineFormatWriter
-                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
-                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, true)
-                        .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, true)
-                        .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, false);
+        /* Validates the use of --checkpoint, returning the checkpoint
+           to resume from, if any */
+        private Checkpoint loadCheckpoint() throws IOException {
+            if ("-".equals(inputFile.getName()) || outputFile == null) {
+                throw new IllegalArgumentException("--checkpoint requires an input file and --output");
+            }
+            if (Boolean.TRUE.equals(asCollection) || sortKey != null || dedupeKey != null || isSplit()
+                    || records != null || recordId != null) {
+                throw new IllegalArgumentException("--checkpoint can not be combined with --as-collection, --sort-by, "
+                        + "--dedupe, --split-records, --split-bytes, --records or --id");
+            }
+            if (!Boolean.TRUE.equals(resume) || !Files.exists(checkpointFile.toPath())) {
+                return null;
+            }
+            final Checkpoint checkpoint = Checkpoint.read(checkpointFile.toPath());
+            if (!checkpoint.isFor(inputFile)) {
+                throw new IllegalArgumentException("Checkpoint " + checkpointFile + " was not written for the input file "
+                        + inputFile + " in its current state");
+            }
+            recordNumber = checkpoint.getRecordNumber();
+            // Errors before the checkpoint still fail the conversion and count towards --max-errors
+            errorCount = checkpoint.getErrorCount();
+            errorDump.resume(errorCount);
+            return checkpoint;
+        }
+
+        /* Converts a single input file of a batch. Output to be merged is
+           spilled to a temporary file, which is appended to the merged
+           output and deleted when the files before it have been handled. */
+        private BatchResult convertBatchInput() {
+            final BatchResult result = new BatchResult(inputFile);
+            try {
+                if (outputFile == null) {
+                    result.output = Files.createTempFile("mconv-batch", ".out");
+                }
+                try (OutputSink out = result.output != null ? OutputSink.toFile(result.output, outputBufferSize)
+                        : isSplit() ? null : openOutput()) {
+                    convertInput(out);
+                }
+            } catch (IOException | RuntimeException e) {
+                result.errorMessage = ExecutionExceptionHandler.getErrorMessage(e);
+            }
+            return result;
+        }
+
+        private void convert(File in, PushbackInputStream is, MarcFormatDeducer.FORMAT format, OutputSink out)
+                throws IOException, MarcReaderException, MarcWriterException {
+            if (checkpointFile != null) {
+                startCheckpointing(in, format, out);
+            }
+            final long offset = resumeFrom != null ? resumeFrom.getInputOffset() : 0;
+            try (Stream<MarcRecordOrError> recordsOrErrors = converter.recordsOrErrors(is, offset)) {
+                final Spliterator<MarcRecordOrError> entries = recordsOrErrors.spliterator();
+                final MarcRecordOrError entry = read(entries, recordNumber + 1);
+                if (entry == null) {
+                    if (resumeFrom != null) {
+                        // No records were left to resume
+                        return;
+                    }
+                    throw new IllegalArgumentException("Unknown input format");
+                }
+                if (!entry.isRecord() && !entry.isError()) {
+                    // No records matched --where
+                    return;
+                }
+                convert(in, format, entries, entry, out);
+            }
+        }
+
+        private void convert(File in, MarcFormatDeducer.FORMAT format, Spliterator<MarcRecordOrError> entries,
+                             MarcRecordOrError entry, OutputSink out)
+                throws IOException, MarcReaderException, MarcWriterException {
+            if (dedupeKey != null && keep == Keep.LAST) {
+                supersededRecords = findSupersededRecords(in);
+            }
+
+            final SplitOutput splitOutput = isSplit() ? new SplitOutput(outputFile.toPath(),
+                    splitRecords != null ? splitRecords : Long.MAX_VALUE, splitBytes != null ? splitBytes : Long.MAX_VALUE,
+                    Boolean.TRUE.equals(asCollection) ? outputEncoding : null, this::openOutput) : null;
+            final StreamingCollectionWriter collectionWriter = Boolean.TRUE.equals(asCollection) && splitOutput == null
+                    ? new StreamingCollectionWriter(outputEncoding, out) : null;
+            final RecordOutput output = timed(splitOutput != null ? splitOutput::write
+                    : collectionWriter != null ? collectionWriter::writeSingletonCollection : out::write);
+
+            try (SplitOutput split = splitOutput;
+                 RecordKeySet keys = dedupeKey != null && keep == Keep.FIRST
+                    ? new RecordKeySet(Boolean.TRUE.equals(dedupeOffHeap)) : null) {
+                dedupeKeys = keys;
+                if (sortKey != null) {
+                    try (ExternalSorter sorter = new ExternalSorter(sortBufferSize)) {
+                        // Keys are queued in input order as records are read, and
+                        // taken in the same order as their converted records arrive
+                        final Queue<String> sortKeys = new ConcurrentLinkedQueue<>();
+                        convertRecords(in, format, entries, entry,
+                                bytes -> sorter.add(sortKeys.remove(), bytes), sortKeys);
+                        sorter.writeTo(output);
+                    }
+                } else {
+                    convertRecords(in, format, entries, entry, output, null);
+                }
+                if (split != null) {
+                    split.finish();
+                }
+            }
+
+            if (collectionWriter != null) {
+                collectionWriter.finish();
+            }
+        }
+
+        /* Writes checkpoints as records are written from the checkpoint resumed
+           from, if any, replacing any stale checkpoint of an earlier conversion */
+        private void startCheckpointing(File in, MarcFormatDeducer.FORMAT format, OutputSink out) throws IOException {
+            if (!RecordBoundaries.isSupported(format)) {
+                throw new IllegalArgumentException("--checkpoint requires ISO2709, JSONL or line format input");
+            }
+            checkpointer = new Checkpointer(checkpointFile.toPath(), in, out, checkpointInterval);
+            checkpointer.checkpoint(recordNumber, resumeFrom != null ? resumeFrom.getInputOffset() : 0, errorCount);
+        }
+
+        private void convertRecords(File in, MarcFormatDeducer.FORMAT format, Spliterator<MarcRecordOrError> entries,
+                                    MarcRecordOrError entry, RecordOutput output, Queue<String> sortKeys)
+                throws IOException, MarcReaderException, MarcWriterException {
+            if (isShardable(in, format)) {
+                convertShards(entries, entry, output, sortKeys);
             } else {
-                danMarc2LineFormatWriter
-                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
-                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
-                        .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, false)
-                        .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, true);
+                convertRecords(entries, entry, output, sortKeys);
             }
+        }
 
-            includeLeader.ifPresent(flag -> danMarc2LineFormatWriter
-                    .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, flag));
-            includeWhitespacePadding.ifPresent(flag -> danMarc2LineFormatWriter
-                    .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, flag));
+        /* Copies ISO2709 records unchanged when no conversion is needed, only
+           validating their leader and directory. DANMARC2 and MARC-8 records
+           to be output in UTF-8 are transcoded without being parsed. */
+        private void passthrough(File in, PushbackInputStream is, OutputSink out) throws IOException {
+            final Iso2709Transcoder transcoder = inputEncoding.equals(outputEncoding)
+                    ? null : new Iso2709Transcoder(converter.getIso2709Encoding(), outputEncoding);
+            final Iso2709Passthrough passthrough = new Iso2709Passthrough(out, (number, offset, errorMessage, recordBytes) -> {
+                errorCount++;
+                errorDump.dump(errorSource, number, offset, errorMessage, recordBytes);
+            }, transcoder);
+            final int recordCount;
+            final long start = stats.start();
+            if (transcoder == null && isDirectFileInput(in)) {
+                try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+                    recordCount = passthrough.copy(channel);
+                }
+            } else {
+                recordCount = passthrough.copy(new BufferedInputStream(is, PASSTHROUGH_BUFFER_SIZE));
+            }
+            // Records are copied rather than read and written, so all time is output time
+            stats.addOutput(start);
+            // Invalid records are dumped rather than output, so only copied records count
+            stats.addRecords(passthrough.getRecordsCopied());
+            if (recordCount == 0) {
+                throw new IllegalArgumentException("Unknown input format");
+            }
+        }
 
-            return danMarc2LineFormatWriter;
+        private void convertRecords(Spliterator<MarcRecordOrError> entries, MarcRecordOrError entry,
+                                    RecordOutput output, Queue<String> sortKeys)
+                throws IOException, MarcReaderException, MarcWriterException {
+            MarcWriter marcWriter = null;
+            ThreadLocal<MarcWriter> workerMarcWriter = null;
+            long inputEnd = resumeFrom != null ? resumeFrom.getInputOffset() : 0;
+            final RecordOutput recordOutput = checkpointer != null ? checkpointer.track(output) : output;
+            try (ConversionPipeline<byte[]> pipeline = threads > 1
+                    ? new ConversionPipeline<>(threads, threads * RECORDS_IN_FLIGHT_PER_THREAD, recordOutput::write) : null) {
+                while (entry != null) {
+                    recordNumber += entry.getRecordCount();
+                    if (entry.getInputEnd() >= 0) {
+                        inputEnd = entry.getInputEnd();
+                    }
+                    if (entry.isError()) {
+                        dumpError(recordNumber, entry);
+                    } else if (entry.isRecord() && isKept(recordNumber, dedupeKeyOf(entry.getRecord()))) {
+                        final MarcRecord record = entry.getRecord();
+                        if (marcWriter == null) {
+                            marcWriter = getMarcWriter(record);
+                        }
+                        if (sortKeys != null) {
+                            sortKeys.add(sortKey.apply(record));
+                        }
+                        if (checkpointer != null) {
+                            checkpointer.submitted(recordNumber, entry.getInputEnd(), errorCount);
+                        }
+                        if (pipeline != null) {
+                            if (workerMarcWriter == null) {
+                                // Writers are not thread-safe, so each worker
+                                // gets its own identically configured instance.
+                                workerMarcWriter = ThreadLocal.withInitial(() -> getMarcWriter(record));
+                            }
+                            final ThreadLocal<MarcWriter> writer = workerMarcWriter;
+                            pipeline.submit(() -> convert(writer.get(), record));
+                        } else {
+                            recordOutput.write(convert(marcWriter, record));
+                        }
+                    }
+                    entry = read(entries, recordNumber + 1);
+                }
+                if (pipeline != null) {
+                    pipeline.finish();
+                }
+            }
+            if (checkpointer != null) {
+                checkpointer.finish(recordNumber, inputEnd, errorCount);
+            }
         }
 
-        final LineFormatWriter lineFormatWriter = outputFormat == LINE
-                ? new LineFormatWriter() : new LineFormatConcatWriter();
+        private boolean isShardable(File in, MarcFormatDeducer.FORMAT format) {
+            return threads > 1
+                    && RecordSpliterator.isSupported(format, converter.getInputEncoding())
+                    && isDirectFileInput(in);
+        }
 
-        if (mode == Mode.LAX) {
-            lineFormatWriter
-                    .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
-                    .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, true)
-                    .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, true);
-        } else {
-            lineFormatWriter
-                    .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
-                    .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
-                    .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, false);
+        /* Input which can be re-opened and read directly from its file */
+        private boolean isDirectFileInput(File in) {
+            return !gzipInput && !indexedInput && !"-".equals(in.getName()) && Files.isRegularFile(in.toPath());
         }
 
-        includeLeader.ifPresent(flag -> lineFormatWriter
-                .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, flag));
-        includeWhitespacePadding.ifPresent(flag -> lineFormatWriter
-                .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, flag));
+        /* Converts a regular ISO2709 or JSONL file by splitting the stream of
+           its records into shards at record boundaries, each shard being
+           memory-mapped, parsed and converted as a whole by a worker thread. */
+        private void convertShards(Spliterator<MarcRecordOrError> entries, MarcRecordOrError entry, RecordOutput output,
+                                   Queue<String> sortKeys)
+                throws IOException, MarcReaderException, MarcWriterException {
+            // The writer variant is chosen from the first valid record, which
+            // is found by reading the input sequentially. Erroneous records seen
+            // here are reported later when their shard is processed.
+            while (entry != null && !entry.isRecord()) {
+                entry = read(entries, recordNumber + 1);
+            }
+            final MarcRecord first = entry != null ? entry.getRecord() : null;
+            final ThreadLocal<MarcWriter> workerMarcWriter = ThreadLocal.withInitial(() -> getMarcWriter(first));
 
-        return lineFormatWriter;
-    }
+            final long fileSize = Files.size(inputFile.toPath());
+            final long start = resumeFrom != null ? resumeFrom.getInputOffset() : 0;
+            try (Stream<MarcRecordOrError> recordsOrErrors = converter.recordsOrErrors(inputFile.toPath(), start);
+                 ConversionPipeline<ShardResult> pipeline = new ConversionPipeline<>(threads,
+                         threads * SHARDS_IN_FLIGHT_PER_THREAD, result -> writeShard(result, output, sortKeys))) {
+                final long targetShardSize = Math.min(MAX_SHARD_SIZE,
+                        Math.max(MIN_SHARD_SIZE, fileSize / ((long) threads * SHARDS_PER_THREAD)));
+                final List<Spliterator<MarcRecordOrError>> shards = new ArrayList<>();
+                split(recordsOrErrors.spliterator(), targetShardSize, shards);
+                for (Spliterator<MarcRecordOrError> shard : shards) {
+                    pipeline.submit(() -> convertShard(shard, workerMarcWriter));
+                }
+                pipeline.finish();
+                if (checkpointer != null) {
+                    checkpointer.checkpoint(recordNumber, fileSize, errorCount);
+                }
+            }
+        }
 
-    private MarcWriter getMarcXchangeWriter() {
-        final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
-        if (mode == Mode.LAX) {
-            marcXchangeV1Writer.setProperty(MarcXchangeV1Writer.Property.ADD_XML_DECLARATION, false);
-        } else {
-            marcXchangeV1Writer.setProperty(MarcXchangeV1Writer.Property.ADD_XML_DECLARATION, true);
+        private ShardResult convertShard(Spliterator<MarcRecordOrError> shard, ThreadLocal<MarcWriter> marcWriter)
+                throws MarcWriterException {
+            final ShardResult result = new ShardResult();
+            MarcRecordOrError entry = read(shard, result.recordCount + 1);
+            while (entry != null) {
+                result.recordCount += entry.getRecordCount();
+                result.inputEnd = entry.getInputEnd();
+                if (entry.isError()) {
+                    result.errors.add(entry);
+                    result.errorNumbers.add(result.recordCount);
+                } else if (entry.isRecord()) {
+                    final MarcRecord record = entry.getRecord();
+                    if (sortKey != null) {
+                        result.sortKeys.add(sortKey.apply(record));
+                    }
+                    if (dedupeKey != null) {
+                        // De-duplication is decided in input order when the shard is written
+                        result.recordNumbers.add(result.recordCount);
+                        result.dedupeKeys.add(dedupeKeyOf(record));
+                    }
+                    result.converted.add(convert(marcWriter.get(), record));
+                }
+                entry = read(shard, result.recordCount + 1);
+            }
+            return result;
         }
-        return marcXchangeV1Writer;
-    }
 
-    private MarcRecordOrError readMarcRecord(MarcReader reader) throws MarcReaderException {
-        try {
-            final MarcRecord record = reader.read();
-            if (record == null) {
-                return null;
+        private void writeShard(ShardResult result, RecordOutput output, Queue<String> sortKeys)
+                throws IOException, MarcWriterException {
+            for (int i = 0; i < result.errors.size(); i++) {
+                dumpError(recordNumber + result.errorNumbers.get(i), result.errors.get(i));
+            }
+            for (int i = 0; i < result.converted.size(); i++) {
+                if (dedupeKey != null && !isKept(recordNumber + result.recordNumbers.get(i), result.dedupeKeys.get(i))) {
+                    continue;
+                }
+                if (sortKeys != null) {
+                    sortKeys.add(result.sortKeys.get(i));
+                }
+                output.write(result.converted.get(i));
             }
-            return MarcRecordOrError.asRecord(record);
-        } catch (Iso2709ReaderException e) {
-            String errorMessage = e.getMessage();
-            final Throwable cause = e.getCause();
-            if (cause != null) {
-                errorMessage = cause.getMessage();
+            recordNumber += result.recordCount;
+            if (checkpointer != null && result.inputEnd >= 0) {
+                checkpointer.reached(recordNumber, result.inputEnd, errorCount);
             }
-            return MarcRecordOrError.asError(errorMessage, e.getRecordBytes());
         }
-    }
 
-    private void dumpError(MarcRecordOrError error) {
-        try {
-            String errorMessageProlog = "\n";
-            if (errdumpFile == null) {
-                errdumpFile = new FileOutputStream(ERRDUMP_FILENAME, false);
-                errorMessageProlog = "";
-            }
-            errdumpFile.write((errorMessageProlog + error.getErrorMessage() + "\n").getBytes(StandardCharsets.UTF_8));
-            errdumpFile.write(error.getInputBytes());
-            errdumpFile.flush();
-        } catch (IOException e) {
-            throw new UncheckedIOException("Error writing dump file " + ERRDUMP_FILENAME, e);
+        /* Opens the input, transparently decompressing it if it starts with the gzip magic bytes */
+        private PushbackInputStream openInput(File in) throws IOException {
+            if (records != null || recordId != null) {
+                return openIndexedInput(in);
+            }
+            if ("-".equals(in.getName())) {
+                return openStream(stats.countBytesIn(System.in));
+            }
+            // Sharding and passthrough may read the file directly, so count it as a whole
+            stats.addBytesIn(in.length());
+            return openStream(new FileInputStream(in.getAbsolutePath()));
         }
-    }
 
-    private static boolean isDanMarc2(MarcRecord record) {
-        final List<Field> fields = record.getFields();
-        return !fields.isEmpty() && fields.get(0) instanceof DataField;
-    }
+        private PushbackInputStream openStream(InputStream in) throws IOException {
+            final MarcConverter.Input is = converter.open(in);
+            gzipInput = is.isGzipped();
+            return is;
+        }
+
+        /* Opens the input reading only the records selected by --records or --id */
+        private PushbackInputStream openIndexedInput(File in) throws IOException {
+            if (records != null && recordId != null) {
+                throw new IllegalArgumentException("Only one of --records and --id can be given");
+            }
+            if ("-".equals(in.getName())) {
+                throw new IllegalArgumentException("--records and --id require an input file");
+            }
+            final Path indexPath = indexFile != null ? indexFile.toPath() : RecordIndex.sidecarOf(in.toPath());
+            if (!Files.exists(indexPath)) {
+                throw new IllegalArgumentException("No index found at " + indexPath
+                        + ", create one using: mconv index" + (recordId != null ? " --ids " : " ") + in);
+            }
+            final List<RecordIndex.Entry> entries;
+            final byte[] separator;
+            try (RecordIndex index = RecordIndex.open(indexPath)) {
+                if (!index.isFor(in.toPath())) {
+                    throw new IllegalArgumentException("Index " + indexPath + " is out of date, recreate it using: mconv index"
+                            + (index.hasIds() ? " --ids " : " ") + in);
+                }
+                if (recordId != null) {
+                    if (!index.hasIds()) {
+                        throw new IllegalArgumentException("Index " + indexPath + " was created without --ids");
+                    }
+                    entries = index.find(recordId);
+                } else {
+                    final int[] range = parseRange(records);
+                    entries = index.get(range[0], range[1]);
+                }
+                separator = index.getFormat() == MarcFormatDeducer.FORMAT.JSONL ? new byte[] {'\n'} : new byte[0];
+            }
+            if (entries.isEmpty()) {
+                throw new IllegalArgumentException("No records found matching "
+                        + (recordId != null ? "--id " + recordId : "--records " + records));
+            }
+            indexedInput = true;
+            return new PushbackInputStream(new BufferedInputStream(stats.countBytesIn(new IndexedRecordsInputStream(
+                    FileChannel.open(in.toPath(), StandardOpenOption.READ), entries, separator)), PASSTHROUGH_BUFFER_SIZE),
+                    MarcConverter.PUSHBACK_BUFFER_SIZE);
+        }
+
+        private OutputSink openOutput() throws IOException {
+            return openOutput(outputFile != null ? outputFile.toPath() : null);
+        }
+
+        /* Opens the given output file, or standard output if null */
+        private OutputSink openOutput(Path path) throws IOException {
+            return openSink(path, resumeFrom, gzipThreads);
+        }
+
+        /* With --dedupe only the first or last of the records having the same key
+           is output. Records are passed in input order, and records without
+           any key values are always output. */
+        private boolean isKept(int number, String key) throws IOException {
+            if (supersededRecords != null) {
+                return !supersededRecords.get(number);
+            }
+            return dedupeKeys == null || !dedupeKey.hasValues(key) || dedupeKeys.add(key, number) < 0;
+        }
 
-    private static class MarcRecordOrError {
-        private static int recordNumber = 0;
+        /* Keys are only needed when keeping the first record */
+        private String dedupeKeyOf(MarcRecord record) {
+            return dedupeKeys != null ? dedupeKey.apply(record) : null;
+        }
 
-        private final MarcRecord record;
-        private final String errorMessage;
-        private final byte[] inputBytes;
+        /* Reads the input ahead of converting it, finding the numbers of records
+           followed by a later record having the same key */
+        private BitSet findSupersededRecords(File in) throws IOException {
+            if ("-".equals(in.getName())) {
+                throw new IllegalArgumentException("--keep=LAST requires an input file");
+            }
+            final BitSet superseded = new BitSet();
+            // Statistics only cover the conversion itself
+            final InputConversion scan = new InputConversion(in, null, errorSource, 1, 1, new ConversionStats(false));
+            try (PushbackInputStream is = scan.openInput(in);
+                 RecordKeySet keys = new RecordKeySet(Boolean.TRUE.equals(dedupeOffHeap));
+                 Stream<MarcRecordOrError> recordsOrErrors = converter.recordsOrErrors(is, 0)) {
+                final Iterator<MarcRecordOrError> entries = recordsOrErrors.iterator();
+                int number = 0;
+                while (entries.hasNext()) {
+                    final MarcRecordOrError entry = entries.next();
+                    number += entry.getRecordCount();
+                    if (entry.isRecord()) {
+                        final String key = dedupeKey.apply(entry.getRecord());
+                        if (dedupeKey.hasValues(key)) {
+                            final int previous = keys.add(key, number);
+                            if (previous >= 0) {
+                                superseded.set(previous);
+                            }
+                        }
+                    }
+                }
+            }
+            return superseded;
+        }
 
-        public static MarcRecordOrError asRecord(MarcRecord record) {
-            return new MarcRecordOrError(record, null, null);
+        private byte[] convert(MarcWriter marcWriter, MarcRecord record) throws MarcWriterException {
+            final ConversionEvents.WriteRecord event = new ConversionEvents.WriteRecord();
+            event.begin();
+            final long start = stats.start();
+            // In collection output records are rendered as single-record
+            // collections and subsequently joined by the StreamingCollectionWriter.
+            final byte[] bytes = converter.convert(marcWriter, record);
+            stats.addWrite(start, bytes.length);
+            event.size = bytes.length;
+            event.commit();
+            return bytes;
         }
 
-        public static MarcRecordOrError asError(String errorMessage, byte[] inputBytes) {
-            return new MarcRecordOrError(null, errorMessage, inputBytes);
+        /* Measures the time spent handing converted records to the output */
+        private RecordOutput timed(RecordOutput output) {
+            return bytes -> {
+                final ConversionEvents.Output event = new ConversionEvents.Output();
+                event.begin();
+                final long start = stats.start();
+                output.write(bytes);
+                stats.addOutput(start);
+                event.size = bytes.length;
+                event.commit();
+            };
         }
 
-        private MarcRecordOrError(MarcRecord record, String errorMessage, byte[] inputBytes) {
-            this.record = record;
-            this.errorMessage = errorMessage;
-            this.inputBytes = inputBytes;
-            recordNumber++;
+        /* Reads the next entry of the input, timing the reading of the records it accounts for */
+        private MarcRecordOrError read(Spliterator<MarcRecordOrError> entries, int recordNumber) {
+            final ConversionEvents.ReadRecord event = new ConversionEvents.ReadRecord();
+            event.begin();
+            final long start = stats.start();
+            try {
+                final MarcRecordOrError[] entry = {null};
+                entries.tryAdvance(next -> entry[0] = next);
+                return entry[0];
+            } finally {
+                stats.addRead(start);
+                event.recordNumber = recordNumber;
+                event.commit();
+            }
         }
 
-        public MarcRecord getRecord() {
-            return record;
+        private void dumpError(int number, MarcRecordOrError error) {
+            errorCount++;
+            // Offsets of indexed input are offsets in the selected records
+            errorDump.dump(errorSource, number, indexedInput ? -1 : error.getInputOffset(), error.getErrorMessage(),
+                    error.getInputBytes());
         }
+    }
 
-        public String getErrorMessage() {
-            return "Record number " + recordNumber + " - " + errorMessage;
+    private static class BatchResult {
+        private final File input;
+        private Path output;
+        private String errorMessage;
+
+        BatchResult(File input) {
+            this.input = input;
         }
+    }
 
-        public byte[] getInputBytes() {
-            return inputBytes;
+    private boolean isPassthrough(MarcFormatDeducer.FORMAT format) {
+        return format == MarcFormatDeducer.FORMAT.ISO2709
+                && outputFormat == RecordFormat.ISO
+                && (inputEncoding.equals(outputEncoding) || isTranscodable())
+                && !Boolean.TRUE.equals(asCollection)
+                && recordFilter == null
+                && fieldProjection == null
+                && sortKey == null
+                && dedupeKey == null
+                && !isSplit()
+                && checkpointFile == null;
+    }
+
+    /* Raw DANMARC2 and MARC-8 field data can be translated to UTF-8 by lookup tables */
+    private boolean isTranscodable() {
+        return StandardCharsets.UTF_8.equals(outputEncoding)
+                && (inputEncoding instanceof DanMarc2Charset || inputEncoding instanceof Marc8Charset);
+    }
+
+    private static int[] parseRange(String range) {
+        final int first;
+        final int last;
+        try {
+            final int dash = range.indexOf('-');
+            if (dash < 0) {
+                first = Integer.parseInt(range.trim());
+                last = first;
+            } else {
+                first = Integer.parseInt(range.substring(0, dash).trim());
+                final String end = range.substring(dash + 1).trim();
+                last = end.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(end);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid record range: " + range, e);
+        }
+        if (first < 1 || last < first) {
+            throw new IllegalArgumentException("Invalid record range: " + range);
+        }
+        return new int[] {first, last};
+    }
+
+    private boolean isSplit() {
+        return splitRecords != null || splitBytes != null;
+    }
+
+    private MarcWriter getMarcWriter(MarcRecord record) {
+        if (marcWriterCache != null) {
+            final String key = String.join("/", outputFormat.name(), mode.name(),
+                    String.valueOf(includeLeader.orElse(null)), String.valueOf(includeWhitespacePadding.orElse(null)),
+                    String.valueOf(asCollection), String.valueOf(MarcConverter.isDanMarc2(record)));
+            return marcWriterCache.computeIfAbsent(key, k -> converter.newWriter(record));
         }
+        return converter.newWriter(record);
+    }
 
-        public boolean isError() {
-            return errorMessage != null && inputBytes != null;
+    /* Splits entries read from a file into shards of about the given size, in file order */
+    private static void split(Spliterator<MarcRecordOrError> entries, long targetShardSize,
+                              List<Spliterator<MarcRecordOrError>> shards) {
+        if (entries.estimateSize() > targetShardSize) {
+            final Spliterator<MarcRecordOrError> prefix = entries.trySplit();
+            if (prefix != null) {
+                split(prefix, targetShardSize, shards);
+                split(entries, targetShardSize, shards);
+                return;
+            }
         }
+        shards.add(entries);
+    }
+
+    private static class ShardResult {
+        private final List<byte[]> converted = new ArrayList<>();
+        private final List<String> sortKeys = new ArrayList<>();
+        private final List<Integer> recordNumbers = new ArrayList<>();
+        private final List<String> dedupeKeys = new ArrayList<>();
+        private final List<MarcRecordOrError> errors = new ArrayList<>();
+        private final List<Integer> errorNumbers = new ArrayList<>();
+        private int recordCount = 0;
+        private long inputEnd = -1;
     }
 }
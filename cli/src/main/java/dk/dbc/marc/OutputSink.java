@@ -0,0 +1,234 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Output stream collecting converted records in a single reusable
+ * buffer, which is only drained when full or when explicitly flushed.
+ * <p>
+ * Files are written through a {@link FileChannel}, while standard out
+ * is written through its {@link OutputStream} one buffer at a time.
+ * </p>
+ * <p>
+ * With gzip compression enabled, every drained buffer is compressed in
+ * parallel as an independent gzip member by a {@link GzipBlockCompressor}.
+ * </p>
+ */
+class OutputSink extends OutputStream {
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+    private final OutputStream stream;
+    private GzipBlockCompressor compressor;
+    private LongConsumer bytesWritten;
+
+    private OutputSink(int bufferSize, FileChannel channel, OutputStream stream) {
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.channel = channel;
+        this.stream = stream;
+    }
+
+    /**
+     * Creates sink writing to the given file, existing content is truncated
+     * @param path output file
+     * @param bufferSize size of output buffer in bytes
+     * @return new sink
+     * @throws IOException if the file could not be opened
+     */
+    static OutputSink toFile(Path path, int bufferSize) throws IOException {
+        return new OutputSink(bufferSize, FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), null);
+    }
+
+    /**
+     * Creates sink appending to the given file after truncating it to
+     * the given size, discarding anything written beyond it
+     * @param path output file
+     * @param bufferSize size of output buffer in bytes
+     * @param size number of bytes of the file to keep
+     * @return new sink
+     * @throws IOException if the file could not be opened
+     * @throws IllegalArgumentException if the file is shorter than the given size
+     */
+    static OutputSink toFile(Path path, int bufferSize, long size) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < size) {
+                throw new IllegalArgumentException(String.format(
+                        "Output file %s is shorter than the expected %d bytes", path, size));
+            }
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new OutputSink(bufferSize, channel, null);
+    }
+
+    /**
+     * Creates sink writing to the given stream. Closing the
+     * sink flushes but does not close the stream.
+     * @param stream output stream
+     * @param bufferSize size of output buffer in bytes
+     * @return new sink
+     */
+    static OutputSink toStream(OutputStream stream, int bufferSize) {
+        return new OutputSink(bufferSize, null, stream);
+    }
+
+    /**
+     * Enables gzip compression of everything subsequently written to the sink
+     * @param threads number of compression threads
+     * @return this sink
+     */
+    OutputSink withGzipCompression(int threads) {
+        compressor = new GzipBlockCompressor(threads, this::writeThrough);
+        return this;
+    }
+
+    /**
+     * Reports the number of bytes written to the underlying file or stream,
+     * after compression if enabled
+     * @param bytesWritten receiver of byte counts
+     * @return this sink
+     */
+    OutputSink withBytesWrittenCounter(LongConsumer bytesWritten) {
+        this.bytesWritten = bytesWritten;
+        return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            drain();
+            if (length >= buffer.capacity()) {
+                // Too large to be buffered, bypass buffer altogether
+                if (compressor != null) {
+                    compressor.submit(Arrays.copyOfRange(bytes, offset, offset + length));
+                } else {
+                    writeThrough(ByteBuffer.wrap(bytes, offset, length));
+                }
+                return;
+            }
+        }
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes a region of a file, using channel transfer when the
+     * sink is itself backed by a file channel and not compressing
+     * @param source file to transfer from
+     * @param position file position of the region
+     * @param count number of bytes in the region
+     * @throws IOException if reading or writing failed
+     */
+    void transferFrom(FileChannel source, long position, long count) throws IOException {
+        drain();
+        while (count > 0) {
+            final long transferred;
+            if (channel != null && compressor == null) {
+                transferred = source.transferTo(position, count, channel);
+                if (bytesWritten != null && transferred > 0) {
+                    bytesWritten.accept(transferred);
+                }
+            } else {
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                transferred = source.read(buffer, position);
+                buffer.limit(buffer.capacity());
+                drain();
+            }
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file at position " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        if (compressor != null) {
+            compressor.flush();
+        }
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Flushes the sink to the underlying file and forces the written content to disk
+     * @return size of the file after flushing
+     * @throws IOException if writing failed
+     * @throws IllegalStateException if the sink is not writing to a file
+     */
+    long flushToFile() throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("Output is not a file");
+        }
+        flush();
+        channel.force(false);
+        return channel.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (compressor != null) {
+                compressor.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        if (buffer.position() > 0) {
+            if (compressor != null) {
+                compressor.submit(Arrays.copyOf(buffer.array(), buffer.position()));
+            } else {
+                buffer.flip();
+                writeThrough(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private void writeThrough(ByteBuffer bytes) throws IOException {
+        if (bytesWritten != null) {
+            bytesWritten.accept(bytes.remaining());
+        }
+        if (channel != null) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } else {
+            stream.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Set of record keys used for de-duplicating records, taking 8 bytes of
+ * memory per slot regardless of the length of the keys.
+ * <p>
+ * Every added key is appended to a temporary key file, and keys are looked up
+ * in an open-addressing table of primitive longs using linear probing. Each
+ * slot of the table packs a {@value #FINGERPRINT_BITS} bit fingerprint of the
+ * 64-bit hash of a key with the {@value #POSITION_BITS} bit position of the key
+ * in the file, limiting the key file to 1 TiB. The slot of a key is chosen by
+ * the low bits of its hash and the fingerprint is taken from the high bits, so
+ * keys compared to the key file are almost always equal. When the fingerprint
+ * of a key is found in the table, the key in the file is compared to it, so
+ * that keys having colliding hashes are never mistaken for each other. The key
+ * file is thus only read for keys already in the set.
+ * </p>
+ * <p>
+ * The table is split into segments, so that it can grow beyond the size of a
+ * single array, and may be allocated outside the Java heap. It is grown to
+ * twice the size at a load factor of 0.75 by releasing it and filling a new
+ * table from the key file, so that only one table is allocated at a time.
+ * The table thus takes between 11 and 22 bytes per key.
+ * </p>
+ * <p>
+ * Along with each key the number of the latest record having the key is kept,
+ * allowing the records superseded by later records to be identified.
+ * This class is not thread-safe.
+ * </p>
+ */
+class RecordKeySet implements Closeable {
+    private static final int SEGMENT_BITS = 23;
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final int KEY_FILE_BUFFER_SIZE = 65536;
+    private static final int POSITION_BITS = 40;
+    private static final int FINGERPRINT_BITS = Long.SIZE - POSITION_BITS;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+
+    private final boolean offHeap;
+    private final Path keyFile;
+    private final FileChannel keyChannel;
+    private final ByteBuffer keyBuffer = ByteBuffer.allocate(KEY_FILE_BUFFER_SIZE);
+    private final ByteBuffer entryHeader = ByteBuffer.allocate(Integer.BYTES);
+    private long keyFileSize = 0;
+    private LongBuffer[] segments;
+    private long capacity;
+    private long size = 0;
+
+    /**
+     * @param offHeap allocate the table outside the Java heap
+     * @throws IOException on failure to create the key file
+     */
+    RecordKeySet(boolean offHeap) throws IOException {
+        this.offHeap = offHeap;
+        this.segments = allocate(INITIAL_CAPACITY);
+        this.capacity = INITIAL_CAPACITY;
+        this.keyFile = Files.createTempFile("mconv-keys", ".bin");
+        this.keyChannel = FileChannel.open(keyFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Adds key, replacing the record number of the key if already in the set
+     * @param key record key
+     * @param recordNumber number of the record having the key
+     * @return number of the record previously added with the key, or -1 if the key is new
+     * @throws IOException on failure to read or write the key file
+     * @throws IllegalArgumentException if the key file would exceed its maximum size
+     */
+    int add(String key, int recordNumber) throws IOException {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final long hash = hash(bytes, bytes.length);
+        final long fingerprint = fingerprint(hash);
+        long slot = hash & (capacity - 1);
+        while (true) {
+            final long entry = get(segments, slot);
+            if (entry == 0) {
+                break;
+            }
+            if ((entry & ~POSITION_MASK) == fingerprint) {
+                final long position = entry & POSITION_MASK;
+                if (matches(position, bytes)) {
+                    final long numberPosition = position + Integer.BYTES + bytes.length;
+                    final int previous = readInt(numberPosition);
+                    writeInt(numberPosition, recordNumber);
+                    return previous;
+                }
+                // Fingerprint collision of different keys, keep probing
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        put(segments, slot, fingerprint | append(bytes, recordNumber));
+        // Grown at a load factor of 0.75
+        if (++size * 4 > capacity * 3) {
+            grow();
+        }
+        return -1;
+    }
+
+    /**
+     * Deletes the key file
+     */
+    @Override
+    public void close() throws IOException {
+        segments = null;
+        keyChannel.close();
+        Files.deleteIfExists(keyFile);
+    }
+
+    /* FNV-1a followed by the MurmurHash3 finalizer, which spreads the weak low
+       bits of FNV-1a over the whole hash */
+    static long hash(byte[] key, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= key[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /* The high bits of the hash, in the bits of a slot above the position.
+       Zero marks empty slots. */
+    private static long fingerprint(long hash) {
+        final long fingerprint = hash & ~POSITION_MASK;
+        return fingerprint != 0 ? fingerprint : 1L << POSITION_BITS;
+    }
+
+    /* Fills a table of twice the size from the key file, in which every key
+       of the set is found once, after releasing the current table */
+    private void grow() throws IOException {
+        final long newCapacity = capacity * 2;
+        segments = null;
+        segments = allocate(newCapacity);
+        capacity = newCapacity;
+        flush();
+        // The channel is positioned for this scan only, other access is positional
+        final DataInputStream entries = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(keyChannel.position(0)), KEY_FILE_BUFFER_SIZE));
+        byte[] key = new byte[64];
+        long position = 0;
+        while (position < keyFileSize) {
+            final int length = entries.readInt();
+            if (length > key.length) {
+                key = new byte[Math.max(length, key.length * 2)];
+            }
+            entries.readFully(key, 0, length);
+            entries.readInt();
+            final long hash = hash(key, length);
+            long slot = hash & (capacity - 1);
+            while (get(segments, slot) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            put(segments, slot, fingerprint(hash) | position);
+            position += Integer.BYTES + length + Integer.BYTES;
+        }
+    }
+
+    private LongBuffer[] allocate(long slots) {
+        final int segmentSlots = (int) Math.min(slots, 1L << SEGMENT_BITS);
+        final LongBuffer[] allocated = new LongBuffer[(int) (slots / segmentSlots)];
+        for (int i = 0; i < allocated.length; i++) {
+            allocated[i] = offHeap
+                    ? ByteBuffer.allocateDirect(segmentSlots * Long.BYTES).asLongBuffer()
+                    : LongBuffer.allocate(segmentSlots);
+        }
+        return allocated;
+    }
+
+    private static long get(LongBuffer[] segments, long slot) {
+        final int segmentSlots = segments[0].capacity();
+        return segments[(int) (slot / segmentSlots)].get((int) (slot % segmentSlots));
+    }
+
+    private static void put(LongBuffer[] segments, long slot, long entry) {
+        final int segmentSlots = segments[0].capacity();
+        segments[(int) (slot / segmentSlots)].put((int) (slot % segmentSlots), entry);
+    }
+
+    /* Entries of the key file are the length of the key, the key and the record number */
+    private long append(byte[] key, int recordNumber) throws IOException {
+        final long position = keyFileSize;
+        final int length = Integer.BYTES + key.length + Integer.BYTES;
+        if (position > POSITION_MASK) {
+            throw new IllegalArgumentException("Too many distinct --dedupe values, the key file exceeds 1 TiB");
+        }
+        if (length > keyBuffer.remaining()) {
+            flush();
+        }
+        if (length > keyBuffer.remaining()) {
+            final ByteBuffer entry = ByteBuffer.allocate(length);
+            entry.putInt(key.length).put(key).putInt(recordNumber).flip();
+            writeFully(entry, position);
+        } else {
+            keyBuffer.putInt(key.length).put(key).putInt(recordNumber);
+        }
+        keyFileSize += length;
+        return position;
+    }
+
+    private boolean matches(long position, byte[] key) throws IOException {
+        if (readInt(position) != key.length) {
+            return false;
+        }
+        final ByteBuffer stored = ByteBuffer.allocate(key.length);
+        readFully(stored, position + Integer.BYTES);
+        return Arrays.equals(stored.array(), key);
+    }
+
+    private int readInt(long position) throws IOException {
+        entryHeader.clear();
+        readFully(entryHeader, position);
+        return entryHeader.getInt(0);
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        flushIfBuffered(position + Integer.BYTES);
+        entryHeader.clear();
+        entryHeader.putInt(0, value);
+        writeFully(entryHeader, position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        flushIfBuffered(position + buffer.remaining());
+        while (buffer.hasRemaining()) {
+            final int n = keyChannel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of key file " + keyFile);
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += keyChannel.write(buffer, position);
+        }
+    }
+
+    /* Entries still in the write buffer are flushed before they are accessed */
+    private void flushIfBuffered(long position) throws IOException {
+        if (position > keyFileSize - keyBuffer.position()) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        keyBuffer.flip();
+        writeFully(keyBuffer, keyFileSize - keyBuffer.remaining());
+        keyBuffer.clear();
+    }
+}
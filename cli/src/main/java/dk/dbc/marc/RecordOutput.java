@@ -0,0 +1,18 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.IOException;
+
+/**
+ * Destination of converted records
+ */
+@FunctionalInterface
+interface RecordOutput {
+    void write(byte[] bytes) throws IOException, MarcWriterException;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.dbc.marc.writer.MarcWriter;
+import picocli.CommandLine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@CommandLine.Command(name = "serve",
+        description = "Runs a conversion server on a localhost HTTP port, avoiding process startup and charset initialization for every conversion. See README.md for a description of the conversion requests.",
+        mixinStandardHelpOptions = true)
+public class ServeCommand implements Runnable {
+    static final String CONVERT_PATH = "/convert";
+
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+    private static final String[] PRELOADED_CHARSETS = {"DANMARC2", "MARC-8", "ISO-8859-1", "UTF-8"};
+
+    @CommandLine.Option(names = {"-p", "--port"},
+            defaultValue = "8080",
+            description = "Port to listen on, connections are only accepted on the loopback interface.\nDefaults to ${DEFAULT-VALUE}."
+    )
+    int port = 8080;
+
+    @CommandLine.Option(names = {"-t", "--threads"},
+            paramLabel = "threads",
+            description = "Number of requests converted concurrently.\nDefaults to twice the number of available processors."
+    )
+    Integer threads;
+
+    private final Map<String, Charset> charsets = new ConcurrentHashMap<>();
+    // Writers are not thread-safe, so each request thread keeps its own
+    private final ThreadLocal<Map<String, MarcWriter>> marcWriters = ThreadLocal.withInitial(HashMap::new);
+
+    @Override
+    public void run() {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final HttpServer server = start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            stopped.countDown();
+        }));
+        System.err.println("Listening on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + CONVERT_PATH);
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts the server after initializing the charsets most commonly used
+     * @return running server
+     */
+    HttpServer start() {
+        for (String name : PRELOADED_CHARSETS) {
+            warmUp(name);
+        }
+        final int concurrency = threads != null ? threads : 2 * Runtime.getRuntime().availableProcessors();
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive");
+        }
+        try {
+            final HttpServer server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            final ExecutorService executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+                final Thread thread = new Thread(runnable, "mconv-serve");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executor);
+            server.createContext(CONVERT_PATH, this::convert);
+            server.start();
+            return server;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void convert(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                respond(exchange, 405, "Only POST is supported\n");
+                return;
+            }
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            final ErrorDump errorDump = new ErrorDump("error response", errors);
+            try (InputStream in = exchange.getRequestBody();
+                 OutputSink out = OutputSink.toStream(output, OUTPUT_BUFFER_SIZE)) {
+                MarcConversionApp.forRequest(getParameters(exchange), this::getCharset, marcWriters.get())
+                        .convertRequest(in, out, errorDump);
+            } catch (IllegalArgumentException e) {
+                if (errorDump.getErrorCount() > 0) {
+                    // Erroneous records are returned together with their error messages
+                    respond(exchange, 422, errors.toByteArray());
+                } else {
+                    respond(exchange, 400, ExecutionExceptionHandler.getErrorMessage(e) + "\n");
+                }
+                return;
+            }
+            respond(exchange, 200, output.toByteArray());
+        } catch (IOException | RuntimeException e) {
+            if (exchange.getResponseCode() < 0) {
+                respond(exchange, 500, ExecutionExceptionHandler.getErrorMessage(e) + "\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Charset getCharset(String name) {
+        return charsets.computeIfAbsent(name.toUpperCase(), Charset::forName);
+    }
+
+    private void warmUp(String name) {
+        try {
+            final Charset charset = getCharset(name);
+            charset.newDecoder().decode(ByteBuffer.wrap("warm up".getBytes(StandardCharsets.US_ASCII)));
+            charset.newEncoder().encode(CharBuffer.wrap("warm up"));
+        } catch (IOException | RuntimeException e) {
+            // Charset will then be initialized by the first request using it
+        }
+    }
+
+    private static Map<String, String> getParameters(HttpExchange exchange) {
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            for (String parameter : query.split("&")) {
+                final int equals = parameter.indexOf('=');
+                final String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                final String value = equals < 0 ? "true" : parameter.substring(equals + 1);
+                parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        respond(exchange, status, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.md
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes converted records to numbered output files, rolling over to a new
+ * file at a record boundary when the current file holds the maximum number
+ * of records, or when the next record would exceed the maximum number of bytes.
+ * <p>
+ * Every file is a valid standalone document. Records rendered as single-record
+ * collections are joined into a separate collection for each file by a
+ * {@link StreamingCollectionWriter}. A record larger than the maximum number
+ * of bytes gets a file of its own.
+ * </p>
+ * <p>
+ * Records are handed to a background thread, which writes, flushes and closes
+ * the files, so that conversion is not blocked by writing. The number of
+ * records waiting to be written is bounded.
+ * </p>
+ */
+class SplitOutput implements Closeable {
+    private static final byte[] END_OF_OUTPUT = new byte[0];
+    private static final int RECORDS_IN_FLIGHT = 1024;
+
+    private final Path path;
+    private final long maxRecords;
+    private final long maxBytes;
+    private final Charset collectionEncoding;
+    private final FileOpener opener;
+    private final BlockingQueue<byte[]> inFlight = new ArrayBlockingQueue<>(RECORDS_IN_FLIGHT);
+    private final Thread writer;
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    // Only accessed by the writer thread
+    private final OutputStream counted = new CountingOutputStream();
+    private int fileCount = 0;
+    private OutputSink file;
+    private StreamingCollectionWriter collectionWriter;
+    private long fileRecords;
+    private long fileBytes;
+
+    @FunctionalInterface
+    interface FileOpener {
+        OutputSink open(Path path) throws IOException;
+    }
+
+    /**
+     * @param path output file, to which the number of each file is added
+     * @param maxRecords maximum number of records in a file
+     * @param maxBytes maximum number of bytes in a file
+     * @param collectionEncoding encoding of records rendered as single-record
+     *                           collections, or null if records are not collections
+     * @param opener opens the output files
+     */
+    SplitOutput(Path path, long maxRecords, long maxBytes, Charset collectionEncoding, FileOpener opener) {
+        this.path = path;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.collectionEncoding = collectionEncoding;
+        this.opener = opener;
+        this.writer = new Thread(this::writeRecords, "mconv-split-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Names the output file of the given number by appending the number to
+     * the base name of the path, eg. records.iso.gz becomes records-00001.iso.gz
+     * @param path output file
+     * @param number file number, the first file being number 1
+     * @return path of the numbered file
+     */
+    static Path numbered(Path path, int number) {
+        final String name = path.getFileName().toString();
+        int extension = name.endsWith(".gz") ? name.lastIndexOf('.', name.length() - 4) : name.lastIndexOf('.');
+        if (extension <= 0) {
+            extension = name.endsWith(".gz") ? name.length() - 3 : name.length();
+        }
+        return path.resolveSibling(String.format("%s-%05d%s",
+                name.substring(0, extension), number, name.substring(extension)));
+    }
+
+    /**
+     * Queues record for writing, blocking if too many records are waiting
+     * @param bytes converted record
+     * @throws IOException if writing an earlier record failed
+     * @throws MarcWriterException if an earlier record could not be added to a collection
+     */
+    void write(byte[] bytes) throws IOException, MarcWriterException {
+        rethrowFailure();
+        put(bytes);
+    }
+
+    /**
+     * Waits for all queued records to be written and the last file to be closed
+     * @throws IOException if writing failed
+     * @throws MarcWriterException if a record could not be added to a collection
+     */
+    void finish() throws IOException, MarcWriterException {
+        if (!finished) {
+            finished = true;
+            put(END_OF_OUTPUT);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for output", e);
+            }
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Stops the writer thread, closing the current file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } catch (MarcWriterException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void put(byte[] bytes) {
+        try {
+            inFlight.put(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing output", e);
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            byte[] bytes = inFlight.take();
+            while (bytes != END_OF_OUTPUT) {
+                // After a failure records are drained, so that the
+                // converting thread never blocks on a full queue
+                if (failure == null) {
+                    try {
+                        writeRecord(bytes);
+                    } catch (IOException | MarcWriterException | RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                bytes = inFlight.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            try {
+                closeFile();
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void writeRecord(byte[] bytes) throws IOException, MarcWriterException {
+        // A record rendered as a collection is larger than its share of
+        // the file, so the file never exceeds its maximum size
+        if (file != null && (fileRecords >= maxRecords || fileBytes + bytes.length > maxBytes)) {
+            closeFile();
+        }
+        if (file == null) {
+            file = opener.open(numbered(path, ++fileCount));
+            if (collectionEncoding != null) {
+                collectionWriter = new StreamingCollectionWriter(collectionEncoding, counted);
+            }
+            fileRecords = 0;
+            fileBytes = 0;
+        }
+        if (collectionWriter != null) {
+            collectionWriter.writeSingletonCollection(bytes);
+        } else {
+            counted.write(bytes);
+        }
+        fileRecords++;
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            try {
+                if (collectionWriter != null) {
+                    collectionWriter.finish();
+                }
+            } finally {
+                file.close();
+                file = null;
+                collectionWriter = null;
+            }
+        }
+    }
+
+    private void rethrowFailure() throws IOException, MarcWriterException {
+        final Throwable cause = failure;
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof MarcWriterException) {
+            throw (MarcWriterException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /* Counts the bytes written to the current file, before compression */
+    private class CountingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            file.write(b);
+            fileBytes++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            file.write(bytes, offset, length);
+            fileBytes += length;
+        }
+    }
+}
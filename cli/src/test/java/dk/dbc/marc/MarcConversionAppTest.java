@@ -5,17 +5,32 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.parallel.ResourceLock;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.tapSystemErr;
 import static com.github.stefanbirkner.systemlambda.SystemLambda.tapSystemOut;
 import static com.github.stefanbirkner.systemlambda.SystemLambda.withTextFromSystemIn;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsNot.not;
+import static org.junit.jupiter.api.parallel.Resources.SYSTEM_ERR;
 import static org.junit.jupiter.api.parallel.Resources.SYSTEM_OUT;
 
 @ResourceLock(SYSTEM_OUT)
@@ -26,6 +41,7 @@ class MarcConversionAppTest {
     @AfterEach
     void removeErrorDump() throws IOException {
         Files.deleteIfExists(errdumpFile);
+        Files.deleteIfExists(Paths.get(errdumpFile + ErrorDump.INDEX_SUFFIX));
     }
 
     @Test
@@ -178,6 +194,530 @@ class MarcConversionAppTest {
         assertThat(capturedStdout, is(readResourceAsString("marc_collection.lin_concat")));
     }
 
+    @Test
+    void threadedConversionRetainsInputOrder() throws Exception {
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.xml"), "--format=LINE_CONCAT", "--include-leader=false", "--mode=strict", "--threads=4"));
+        assertThat(capturedStdout, is(readResourceAsString("marc_collection.lin_concat")));
+    }
+
+    @Test
+    void threadedConversionWithErrorDump() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso.gz");
+        final Path dumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path threadedDumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path indexFile = Paths.get(dumpFile + ErrorDump.INDEX_SUFFIX);
+        final Path threadedIndexFile = Paths.get(threadedDumpFile + ErrorDump.INDEX_SUFFIX);
+        try {
+            // Compressed input is converted record by record rather than in shards
+            try (OutputStream gzip = new GZIPOutputStream(Files.newOutputStream(inputFile))) {
+                for (String name : List.of("marc_collection.iso", "err.mrc", "marc_collection.iso", "err.mrc", "marc_collection.iso")) {
+                    gzip.write(Files.readAllBytes(Paths.get(resource(name))));
+                }
+            }
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--error-dump", dumpFile.toString()));
+            final int[] exitCode = new int[1];
+            String capturedStdout = tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(inputFile.toString(),
+                    "--format=LINE", "--threads=4", "--error-dump", threadedDumpFile.toString()));
+            assertThat("exit code", exitCode[0], is(not(0)));
+            assertThat("stdout", capturedStdout, is(expected));
+            assertThat("record numbers", recordNumbers(threadedIndexFile), is(List.of(2, 4)));
+            assertThat("index", Files.readString(threadedIndexFile), is(Files.readString(indexFile)));
+        } finally {
+            for (Path file : List.of(inputFile, dumpFile, threadedDumpFile, indexFile, threadedIndexFile)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    void threadedConversionOfIsoFile() throws Exception {
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "-o", "danmarc2", "--format=iso", "--threads=2"));
+        assertThat(capturedStdout, is(readResourceAsString("marc_collection.expected_dm2.iso")));
+    }
+
+    @Test
+    void threadedConversionOfShardedIsoFile() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        final Path dumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path shardedDumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path indexFile = Paths.get(dumpFile + ErrorDump.INDEX_SUFFIX);
+        final Path shardedIndexFile = Paths.get(shardedDumpFile + ErrorDump.INDEX_SUFFIX);
+        try {
+            // More than 2 MiB of records, so that the file is split into several shards,
+            // with erroneous records in different shards
+            final byte[] record = Files.readAllBytes(Paths.get(resource("marc_collection.iso")));
+            final byte[] error = Files.readAllBytes(Paths.get(resource("err.mrc")));
+            try (OutputStream os = Files.newOutputStream(inputFile)) {
+                for (int i = 1; i <= 200; i++) {
+                    os.write(record);
+                    if (i == 50 || i == 150) {
+                        os.write(error);
+                    }
+                }
+            }
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--error-dump", dumpFile.toString()));
+            final int[] exitCode = new int[1];
+            String capturedStdout = tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(inputFile.toString(),
+                    "--format=LINE", "--threads=2", "--error-dump", shardedDumpFile.toString()));
+            assertThat("exit code", exitCode[0], is(not(0)));
+            assertThat("stdout", capturedStdout, is(expected));
+            assertThat("record numbers", recordNumbers(shardedIndexFile), is(List.of(51, 152)));
+            assertThat("input offsets", inputOffsets(shardedIndexFile),
+                    is(List.of(50L * record.length, 150L * record.length + error.length)));
+            assertThat("index", Files.readString(shardedIndexFile), is(Files.readString(indexFile)));
+        } finally {
+            for (Path file : List.of(inputFile, dumpFile, shardedDumpFile, indexFile, shardedIndexFile)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    void isoPassthrough() throws Exception {
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "--format=iso"));
+        assertThat(capturedStdout, is(readResourceAsString("marc_collection.iso")));
+    }
+
+    @Test
+    void isoTranscoding() throws Exception {
+        final String expected = "00047n    2200037   4500010000900000\u001E00\u001Faxαx\u001E\u001D";
+        assertThat("DANMARC2", tapSystemOut(() -> MarcConversionApp.runWith(
+                resource("record_with_utf8_in_danmarc2.iso"), "-i", "danmarc2", "--format=iso")), is(expected));
+        assertThat("MARC-8", tapSystemOut(() -> MarcConversionApp.runWith(
+                resource("record_with_utf8_in_marc8.iso"), "-i", "marc8", "--format=iso")), is(expected));
+    }
+
+    @Test
+    void isoPassthroughWithErrorDump() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        try {
+            Files.write(inputFile, Files.readAllBytes(Paths.get(resource("marc_collection.iso"))));
+            Files.write(inputFile, "garbage\u001D".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            final int[] exitCode = new int[1];
+            String capturedStdout = tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(inputFile.toString(), "--format=iso"));
+            assertThat("exit code", exitCode[0], is(not(0)));
+            assertThat("errdump file exists", Files.exists(errdumpFile), is(true));
+            assertThat("stdout", capturedStdout, is(readResourceAsString("marc_collection.iso")));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void errorDumpIndexAndMaxErrors() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        final Path dumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path indexFile = Paths.get(dumpFile + ErrorDump.INDEX_SUFFIX);
+        try {
+            final byte[] records = Files.readAllBytes(Paths.get(resource("marc_collection.iso")));
+            Files.write(inputFile, records);
+            Files.write(inputFile, "garbage\u001Dmore garbage\u001D".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            final int[] exitCode = new int[1];
+            tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(inputFile.toString(), "--format=iso",
+                    "--error-dump", dumpFile.toString(), "--max-errors=0"));
+            assertThat("exit code", exitCode[0], is(not(0)));
+            assertThat("default errdump file exists", Files.exists(errdumpFile), is(false));
+            assertThat("index", Files.readString(indexFile), is("{\"recordNumber\":2,\"inputOffset\":" + records.length
+                    + ",\"message\":\"Invalid record length in leader\",\"dumpOffset\":50,\"length\":8}\n"));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(dumpFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    void errorDumpIndexOfConvertedRecords() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        final Path dumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path indexFile = Paths.get(dumpFile + ErrorDump.INDEX_SUFFIX);
+        try {
+            final byte[] records = Files.readAllBytes(Paths.get(resource("marc_collection.iso")));
+            Files.write(inputFile, records);
+            Files.write(inputFile, "garbage\u001Dmore garbage\u001D".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            final int[] exitCode = new int[1];
+            tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--error-dump", dumpFile.toString()));
+            assertThat("exit code", exitCode[0], is(not(0)));
+            assertThat("record numbers", recordNumbers(indexFile), is(List.of(2, 3)));
+            assertThat("input offsets", inputOffsets(indexFile),
+                    is(List.of((long) records.length, (long) records.length + 8)));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(dumpFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    void writeToOutputFile() throws Exception {
+        final Path outputFile = Files.createTempFile("mconv", ".lin");
+        try {
+            String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marcxml_minimal.xml"), "--format=LINE", "-O", outputFile.toString()));
+            assertThat("stdout", capturedStdout, is(""));
+            assertThat("output file", Files.readString(outputFile), is("00925njm  22002777a 4500\n001 control1\n100    *a code-a *b code-b\n\n"));
+        } finally {
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test
+    void smallOutputBuffer() throws Exception {
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.xml"), "--format=LINE_CONCAT", "--include-leader=false", "--mode=strict", "--output-buffer-size=16"));
+        assertThat(capturedStdout, is(readResourceAsString("marc_collection.lin_concat")));
+    }
+
+    @Test
+    void gzipInput() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".xml.gz");
+        try {
+            try (OutputStream gzip = new GZIPOutputStream(Files.newOutputStream(inputFile))) {
+                gzip.write(Files.readAllBytes(Paths.get(resource("marc_collection.xml"))));
+            }
+            String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE_CONCAT", "--include-leader=false", "--mode=strict"));
+            assertThat(capturedStdout, is(readResourceAsString("marc_collection.lin_concat")));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void gzipOutput() throws Exception {
+        final Path outputFile = Files.createTempFile("mconv", ".lin.gz");
+        try {
+            // Small buffer size forces output to be compressed as multiple gzip members
+            MarcConversionApp.runWith(resource("marc_collection.xml"), "--format=LINE_CONCAT", "--include-leader=false", "--mode=strict",
+                    "--gzip", "--output-buffer-size=1024", "-O", outputFile.toString());
+            try (InputStream gzip = new GZIPInputStream(Files.newInputStream(outputFile))) {
+                assertThat(new String(gzip.readAllBytes(), StandardCharsets.UTF_8), is(readResourceAsString("marc_collection.lin_concat")));
+            }
+        } finally {
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test
+    void selectRecordsUsingIndex() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        final Path indexFile = RecordIndex.sidecarOf(inputFile);
+        try {
+            Files.write(inputFile, Files.readAllBytes(Paths.get(resource("record_with_utf8_in_danmarc2.iso"))));
+            Files.write(inputFile, Files.readAllBytes(Paths.get(resource("marc_collection.iso"))), StandardOpenOption.APPEND);
+            assertThat("index exit code", MarcConversionApp.runWith("index", inputFile.toString()), is(0));
+            String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=iso", "--records=2-"));
+            assertThat(capturedStdout, is(readResourceAsString("marc_collection.iso")));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    @Test
+    void selectRecordsWithoutIndex() {
+        int exitCode = MarcConversionApp.runWith(resource("marc_collection.iso"), "--records=1");
+        assertThat("exit code", exitCode, is(not(0)));
+    }
+
+    @Test
+    void batchWithMergedOutput() throws Exception {
+        final int[] exitCode = new int[1];
+        String capturedStdout = tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(
+                resource("marcxml_minimal.xml"), resource("err.mrc"), resource("marcxml_minimal.xml"), "--format=LINE", "--jobs=2"));
+        assertThat("exit code", exitCode[0], is(not(0)));
+        assertThat("errdump file exists", Files.exists(errdumpFile), is(true));
+        assertThat("stdout", capturedStdout, is("00925njm  22002777a 4500\n001 control1\n100    *a code-a *b code-b\n\n"
+                + "00925njm  22002777a 4500\n001 control1\n100    *a code-a *b code-b\n\n"));
+    }
+
+    @Test
+    @ResourceLock(SYSTEM_ERR)
+    void batchReportsOnlyFailedFiles() throws Exception {
+        final int[] exitCode = new int[1];
+        final String capturedStderr = tapSystemErr(() -> tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(
+                resource("marc_collection.iso"), resource("marcxml_minimal.xml"), resource("err.mrc"),
+                resource("marc_collection.xml"), resource("marc_collection.iso"), "--format=LINE", "--jobs=4")));
+        assertThat("exit code", exitCode[0], is(not(0)));
+        assertThat("failed file", capturedStderr, containsString(resource("err.mrc") + ": "));
+        assertThat("clean files", capturedStderr, not(containsString(resource("marc_collection.iso") + ": ")));
+        assertThat("clean files", capturedStderr, not(containsString(resource("marcxml_minimal.xml") + ": ")));
+        assertThat("clean files", capturedStderr, not(containsString(resource("marc_collection.xml") + ": ")));
+        assertThat("summary", capturedStderr, containsString("Conversion of 1 out of 5 files failed"));
+    }
+
+    @Test
+    void batchWithOutputDirectory() throws Exception {
+        final Path outputDir = Files.createTempDirectory("mconv");
+        final Path outputFile = outputDir.resolve("marcxml_minimal.lin");
+        try {
+            final Path inputDir = Paths.get(resource("marcxml_minimal.xml")).getParent();
+            int exitCode = MarcConversionApp.runWith(inputDir.resolve("marcxml_min*.xml").toString(),
+                    "--format=LINE", "--output-dir", outputDir.toString());
+            assertThat("exit code", exitCode, is(0));
+            assertThat("output file", Files.readString(outputFile), is("00925njm  22002777a 4500\n001 control1\n100    *a code-a *b code-b\n\n"));
+        } finally {
+            Files.deleteIfExists(outputFile);
+            Files.deleteIfExists(outputDir);
+        }
+    }
+
+    @Test
+    @ResourceLock(SYSTEM_ERR)
+    void statsAsJson() throws Exception {
+        final int[] exitCode = new int[1];
+        final String capturedStderr = tapSystemErr(() -> tapSystemOut(() -> exitCode[0] = MarcConversionApp.runWith(
+                resource("marc_collection.xml"), "--format=ISO", "--stats=json")));
+        assertThat("exit code", exitCode[0], is(0));
+        assertThat("records", capturedStderr, containsString("\"records\":2,"));
+        assertThat("errors", capturedStderr, containsString("\"errors\":0,"));
+        assertThat("histogram", capturedStderr, containsString("\"recordSizeHistogram\":[{"));
+    }
+
+    @Test
+    @ResourceLock(SYSTEM_ERR)
+    void statsOfPassthroughCountOnlyCopiedRecords() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        try {
+            Files.write(inputFile, Files.readAllBytes(Paths.get(resource("marc_collection.iso"))));
+            Files.write(inputFile, "garbage\u001D".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+            final String capturedStderr = tapSystemErr(() -> tapSystemOut(() -> MarcConversionApp.runWith(
+                    inputFile.toString(), "--format=iso", "--stats=json")));
+            assertThat("records", capturedStderr, containsString("\"records\":1,"));
+            assertThat("errors", capturedStderr, containsString("\"errors\":1,"));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void filterRecords() throws Exception {
+        final String expected = readResourceAsString("marc_collection.lin_concat");
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.xml"), "--format=LINE_CONCAT",
+                "--include-leader=false", "--mode=strict", "--where", "001$a = 53968368 and not 100"));
+        assertThat(capturedStdout, is(expected.substring(expected.indexOf("\"001 00 *a53968368"))));
+    }
+
+    @Test
+    void filterIsoRecords() throws Exception {
+        final String expected = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "--format=LINE"));
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "--format=LINE",
+                "--where", "001 = EBC4838558 and 245$b ~ \"^The Seizing\""));
+        assertThat("selected", capturedStdout, is(expected));
+        capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "--format=LINE",
+                "--where", "001 = EBC0000000"));
+        assertThat("skipped", capturedStdout, is(""));
+    }
+
+    @Test
+    void projectFields() throws Exception {
+        String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.xml"), "--format=LINE_CONCAT",
+                "--include-leader=false", "--mode=strict", "--fields", "001$a,245$a", "--threads=2"));
+        assertThat(capturedStdout, is("\"001 00 *a53930557\\n\" +\n\"245 00 *aEn ¤historie om to kvinder\\n\" +\n\"$\\n\"\n"
+                + "\"001 00 *a53968368\\n\" +\n\"245 00 *aTremontaine - episode 1\\n\" +\n\"$\\n\"\n"));
+    }
+
+    @Test
+    void sortRecords() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".jsonl");
+        try {
+            final List<String> lines = Files.readAllLines(Paths.get(resource("marc.jsonl")), StandardCharsets.UTF_8);
+            Collections.reverse(lines);
+            Files.write(inputFile, lines, StandardCharsets.UTF_8);
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc.jsonl"), "--format=LINE"));
+            String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--sort-by", "001$a"));
+            assertThat("in memory", capturedStdout, is(expected));
+            capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--sort-by", "001$a", "--sort-buffer-size=1", "--threads=2"));
+            assertThat("spilled", capturedStdout, is(expected));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void sortRecordsMergingRunsInLevels() throws Exception {
+        final String record = "{\"fields\":[{\"name\":\"001\",\"indicator\":[\"0\",\"0\"],\"subfields\":"
+                + "[{\"name\":\"a\",\"value\":\"%04d\"},{\"name\":\"b\",\"value\":\"%d\"}]}]}";
+        final Path inputFile = Files.createTempFile("mconv", ".jsonl");
+        final Path sortedFile = Files.createTempFile("mconv", ".jsonl");
+        try {
+            // Every record is spilled to a run of its own, giving more runs than
+            // merged at once at the first two levels, and every key is used twice
+            final int count = 5000;
+            final List<String> lines = new ArrayList<>();
+            final List<String> sorted = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                lines.add(String.format(record, i * 7919 % (count / 2), i));
+            }
+            for (int key = 0; key < count / 2; key++) {
+                for (int i = 0; i < count; i++) {
+                    if (i * 7919 % (count / 2) == key) {
+                        sorted.add(String.format(record, key, i));
+                    }
+                }
+            }
+            Files.write(inputFile, lines, StandardCharsets.UTF_8);
+            Files.write(sortedFile, sorted, StandardCharsets.UTF_8);
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(sortedFile.toString(), "--format=LINE"));
+            final String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(),
+                    "--format=LINE", "--sort-by", "001$a", "--sort-buffer-size=1"));
+            assertThat(capturedStdout, is(expected));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(sortedFile);
+        }
+    }
+
+    @Test
+    void dedupeRecords() throws Exception {
+        final String first = "{\"fields\":[{\"name\":\"001\",\"indicator\":[\"0\",\"0\"],\"subfields\":[{\"name\":\"a\",\"value\":\"%s\"},{\"name\":\"b\",\"value\":\"first\"}]}]}";
+        final String last = first.replace("first", "last");
+        final Path inputFile = Files.createTempFile("mconv", ".jsonl");
+        final Path expectedFile = Files.createTempFile("mconv", ".jsonl");
+        try {
+            Files.write(inputFile, List.of(String.format(first, 1), String.format(first, 2),
+                    String.format(last, 1), String.format(last, 2)), StandardCharsets.UTF_8);
+
+            Files.write(expectedFile, List.of(String.format(first, 1), String.format(first, 2)), StandardCharsets.UTF_8);
+            String expected = tapSystemOut(() -> MarcConversionApp.runWith(expectedFile.toString(), "--format=LINE"));
+            String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--dedupe", "001$a"));
+            assertThat("first", capturedStdout, is(expected));
+
+            Files.write(expectedFile, List.of(String.format(last, 1), String.format(last, 2)), StandardCharsets.UTF_8);
+            expected = tapSystemOut(() -> MarcConversionApp.runWith(expectedFile.toString(), "--format=LINE"));
+            capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(inputFile.toString(), "--format=LINE",
+                    "--dedupe", "001$a", "--keep=last", "--dedupe-off-heap"));
+            assertThat("last", capturedStdout, is(expected));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(expectedFile);
+        }
+    }
+
+    @Test
+    void splitOutput() throws Exception {
+        final Path outputDir = Files.createTempDirectory("mconv");
+        try {
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc.jsonl"), "--format=ISO"));
+            MarcConversionApp.runWith(resource("marc.jsonl"), "--format=ISO", "--split-records=1",
+                    "-O", outputDir.resolve("records.iso").toString());
+            assertThat("files", Files.readString(outputDir.resolve("records-00001.iso"))
+                    + Files.readString(outputDir.resolve("records-00002.iso")), is(expected));
+
+            MarcConversionApp.runWith(resource("marc.jsonl"), "--format=MARCXCHANGE", "-c", "--split-bytes=1",
+                    "-O", outputDir.resolve("records.xml").toString());
+            final String collection = Files.readString(outputDir.resolve("records-00002.xml"));
+            assertThat("collection start", collection.startsWith("<collection"), is(true));
+            assertThat("collection record", collection, containsString("30769431"));
+            assertThat("collection end", collection.endsWith("</collection>"), is(true));
+            assertThat("no more files", Files.exists(outputDir.resolve("records-00003.xml")), is(false));
+        } finally {
+            for (String file : List.of("records-00001.iso", "records-00002.iso", "records-00001.xml", "records-00002.xml")) {
+                Files.deleteIfExists(outputDir.resolve(file));
+            }
+            Files.deleteIfExists(outputDir);
+        }
+    }
+
+    @Test
+    void checkpointAndResume() throws Exception {
+        final Path inputFile = Paths.get(resource("marc.jsonl"));
+        final Path outputFile = Files.createTempFile("mconv", ".iso");
+        final Path checkpointFile = Files.createTempFile("mconv", ".checkpoint");
+        try {
+            final String expected = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc.jsonl"), "--format=ISO"));
+            MarcConversionApp.runWith(resource("marc.jsonl"), "--format=ISO",
+                    "-O", outputFile.toString(), "--checkpoint", checkpointFile.toString());
+            assertThat("output", Files.readString(outputFile), is(expected));
+            final Checkpoint completed = Checkpoint.read(checkpointFile);
+            assertThat("record number", completed.getRecordNumber(), is(2));
+            assertThat("error count", completed.getErrorCount(), is(0));
+            assertThat("input offset", completed.getInputOffset(), is(Files.size(inputFile)));
+            assertThat("output size", completed.getOutputSize(), is(Files.size(outputFile)));
+
+            // Interrupted after the first record had been checkpointed and part of the second written
+            final String first = expected.substring(0, expected.indexOf('\u001D') + 1);
+            final String input = new String(Files.readAllBytes(inputFile), StandardCharsets.ISO_8859_1);
+            Files.writeString(outputFile, first + "partial record");
+            new Checkpoint(inputFile.toFile(), input.indexOf('\n') + 1, 1, 0,
+                    first.getBytes(StandardCharsets.UTF_8).length).write(checkpointFile);
+            MarcConversionApp.runWith(resource("marc.jsonl"), "--format=ISO", "--threads=2",
+                    "-O", outputFile.toString(), "--checkpoint", checkpointFile.toString(), "--resume");
+            assertThat("resumed output", Files.readString(outputFile), is(expected));
+            assertThat("resumed record number", Checkpoint.read(checkpointFile).getRecordNumber(), is(2));
+        } finally {
+            Files.deleteIfExists(outputFile);
+            Files.deleteIfExists(checkpointFile);
+        }
+    }
+
+    @Test
+    void checkpointAndResumeIso() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        try {
+            final byte[] record = Files.readAllBytes(Paths.get(resource("marc_collection.iso")));
+            final byte[] error = Files.readAllBytes(Paths.get(resource("err.mrc")));
+            try (OutputStream os = Files.newOutputStream(inputFile)) {
+                for (byte[] bytes : List.of(record, error, record, error, record)) {
+                    os.write(bytes);
+                }
+            }
+            // Errors before the checkpoint must still fail the resumed conversion
+            final Checkpoint checkpoint = checkpointAndResume(inputFile, 2L * record.length + 2L * error.length,
+                    "--format=LINE");
+            assertThat("record number", checkpoint.getRecordNumber(), is(5));
+            assertThat("error count", checkpoint.getErrorCount(), is(2));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void checkpointAndResumeShardedIso() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".iso");
+        try {
+            // More than 2 MiB of records, so that the file is split into shards
+            // both before and after the checkpoint
+            final byte[] record = Files.readAllBytes(Paths.get(resource("marc_collection.iso")));
+            final byte[] error = Files.readAllBytes(Paths.get(resource("err.mrc")));
+            try (OutputStream os = Files.newOutputStream(inputFile)) {
+                for (int i = 1; i <= 200; i++) {
+                    os.write(record);
+                    if (i == 50 || i == 150) {
+                        os.write(error);
+                    }
+                }
+            }
+            final Checkpoint checkpoint = checkpointAndResume(inputFile, 100L * record.length + error.length,
+                    "--format=LINE", "--threads=2");
+            assertThat("record number", checkpoint.getRecordNumber(), is(202));
+            assertThat("error count", checkpoint.getErrorCount(), is(2));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    void checkpointAndResumeLine() throws Exception {
+        final Path inputFile = Files.createTempFile("mconv", ".lin");
+        try {
+            final byte[] record = Files.readAllBytes(Paths.get(resource("marc_collection.lin")));
+            try (OutputStream os = Files.newOutputStream(inputFile)) {
+                for (int i = 0; i < 3; i++) {
+                    os.write(record);
+                }
+            }
+            final Checkpoint checkpoint = checkpointAndResume(inputFile, record.length, "--format=JSONL");
+            assertThat("record number", checkpoint.getRecordNumber(), is(3));
+            assertThat("error count", checkpoint.getErrorCount(), is(0));
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
     @Test
     void formatIso() throws Exception {
         String capturedStdout = tapSystemOut(() -> MarcConversionApp.runWith(resource("marc_collection.iso"), "-o", "danmarc2", "--format=iso"));
@@ -219,6 +759,89 @@ class MarcConversionAppTest {
         });
     }
 
+    /* Resumes conversion of an input from a checkpoint at the given input offset,
+       as if interrupted after having written part of the next record and having
+       dumped all errors of the input, and verifies that the output, error dump
+       and exit code equal those of an uninterrupted conversion. Returns the
+       checkpoint written at the end of the resumed conversion. */
+    private static Checkpoint checkpointAndResume(Path inputFile, long checkpointOffset, String... options)
+            throws IOException {
+        final Path prefixFile = Files.createTempFile("mconv", ".prefix");
+        final Path expectedFile = Files.createTempFile("mconv", ".out");
+        final Path outputFile = Files.createTempFile("mconv", ".out");
+        final Path expectedDumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path dumpFile = Files.createTempFile("mconv", ".errdump");
+        final Path expectedIndexFile = Paths.get(expectedDumpFile + ErrorDump.INDEX_SUFFIX);
+        final Path indexFile = Paths.get(dumpFile + ErrorDump.INDEX_SUFFIX);
+        final Path checkpointFile = Files.createTempFile("mconv", ".checkpoint");
+        try {
+            final int expectedExitCode = MarcConversionApp.runWith(withOptions(inputFile, options,
+                    "-O", expectedFile.toString(), "--error-dump", expectedDumpFile.toString()));
+
+            // The checkpoint is taken from a conversion of the input up to the checkpoint offset
+            try (InputStream is = Files.newInputStream(inputFile);
+                 OutputStream os = Files.newOutputStream(prefixFile)) {
+                os.write(is.readNBytes((int) checkpointOffset));
+            }
+            MarcConversionApp.runWith(withOptions(prefixFile, options, "-O", outputFile.toString(),
+                    "--error-dump", dumpFile.toString(), "--checkpoint", checkpointFile.toString()));
+            final Checkpoint prefix = Checkpoint.read(checkpointFile);
+            assertThat("checkpoint error count", prefix.getErrorCount(),
+                    is(Files.exists(indexFile) ? recordNumbers(indexFile).size() : 0));
+            new Checkpoint(inputFile.toFile(), checkpointOffset, prefix.getRecordNumber(), prefix.getErrorCount(),
+                    prefix.getOutputSize()).write(checkpointFile);
+            Files.write(outputFile, "partial record".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            if (Files.exists(expectedIndexFile)) {
+                Files.copy(expectedDumpFile, dumpFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(expectedIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            final int exitCode = MarcConversionApp.runWith(withOptions(inputFile, options,
+                    "-O", outputFile.toString(), "--error-dump", dumpFile.toString(),
+                    "--checkpoint", checkpointFile.toString(), "--resume"));
+            assertThat("exit code", exitCode, is(expectedExitCode));
+            assertThat("resumed output", Files.readAllBytes(outputFile), is(Files.readAllBytes(expectedFile)));
+            if (Files.exists(expectedIndexFile)) {
+                assertThat("resumed index", Files.readString(indexFile), is(Files.readString(expectedIndexFile)));
+                assertThat("resumed dump", Files.readAllBytes(dumpFile), is(Files.readAllBytes(expectedDumpFile)));
+            }
+            return Checkpoint.read(checkpointFile);
+        } finally {
+            for (Path file : List.of(prefixFile, expectedFile, outputFile, expectedDumpFile, dumpFile,
+                    expectedIndexFile, indexFile, checkpointFile)) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static String[] withOptions(Path inputFile, String[] options, String... moreOptions) {
+        final List<String> args = new ArrayList<>();
+        args.add(inputFile.toString());
+        Collections.addAll(args, options);
+        Collections.addAll(args, moreOptions);
+        return args.toArray(new String[0]);
+    }
+
+    /* Record numbers of the errors in an error dump index */
+    private static List<Integer> recordNumbers(Path indexFile) throws IOException {
+        final List<Integer> recordNumbers = new ArrayList<>();
+        final Matcher matcher = Pattern.compile("\"recordNumber\":(\\d+)").matcher(Files.readString(indexFile));
+        while (matcher.find()) {
+            recordNumbers.add(Integer.parseInt(matcher.group(1)));
+        }
+        return recordNumbers;
+    }
+
+    /* Input offsets of the errors in an error dump index */
+    private static List<Long> inputOffsets(Path indexFile) throws IOException {
+        final List<Long> inputOffsets = new ArrayList<>();
+        final Matcher matcher = Pattern.compile("\"inputOffset\":(\\d+)").matcher(Files.readString(indexFile));
+        while (matcher.find()) {
+            inputOffsets.add(Long.parseLong(matcher.group(1)));
+        }
+        return inputOffsets;
+    }
+
     private String readResourceAsString(String resource) throws IOException {
         URL url = getClass().getClassLoader().getResource(resource);
         try {
@@ -0,0 +1,70 @@
+package dk.dbc.marc;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ServeCommandTest {
+    private static HttpServer server;
+    private static final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startServer() {
+        final ServeCommand serveCommand = new ServeCommand();
+        serveCommand.port = 0;
+        serveCommand.threads = 2;
+        server = serveCommand.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void convert() throws Exception {
+        final HttpResponse<String> response = post("format=LINE", "marcxml_minimal.xml");
+        assertThat("status", response.statusCode(), is(200));
+        assertThat("body", response.body(), is("00925njm  22002777a 4500\n001 control1\n100    *a code-a *b code-b\n\n"));
+    }
+
+    @Test
+    void writersAreReusedAcrossRequests() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            final HttpResponse<String> response = post("format=LINE_CONCAT&include-leader=false&mode=strict", "marc_collection.xml");
+            assertThat("status", response.statusCode(), is(200));
+        }
+    }
+
+    @Test
+    void invalidParameter() throws Exception {
+        final HttpResponse<String> response = post("format=NON_EXISTING_FORMAT", "marcxml_minimal.xml");
+        assertThat("status", response.statusCode(), is(400));
+    }
+
+    @Test
+    void erroneousRecords() throws Exception {
+        final HttpResponse<String> response = post("format=LINE", "err.mrc");
+        assertThat("status", response.statusCode(), is(422));
+        assertThat("body", response.body(), containsString("Record number 1"));
+    }
+
+    private HttpResponse<String> post(String query, String resource) throws Exception {
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + server.getAddress().getPort() + ServeCommand.CONVERT_PATH + "?" + query))
+                .POST(HttpRequest.BodyPublishers.ofFile(Paths.get(getClass().getClassLoader().getResource(resource).toURI())))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Projection of MARC records onto a selected set of fields and subfields.
+ * <p>
+ * Projections are parsed from a comma separated list of tags, each tag
+ * optionally followed by {@code $} and the subfield codes to keep, eg.
+ * {@code 001,245$ac,6..}, where a dot in a tag matches any character.
+ * A tag without subfield codes keeps the whole field. Data fields left
+ * without subfields are removed. The leader is always kept.
+ * </p>
+ * <p>
+ * Projected records are new records sharing fields kept as a whole with
+ * the original record, which is not modified. Projections are immutable
+ * and thread-safe.
+ * </p>
+ */
+public class FieldProjection implements UnaryOperator<MarcRecord> {
+    private final String specification;
+    private final List<Selection> selections;
+
+    private FieldProjection(String specification, List<Selection> selections) {
+        this.specification = specification;
+        this.selections = selections;
+    }
+
+    /**
+     * Parses projection
+     * @param specification comma separated list of tags with optional subfield codes
+     * @return new projection
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static FieldProjection parse(String specification) {
+        final List<Selection> selections = new ArrayList<>();
+        for (String entry : specification.split(",")) {
+            final String trimmed = entry.trim();
+            final int dollar = trimmed.indexOf('$');
+            final String tag = dollar < 0 ? trimmed : trimmed.substring(0, dollar);
+            final String codes = dollar < 0 ? null : trimmed.substring(dollar + 1).replace("$", "");
+            if (tag.length() != 3 || codes != null && codes.isEmpty()) {
+                throw new IllegalArgumentException("Invalid field selection '" + trimmed + "' in " + specification);
+            }
+            selections.add(new Selection(tag, codes));
+        }
+        return new FieldProjection(specification, selections);
+    }
+
+    /**
+     * Projects record
+     * @param record record to project, not modified
+     * @return new record holding only the selected fields and subfields
+     */
+    @Override
+    public MarcRecord apply(MarcRecord record) {
+        final MarcRecord projected = new MarcRecord().setLeader(record.getLeader());
+        for (Field field : record.getFields()) {
+            final Field kept = project(field);
+            if (kept != null) {
+                projected.addField(kept);
+            }
+        }
+        return projected;
+    }
+
+    @Override
+    public String toString() {
+        return specification;
+    }
+
+    private Field project(Field field) {
+        final String tag = field.getTag();
+        String codes = null;
+        boolean selected = false;
+        for (Selection selection : selections) {
+            if (selection.matches(tag)) {
+                if (selection.codes == null || !(field instanceof DataField)) {
+                    return field;
+                }
+                selected = true;
+                codes = codes == null ? selection.codes : codes + selection.codes;
+            }
+        }
+        if (!selected) {
+            return null;
+        }
+        final DataField dataField = (DataField) field;
+        final DataField projected = new DataField()
+                .setTag(tag)
+                .setInd1(dataField.getInd1())
+                .setInd2(dataField.getInd2())
+                .setInd3(dataField.getInd3());
+        boolean empty = true;
+        for (SubField subField : dataField.getSubFields()) {
+            if (codes.indexOf(subField.getCode()) >= 0) {
+                projected.addSubField(subField);
+                empty = false;
+            }
+        }
+        return empty ? null : projected;
+    }
+
+    private static class Selection {
+        private final String tag;
+        private final String codes;
+
+        Selection(String tag, String codes) {
+            this.tag = tag;
+            this.codes = codes;
+        }
+
+        boolean matches(String fieldTag) {
+            if (fieldTag == null || fieldTag.length() != tag.length()) {
+                return false;
+            }
+            for (int i = 0; i < tag.length(); i++) {
+                if (tag.charAt(i) != '.' && tag.charAt(i) != fieldTag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+
+import java.util.List;
+
+/**
+ * Indexed access to the fields of a record, allowing fields to be
+ * selected by tag before they are decoded
+ */
+interface FieldSource {
+    int getFieldCount();
+
+    boolean hasTag(int index, String tag);
+
+    Field getField(int index);
+
+    static FieldSource of(MarcRecord record) {
+        final List<Field> fields = record.getFields();
+        return new FieldSource() {
+            @Override
+            public int getFieldCount() {
+                return fields.size();
+            }
+
+            @Override
+            public boolean hasTag(int index, String tag) {
+                return tag.equals(fields.get(index).getTag());
+            }
+
+            @Override
+            public Field getField(int index) {
+                return fields.get(index);
+            }
+        };
+    }
+}
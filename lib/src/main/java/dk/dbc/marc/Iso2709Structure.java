@@ -0,0 +1,141 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+/**
+ * Structural validation of raw ISO2709 records, looking only at the
+ * leader and the directory without decoding any field data.
+ */
+public final class Iso2709Structure {
+    public static final int LEADER_LENGTH = 24;
+    public static final int RECORD_LENGTH_SIZE = 5;
+    public static final int MAX_RECORD_LENGTH = 99999;
+    public static final byte FIELD_TERMINATOR = 0x1E;
+    public static final byte RECORD_TERMINATOR = 0x1D;
+
+    /* Leader, directory terminator and record terminator */
+    private static final int MIN_RECORD_LENGTH = LEADER_LENGTH + 2;
+    static final int BASE_ADDRESS_OFFSET = 12;
+    static final int BASE_ADDRESS_SIZE = 5;
+    static final int LENGTH_OF_FIELD_LENGTH_OFFSET = 20;
+    static final int LENGTH_OF_STARTING_POSITION_OFFSET = 21;
+    static final int TAG_SIZE = 3;
+
+    private Iso2709Structure() {}
+
+    /**
+     * @param leader bytes starting with at least the record length part of a leader
+     * @return record length stated by the leader or -1 if not a valid length
+     */
+    public static int recordLength(byte[] leader) {
+        return recordLength(leader, 0);
+    }
+
+    /**
+     * @param bytes buffer holding at least the record length part of a leader
+     * @param offset offset of the leader in the buffer
+     * @return record length stated by the leader or -1 if not a valid length
+     */
+    public static int recordLength(byte[] bytes, int offset) {
+        final int recordLength = parseNumber(bytes, offset, RECORD_LENGTH_SIZE);
+        return recordLength >= MIN_RECORD_LENGTH ? recordLength : -1;
+    }
+
+    /**
+     * @param leader leader bytes
+     * @return base address of data stated by the leader or -1 if not a valid address
+     */
+    public static int baseAddress(byte[] leader) {
+        return baseAddress(leader, 0);
+    }
+
+    /**
+     * @param bytes buffer holding a leader
+     * @param offset offset of the leader in the buffer
+     * @return base address of data stated by the leader or -1 if not a valid address
+     */
+    public static int baseAddress(byte[] bytes, int offset) {
+        final int baseAddress = parseNumber(bytes, offset + BASE_ADDRESS_OFFSET, BASE_ADDRESS_SIZE);
+        return baseAddress > LEADER_LENGTH ? baseAddress : -1;
+    }
+
+    /**
+     * Validates leader and directory of a record
+     * @param header record bytes containing at least leader and directory,
+     *               ie. everything up to the base address of data
+     * @param headerLength number of valid bytes in header
+     * @param recordLength total length of the record
+     * @return description of the first structural error found or null if the header is valid
+     */
+    public static String validateHeader(byte[] header, int headerLength, int recordLength) {
+        return validateHeader(header, 0, headerLength, recordLength);
+    }
+
+    /**
+     * Validates leader and directory of a record
+     * @param bytes buffer holding at least leader and directory of the record
+     * @param offset offset of the record in the buffer
+     * @param headerLength number of valid bytes in the buffer from the offset
+     * @param recordLength total length of the record
+     * @return description of the first structural error found or null if the header is valid
+     */
+    public static String validateHeader(byte[] bytes, int offset, int headerLength, int recordLength) {
+        if (headerLength < LEADER_LENGTH) {
+            return "Record is shorter than the leader";
+        }
+        if (recordLength(bytes, offset) != recordLength) {
+            return "Invalid record length in leader";
+        }
+        final int baseAddress = baseAddress(bytes, offset);
+        if (baseAddress < 0 || baseAddress >= recordLength) {
+            return "Invalid base address of data in leader";
+        }
+        if (headerLength < baseAddress) {
+            return "Record is shorter than its directory";
+        }
+        if (bytes[offset + baseAddress - 1] != FIELD_TERMINATOR) {
+            return "Directory is not terminated by a field terminator";
+        }
+        final int lengthOfFieldLength = parseNumber(bytes, offset + LENGTH_OF_FIELD_LENGTH_OFFSET, 1);
+        final int lengthOfStartingPosition = parseNumber(bytes, offset + LENGTH_OF_STARTING_POSITION_OFFSET, 1);
+        if (lengthOfFieldLength < 1 || lengthOfStartingPosition < 1) {
+            return "Invalid entry map in leader";
+        }
+        final int entrySize = TAG_SIZE + lengthOfFieldLength + lengthOfStartingPosition;
+        final int directoryLength = baseAddress - 1 - LEADER_LENGTH;
+        if (directoryLength % entrySize != 0) {
+            return "Directory length is not a multiple of the entry size";
+        }
+        final int dataLength = recordLength - baseAddress - 1;
+        for (int entry = LEADER_LENGTH; entry < baseAddress - 1; entry += entrySize) {
+            final int fieldLength = parseNumber(bytes, offset + entry + TAG_SIZE, lengthOfFieldLength);
+            final int startingPosition = parseNumber(bytes, offset + entry + TAG_SIZE + lengthOfFieldLength,
+                    lengthOfStartingPosition);
+            if (fieldLength < 1 || startingPosition < 0) {
+                return "Invalid directory entry at offset " + entry;
+            }
+            if (startingPosition + fieldLength > dataLength) {
+                return "Directory entry at offset " + entry + " points beyond the end of the record";
+            }
+        }
+        return null;
+    }
+
+    static int parseNumber(byte[] bytes, int offset, int length) {
+        if (bytes.length < offset + length) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = bytes[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+}
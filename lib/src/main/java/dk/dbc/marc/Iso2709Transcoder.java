@@ -0,0 +1,115 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import java.nio.charset.Charset;
+
+/**
+ * Converts raw ISO2709 records from one charset to another without reading
+ * them into a {@link dk.dbc.marc.binding.MarcRecord}.
+ * <p>
+ * The data of each field is transcoded using {@link TranscodingCharset#transcode},
+ * and the directory is rebuilt for the new field lengths with the standard entry
+ * map of four digit field lengths and five digit starting positions. Fields are
+ * written in directory order. The rest of the leader is copied unchanged.
+ * </p>
+ * <p>
+ * Records must have been validated by {@link Iso2709Structure#validateHeader}.
+ * Instances are thread-safe.
+ * </p>
+ */
+public class Iso2709Transcoder {
+    private static final int ENTRY_SIZE = Iso2709Structure.TAG_SIZE + 4 + 5;
+    private static final int MAX_FIELD_LENGTH = 9999;
+
+    private final Charset from;
+    private final Charset to;
+
+    /**
+     * @param from charset of the input records, see {@link TranscodingCharset#of}
+     * @param to charset of the output records
+     */
+    public Iso2709Transcoder(Charset from, Charset to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param record buffer holding a valid record
+     * @param offset offset of the record in the buffer
+     * @return transcoded record, or null if it does not fit in an ISO2709 record
+     */
+    public byte[] transcode(byte[] record, int offset) {
+        final int baseAddress = Iso2709Structure.baseAddress(record, offset);
+        final int lengthOfFieldLength = Iso2709Structure.parseNumber(record,
+                offset + Iso2709Structure.LENGTH_OF_FIELD_LENGTH_OFFSET, 1);
+        final int lengthOfStartingPosition = Iso2709Structure.parseNumber(record,
+                offset + Iso2709Structure.LENGTH_OF_STARTING_POSITION_OFFSET, 1);
+        final int entrySize = Iso2709Structure.TAG_SIZE + lengthOfFieldLength + lengthOfStartingPosition;
+        final int entries = (baseAddress - 1 - Iso2709Structure.LEADER_LENGTH) / entrySize;
+
+        final byte[][] fields = new byte[entries][];
+        int dataLength = 0;
+        for (int i = 0; i < entries; i++) {
+            final int entry = offset + Iso2709Structure.LEADER_LENGTH + i * entrySize;
+            final int fieldLength = Iso2709Structure.parseNumber(record, entry + Iso2709Structure.TAG_SIZE,
+                    lengthOfFieldLength);
+            final int fieldStart = offset + baseAddress + Iso2709Structure.parseNumber(record,
+                    entry + Iso2709Structure.TAG_SIZE + lengthOfFieldLength, lengthOfStartingPosition);
+            // The field terminator is kept as is
+            final int terminated = record[fieldStart + fieldLength - 1] == Iso2709Structure.FIELD_TERMINATOR ? 1 : 0;
+            final byte[] data = TranscodingCharset.transcode(record, fieldStart, fieldLength - terminated, from, to);
+            if (data.length + terminated > MAX_FIELD_LENGTH) {
+                return null;
+            }
+            fields[i] = data;
+            dataLength += data.length + terminated;
+        }
+
+        final int newBaseAddress = Iso2709Structure.LEADER_LENGTH + entries * ENTRY_SIZE + 1;
+        final int recordLength = newBaseAddress + dataLength + 1;
+        if (recordLength > Iso2709Structure.MAX_RECORD_LENGTH) {
+            return null;
+        }
+        final byte[] transcoded = new byte[recordLength];
+        System.arraycopy(record, offset, transcoded, 0, Iso2709Structure.LEADER_LENGTH);
+        writeNumber(transcoded, 0, Iso2709Structure.RECORD_LENGTH_SIZE, recordLength);
+        writeNumber(transcoded, Iso2709Structure.BASE_ADDRESS_OFFSET, Iso2709Structure.BASE_ADDRESS_SIZE,
+                newBaseAddress);
+        transcoded[Iso2709Structure.LENGTH_OF_FIELD_LENGTH_OFFSET] = '4';
+        transcoded[Iso2709Structure.LENGTH_OF_STARTING_POSITION_OFFSET] = '5';
+
+        int position = newBaseAddress;
+        for (int i = 0; i < entries; i++) {
+            final int entry = offset + Iso2709Structure.LEADER_LENGTH + i * entrySize;
+            final int fieldStart = offset + baseAddress + Iso2709Structure.parseNumber(record,
+                    entry + Iso2709Structure.TAG_SIZE + lengthOfFieldLength, lengthOfStartingPosition);
+            final int fieldLength = Iso2709Structure.parseNumber(record, entry + Iso2709Structure.TAG_SIZE,
+                    lengthOfFieldLength);
+            final boolean terminated = record[fieldStart + fieldLength - 1] == Iso2709Structure.FIELD_TERMINATOR;
+            final int newEntry = Iso2709Structure.LEADER_LENGTH + i * ENTRY_SIZE;
+            final int newFieldLength = fields[i].length + (terminated ? 1 : 0);
+            System.arraycopy(record, entry, transcoded, newEntry, Iso2709Structure.TAG_SIZE);
+            writeNumber(transcoded, newEntry + Iso2709Structure.TAG_SIZE, 4, newFieldLength);
+            writeNumber(transcoded, newEntry + Iso2709Structure.TAG_SIZE + 4, 5, position - newBaseAddress);
+            System.arraycopy(fields[i], 0, transcoded, position, fields[i].length);
+            if (terminated) {
+                transcoded[position + fields[i].length] = Iso2709Structure.FIELD_TERMINATOR;
+            }
+            position += newFieldLength;
+        }
+        transcoded[newBaseAddress - 1] = Iso2709Structure.FIELD_TERMINATOR;
+        transcoded[recordLength - 1] = Iso2709Structure.RECORD_TERMINATOR;
+        return transcoded;
+    }
+
+    private static void writeNumber(byte[] bytes, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * ISO2709 reader only parsing the records accepted by a selector.
+ * <p>
+ * Every record is first presented to the selector as a {@link LazyIso2709Record},
+ * so fields not inspected by the selector are never decoded. Records not selected
+ * are skipped, while selected records are parsed completely by {@link Iso2709Reader}.
+ * Records with an invalid leader or directory are always handed to {@link Iso2709Reader},
+ * so that they are reported just as when reading the input using that reader. Should
+ * that reader still manage to parse such a record, the parsed record is selected by
+ * a selector of parsed records instead.
+ * </p>
+ */
+public class LazyIso2709Reader implements MarcReader {
+    private final InputStream in;
+    private final Charset encoding;
+    private final Predicate<LazyIso2709Record> selector;
+    private final Predicate<MarcRecord> parsedSelector;
+    private byte[] buffer = new byte[Iso2709Structure.MAX_RECORD_LENGTH];
+    private int recordCount = 0;
+
+    /**
+     * @param in input stream, should be buffered
+     * @param encoding character set of the records
+     * @param selector predicate deciding which records to parse, the record view is only valid during the test
+     * @param parsedSelector predicate deciding which records to return of those with an invalid
+     *                       leader or directory, which could nevertheless be parsed
+     */
+    public LazyIso2709Reader(InputStream in, Charset encoding, Predicate<LazyIso2709Record> selector,
+                             Predicate<MarcRecord> parsedSelector) {
+        this.in = in;
+        this.encoding = encoding;
+        this.selector = selector;
+        this.parsedSelector = parsedSelector;
+    }
+
+    /**
+     * Reads the next selected record
+     * @return next selected record or null if there are no more records
+     * @throws MarcReaderException if reading input failed or the record could not be parsed
+     */
+    @Override
+    public MarcRecord read() throws MarcReaderException {
+        try {
+            int length = readRecord();
+            while (length > 0) {
+                recordCount++;
+                LazyIso2709Record record = null;
+                try {
+                    record = LazyIso2709Record.parse(buffer, 0, length, encoding);
+                } catch (IllegalArgumentException e) {
+                    final MarcRecord invalid = new Iso2709Reader(
+                            new ByteArrayInputStream(buffer, 0, length), encoding).read();
+                    if (invalid != null && parsedSelector.test(invalid)) {
+                        return invalid;
+                    }
+                }
+                if (record != null && selector.test(record)) {
+                    return record.toMarcRecord();
+                }
+                length = readRecord();
+            }
+            return null;
+        } catch (IOException e) {
+            throw new MarcReaderException("Unable to read record", e);
+        }
+    }
+
+    /**
+     * @return number of records read so far, both selected and skipped
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /* Reads a record into the buffer by its leader record length, or up to the
+       next record terminator if the length is invalid, and returns its length */
+    private int readRecord() throws IOException {
+        int length = readFully(0, Iso2709Structure.RECORD_LENGTH_SIZE);
+        if (length == 0) {
+            return 0;
+        }
+        final int recordLength = length < Iso2709Structure.RECORD_LENGTH_SIZE
+                ? -1 : Iso2709Structure.recordLength(buffer);
+        if (recordLength > 0) {
+            length += readFully(length, recordLength - length);
+            if (length < recordLength || buffer[length - 1] == Iso2709Structure.RECORD_TERMINATOR) {
+                return length;
+            }
+        }
+        if (buffer[length - 1] == Iso2709Structure.RECORD_TERMINATOR) {
+            return length;
+        }
+        int b = in.read();
+        while (b >= 0) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = (byte) b;
+            if (b == Iso2709Structure.RECORD_TERMINATOR) {
+                break;
+            }
+            b = in.read();
+        }
+        return length;
+    }
+
+    private int readFully(int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int bytesRead = in.read(buffer, offset + total, length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * View of a raw ISO2709 record which only parses the leader and the
+ * directory up front, while fields are decoded and charset converted
+ * when first accessed.
+ * <p>
+ * Inspecting a few fields of a record, eg. when filtering records or
+ * looking up their 001, thereby avoids decoding the remaining fields.
+ * Use {@link #toMarcRecord()} to get a complete record for writing.
+ * </p>
+ * <p>
+ * The view refers to the given record bytes, which must not be modified
+ * while the view is in use.
+ * </p>
+ */
+public class LazyIso2709Record implements FieldSource {
+    private static final byte SUBFIELD_DELIMITER = 0x1F;
+    private static final int TAG_SIZE = Iso2709Structure.TAG_SIZE;
+    private static final int INDICATOR_COUNT_OFFSET = 10;
+    private static final int DEFAULT_INDICATOR_COUNT = 2;
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+    private final Charset encoding;
+    private final int dataStart;
+    private final int indicatorCount;
+    private final int[] fieldStarts;
+    private final int[] fieldLengths;
+    private final int directoryStart;
+    private final int entrySize;
+    private final Field[] fields;
+
+    private LazyIso2709Record(byte[] bytes, int offset, int length, Charset encoding, int baseAddress,
+                              int lengthOfFieldLength, int lengthOfStartingPosition) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.encoding = encoding;
+        this.dataStart = offset + baseAddress;
+        this.directoryStart = offset + Iso2709Structure.LEADER_LENGTH;
+        this.entrySize = TAG_SIZE + lengthOfFieldLength + lengthOfStartingPosition;
+        final int fieldCount = (baseAddress - 1 - Iso2709Structure.LEADER_LENGTH) / entrySize;
+        this.fieldStarts = new int[fieldCount];
+        this.fieldLengths = new int[fieldCount];
+        this.fields = new Field[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            final int entry = directoryStart + i * entrySize;
+            fieldLengths[i] = Iso2709Structure.parseNumber(bytes, entry + TAG_SIZE, lengthOfFieldLength);
+            fieldStarts[i] = dataStart + Iso2709Structure.parseNumber(bytes, entry + TAG_SIZE + lengthOfFieldLength,
+                    lengthOfStartingPosition);
+        }
+        final int indicators = Iso2709Structure.parseNumber(bytes, offset + INDICATOR_COUNT_OFFSET, 1);
+        this.indicatorCount = indicators > 0 ? indicators : DEFAULT_INDICATOR_COUNT;
+    }
+
+    /**
+     * Parses leader and directory of a record
+     * @param bytes buffer holding the record
+     * @param offset offset of the record in the buffer
+     * @param length length of the record
+     * @param encoding character set of the record
+     * @return record view
+     * @throws IllegalArgumentException if the leader or directory is invalid
+     */
+    public static LazyIso2709Record parse(byte[] bytes, int offset, int length, Charset encoding) {
+        final String error = Iso2709Structure.validateHeader(bytes, offset, length, length);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        return new LazyIso2709Record(bytes, offset, length, encoding, Iso2709Structure.baseAddress(bytes, offset),
+                Iso2709Structure.parseNumber(bytes, offset + Iso2709Structure.LENGTH_OF_FIELD_LENGTH_OFFSET, 1),
+                Iso2709Structure.parseNumber(bytes, offset + Iso2709Structure.LENGTH_OF_STARTING_POSITION_OFFSET, 1));
+    }
+
+    /**
+     * @return leader as text
+     */
+    public String getLeader() {
+        return new String(bytes, offset, Iso2709Structure.LEADER_LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * @param index index of field in directory order
+     * @return tag of field
+     */
+    public String getTag(int index) {
+        return new String(bytes, directoryStart + index * entrySize, TAG_SIZE, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public boolean hasTag(int index, String tag) {
+        if (tag.length() != TAG_SIZE) {
+            return false;
+        }
+        final int entry = directoryStart + index * entrySize;
+        for (int i = 0; i < TAG_SIZE; i++) {
+            if (bytes[entry + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes field, or returns the field decoded by a previous call
+     * @param index index of field in directory order
+     * @return control field, or data field if the field data contains subfields
+     */
+    @Override
+    public Field getField(int index) {
+        Field field = fields[index];
+        if (field == null) {
+            field = decode(index);
+            fields[index] = field;
+        }
+        return field;
+    }
+
+    /**
+     * @return fields in directory order, each decoded when first accessed
+     */
+    public List<Field> getFields() {
+        return new AbstractList<Field>() {
+            @Override
+            public Field get(int index) {
+                return getField(index);
+            }
+
+            @Override
+            public int size() {
+                return fields.length;
+            }
+        };
+    }
+
+    /**
+     * Parses the complete record using {@link Iso2709Reader}
+     * @return record identical to the one read by {@link Iso2709Reader} from the same bytes
+     * @throws MarcReaderException if the record could not be parsed
+     */
+    public MarcRecord toMarcRecord() throws MarcReaderException {
+        return new Iso2709Reader(new ByteArrayInputStream(bytes, offset, length), encoding).read();
+    }
+
+    private Field decode(int index) {
+        final String tag = getTag(index);
+        final int start = fieldStarts[index];
+        // Exclude field terminator
+        int end = start + fieldLengths[index];
+        if (end > start && bytes[end - 1] == Iso2709Structure.FIELD_TERMINATOR) {
+            end--;
+        }
+        final int subfieldsStart = start + indicatorCount;
+        if (subfieldsStart >= end || bytes[subfieldsStart] != SUBFIELD_DELIMITER) {
+            return new ControlField().setTag(tag).setData(new String(bytes, start, end - start, encoding));
+        }
+        final DataField dataField = new DataField().setTag(tag);
+        dataField.setInd1((char) (bytes[start] & 0xFF));
+        if (indicatorCount > 1) {
+            dataField.setInd2((char) (bytes[start + 1] & 0xFF));
+        }
+        if (indicatorCount > 2) {
+            dataField.setInd3((char) (bytes[start + 2] & 0xFF));
+        }
+        int position = subfieldsStart;
+        while (position < end) {
+            // Position is at a subfield delimiter, followed by the subfield code
+            int dataEnd = position + 2;
+            while (dataEnd < end && bytes[dataEnd] != SUBFIELD_DELIMITER) {
+                dataEnd++;
+            }
+            if (position + 1 < end) {
+                final int dataOffset = Math.min(position + 2, dataEnd);
+                dataField.addSubField(new SubField()
+                        .setCode((char) (bytes[position + 1] & 0xFF))
+                        .setData(new String(bytes, dataOffset, dataEnd - dataOffset, encoding)));
+            }
+            position = dataEnd;
+        }
+        return dataField;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Turns line format output into paste-into-code friendly string literals,
+ * one quoted literal per line, joined by {@code " +\n"}.
+ * <p>
+ * For encodings where double quote and newline can only ever be represented
+ * by their ASCII bytes the escaping is done in a single pass over the bytes,
+ * for any other encoding it is done in a single pass over the decoded characters.
+ * </p>
+ * <p>
+ * Trailing empty lines are dropped, while empty lines between non-empty
+ * lines are kept.
+ * </p>
+ */
+final class LineConcatEscaper {
+    /* Ends a line which is followed by another line: \n" +\n" */
+    private static final byte[] LINE_SEPARATOR = {'\\', 'n', '"', ' ', '+', '\n', '"'};
+    /* Ends the last line: \n"\n */
+    private static final byte[] LAST_LINE_END = {'\\', 'n', '"', '\n'};
+
+    private LineConcatEscaper() {}
+
+    static byte[] escape(byte[] bytes, Charset encoding) {
+        if (isAsciiTransparent(encoding)) {
+            return escape(bytes);
+        }
+        return escape(new String(bytes, encoding)).getBytes(encoding);
+    }
+
+    static byte[] escape(byte[] bytes) {
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == '\n') {
+            end--;
+        }
+        if (end == 0 && bytes.length > 0) {
+            // Nothing but newlines
+            return new byte[]{'\n'};
+        }
+
+        byte[] escaped = new byte[end + (end >> 3) + LINE_SEPARATOR.length + LAST_LINE_END.length];
+        int pos = 0;
+        escaped[pos++] = '"';
+        for (int i = 0; i < end; i++) {
+            if (escaped.length - pos < LINE_SEPARATOR.length + LAST_LINE_END.length) {
+                escaped = Arrays.copyOf(escaped, escaped.length + (escaped.length >> 1));
+            }
+            final byte b = bytes[i];
+            if (b == '"') {
+                escaped[pos++] = '\\';
+                escaped[pos++] = '"';
+            } else if (b == '\n') {
+                System.arraycopy(LINE_SEPARATOR, 0, escaped, pos, LINE_SEPARATOR.length);
+                pos += LINE_SEPARATOR.length;
+            } else {
+                escaped[pos++] = b;
+            }
+        }
+        System.arraycopy(LAST_LINE_END, 0, escaped, pos, LAST_LINE_END.length);
+        pos += LAST_LINE_END.length;
+        return pos == escaped.length ? escaped : Arrays.copyOf(escaped, pos);
+    }
+
+    static String escape(String string) {
+        int end = string.length();
+        while (end > 0 && string.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if (end == 0 && !string.isEmpty()) {
+            return "\n";
+        }
+
+        final StringBuilder escaped = new StringBuilder(end + (end >> 3) + LINE_SEPARATOR.length + LAST_LINE_END.length);
+        escaped.append('"');
+        for (int i = 0; i < end; i++) {
+            final char c = string.charAt(i);
+            if (c == '"') {
+                escaped.append("\\\"");
+            } else if (c == '\n') {
+                escaped.append("\\n\" +\n\"");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append("\\n\"\n").toString();
+    }
+
+    private static boolean isAsciiTransparent(Charset encoding) {
+        return encoding.equals(StandardCharsets.UTF_8)
+                || encoding.equals(StandardCharsets.US_ASCII)
+                || encoding.name().startsWith("ISO-8859-")
+                || encoding instanceof DanMarc2Charset;
+    }
+}
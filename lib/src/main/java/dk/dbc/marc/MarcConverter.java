@@ -0,0 +1,634 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.DanMarc2LineFormatReader;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.JsonLineReader;
+import dk.dbc.marc.reader.LineFormatReader;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
+import dk.dbc.marc.writer.Iso2709MarcRecordWriter;
+import dk.dbc.marc.writer.JsonLineWriter;
+import dk.dbc.marc.writer.LineFormatWriter;
+import dk.dbc.marc.writer.MarcWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts MARC records between formats, as done by the mconv command line
+ * tool, for use in other applications.
+ * <p>
+ * Input is read as a {@link Stream} of records, the input format being deduced
+ * from the input itself. Streams of uncompressed ISO2709 and JSONL files can
+ * be split at record boundaries, so that records are read and converted by
+ * all threads of a parallel stream. Records are written to any output stream
+ * or channel in the order of the stream. Input holding erroneous ISO2709
+ * records can be read as a stream of {@link MarcRecordOrError} entries,
+ * so that such records are reported instead of failing the stream.
+ * </p>
+ * <pre>
+ * final MarcConverter converter = new MarcConverter(RecordFormat.JSONL)
+ *         .withInputEncoding(new DanMarc2Charset());
+ * try (Stream&lt;MarcRecord&gt; records = converter.records(path)) {
+ *     converter.write(records.parallel(), out);
+ * }
+ * </pre>
+ * <p>
+ * A converter must not be reconfigured while in use, but can otherwise be
+ * shared by threads, while the readers and writers it creates are not thread-safe.
+ * </p>
+ */
+public class MarcConverter {
+    public static final int PUSHBACK_BUFFER_SIZE = 1000;
+
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    private static final int GZIP_BUFFER_SIZE = 65536;
+    private static final int GZIP_MAGIC_1 = 0x1F;
+    private static final int GZIP_MAGIC_2 = 0x8B;
+
+    /**
+     * Output mode, see README.md for a detailed description
+     */
+    public enum Mode {
+        LAX,
+        STRICT
+    }
+
+    private final RecordFormat outputFormat;
+    private Mode mode = Mode.LAX;
+    private Charset inputEncoding = StandardCharsets.UTF_8;
+    private Charset outputEncoding = StandardCharsets.UTF_8;
+    private Boolean includeLeader = null;
+    private Boolean includeWhitespacePadding = null;
+    private boolean asCollection = false;
+    private RecordFilter recordFilter = null;
+    private FieldProjection fieldProjection = null;
+    private Charset iso2709Encoding = null;
+    private Charset writeEncoding = StandardCharsets.UTF_8;
+
+    /**
+     * @param outputFormat format of converted records
+     */
+    public MarcConverter(RecordFormat outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * @param mode output mode
+     * @return this converter
+     */
+    public MarcConverter withMode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * @param inputEncoding character set of the input records
+     * @return this converter
+     */
+    public MarcConverter withInputEncoding(Charset inputEncoding) {
+        this.inputEncoding = inputEncoding;
+        return this;
+    }
+
+    /**
+     * @param outputEncoding character set of the output records
+     * @return this converter
+     */
+    public MarcConverter withOutputEncoding(Charset outputEncoding) {
+        this.outputEncoding = outputEncoding;
+        // DANMARC2 and MARC-8 ISO2709 output is encoded using lookup tables,
+        // other writers may depend on the class of the charset
+        this.writeEncoding = outputFormat == RecordFormat.ISO ? TranscodingCharset.of(outputEncoding) : outputEncoding;
+        return this;
+    }
+
+    /**
+     * @param includeLeader whether to include the leader in line format output,
+     *                      or null for the default of the output mode
+     * @return this converter
+     */
+    public MarcConverter withIncludeLeader(Boolean includeLeader) {
+        this.includeLeader = includeLeader;
+        return this;
+    }
+
+    /**
+     * @param includeWhitespacePadding whether to pad subfields with whitespace in line format
+     *                                 output, or null for the default of the output mode
+     * @return this converter
+     */
+    public MarcConverter withIncludeWhitespacePadding(Boolean includeWhitespacePadding) {
+        this.includeWhitespacePadding = includeWhitespacePadding;
+        return this;
+    }
+
+    /**
+     * @param asCollection whether to output all records in the same collection,
+     *                     requires an output format supporting collections
+     * @return this converter
+     */
+    public MarcConverter withCollection(boolean asCollection) {
+        this.asCollection = asCollection;
+        return this;
+    }
+
+    /**
+     * @param recordFilter filter selecting the records read, or null to read all records
+     * @return this converter
+     */
+    public MarcConverter withFilter(RecordFilter recordFilter) {
+        this.recordFilter = recordFilter;
+        return this;
+    }
+
+    /**
+     * @param fieldProjection projection applied to records before they are written,
+     *                        or null to write all fields
+     * @return this converter
+     */
+    public MarcConverter withProjection(FieldProjection fieldProjection) {
+        this.fieldProjection = fieldProjection;
+        return this;
+    }
+
+    public RecordFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    public Charset getInputEncoding() {
+        return inputEncoding;
+    }
+
+    public Charset getOutputEncoding() {
+        return outputEncoding;
+    }
+
+    /**
+     * Reads the records of a file, transparently decompressing it if gzipped.
+     * <p>
+     * The stream of an uncompressed ISO2709 or JSONL file is split at record
+     * boundaries when processed in parallel. The stream must be closed to
+     * close the file.
+     * </p>
+     * @param path input file
+     * @return stream of the records selected by the filter, in file order
+     * @throws IOException if the file could not be opened
+     * @throws IllegalArgumentException if a record could not be read
+     */
+    public Stream<MarcRecord> records(Path path) throws IOException {
+        return onlyRecords(recordsOrErrors(path, 0));
+    }
+
+    /**
+     * Reads the records of an input stream sequentially, transparently
+     * decompressing it if gzipped. Closing the returned stream does not
+     * close the input stream.
+     * @param in input stream
+     * @return stream of the records selected by the filter, in input order
+     * @throws IOException if the input could not be read
+     * @throws IllegalArgumentException if the input could not be read as MARC records
+     */
+    public Stream<MarcRecord> records(InputStream in) throws IOException {
+        return onlyRecords(recordsOrErrors(in, 0));
+    }
+
+    /**
+     * Reads the records of a file from the given offset, transparently
+     * decompressing it if gzipped, returning ISO2709 records which could not
+     * be read as errors rather than failing the stream.
+     * <p>
+     * The stream of an uncompressed ISO2709 or JSONL file is split at record
+     * boundaries when processed in parallel. The stream must be closed to
+     * close the file.
+     * </p>
+     * @param path input file
+     * @param offset offset of the first record to read, in the decompressed input
+     * @return stream of the records selected by the filter and the erroneous records, in file order
+     * @throws IOException if the file could not be opened
+     * @throws IllegalArgumentException if the file ends before the offset
+     */
+    public Stream<MarcRecordOrError> recordsOrErrors(Path path, long offset) throws IOException {
+        final PushbackInputStream is = new PushbackInputStream(Files.newInputStream(path), PUSHBACK_BUFFER_SIZE);
+        try {
+            if (!isGzipped(is)) {
+                final MarcFormatDeducer.FORMAT format = deduceFormat(is);
+                if (RecordSpliterator.isSupported(format, inputEncoding)) {
+                    is.close();
+                    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                    if (offset > channel.size()) {
+                        channel.close();
+                        throw new IllegalArgumentException("Input " + path + " ends before offset " + offset);
+                    }
+                    return StreamSupport.stream(new RecordSpliterator(this, channel, format, offset), false)
+                            .onClose(() -> closeUnchecked(channel));
+                }
+            }
+            return recordsOrErrors(is, offset).onClose(() -> closeUnchecked(is));
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the records of an input stream sequentially from the given offset,
+     * transparently decompressing it if gzipped, returning ISO2709 records which
+     * could not be read as errors rather than failing the stream. Closing the
+     * returned stream does not close the input stream.
+     * @param in input stream
+     * @param offset offset of the first record to read, in the decompressed input
+     * @return stream of the records selected by the filter and the erroneous records, in input order
+     * @throws IOException if the input could not be read
+     * @throws IllegalArgumentException if the input ends before the offset
+     */
+    public Stream<MarcRecordOrError> recordsOrErrors(InputStream in, long offset) throws IOException {
+        final PushbackInputStream is = open(in);
+        final MarcFormatDeducer.FORMAT format = deduceFormat(is);
+        long skipped = 0;
+        while (skipped < offset) {
+            final long n = is.skip(offset - skipped);
+            if (n <= 0) {
+                if (is.read() < 0) {
+                    throw new IllegalArgumentException("Input ends before offset " + offset);
+                }
+                skipped++;
+            } else {
+                skipped += n;
+            }
+        }
+        return StreamSupport.stream(new RecordSpliterator(this, is, format, offset), false);
+    }
+
+    /**
+     * Writes records to an output stream, the stream being flushed but not closed
+     * @param records records to write, possibly a parallel stream
+     * @param out destination of the converted records
+     * @return number of records written
+     * @throws IOException if writing to the output stream failed
+     * @throws IllegalArgumentException if a record could not be read or converted
+     */
+    public long write(Stream<MarcRecord> records, OutputStream out) throws IOException {
+        final BufferedOutputStream buffered = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+        final StreamingCollectionWriter collectionWriter = asCollection
+                ? new StreamingCollectionWriter(outputEncoding, buffered) : null;
+        // Writers are not thread-safe, so each thread gets its own writers,
+        // one for each variant chosen by the records
+        final ThreadLocal<Map<Boolean, MarcWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+        final long[] count = {0};
+        try {
+            records.map(record -> {
+                final MarcWriter writer = writers.get().computeIfAbsent(isDanMarc2(record), k -> newWriter(record));
+                try {
+                    return convert(writer, record);
+                } catch (MarcWriterException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }).forEachOrdered(bytes -> {
+                try {
+                    if (collectionWriter != null) {
+                        collectionWriter.writeSingletonCollection(bytes);
+                    } else {
+                        buffered.write(bytes);
+                    }
+                    count[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (MarcWriterException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (collectionWriter != null) {
+            collectionWriter.finish();
+        }
+        buffered.flush();
+        return count[0];
+    }
+
+    /**
+     * Writes records to a channel, the channel being left open
+     * @param records records to write, possibly a parallel stream
+     * @param channel destination of the converted records
+     * @return number of records written
+     * @throws IOException if writing to the channel failed
+     * @throws IllegalArgumentException if a record could not be read or converted
+     */
+    public long write(Stream<MarcRecord> records, WritableByteChannel channel) throws IOException {
+        return write(records, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Wraps an input stream for format deduction, transparently decompressing it if gzipped
+     * @param in input stream
+     * @return input stream allowing {@link #PUSHBACK_BUFFER_SIZE} bytes to be pushed back
+     * @throws IOException if the input could not be read
+     */
+    public Input open(InputStream in) throws IOException {
+        final Input is = new Input(in, false);
+        if (isGzipped(is)) {
+            return new Input(new GZIPInputStream(is, GZIP_BUFFER_SIZE), true);
+        }
+        return is;
+    }
+
+    /**
+     * Deduces the MARC format of the input
+     * @param is input stream allowing {@link #PUSHBACK_BUFFER_SIZE} bytes to be pushed back
+     * @return deduced format (ISO2709 is the fallback)
+     */
+    public MarcFormatDeducer.FORMAT deduceFormat(PushbackInputStream is) {
+        final MarcFormatDeducer marcFormatDeducer = new MarcFormatDeducer(PUSHBACK_BUFFER_SIZE);
+
+        Charset sampleEncoding = inputEncoding;
+        if (!(inputEncoding.name().equals("UTF-8"))) {
+            // Don't complicate the format deduction
+            // by introducing the DanMarc2 charset
+            // into the mix.
+            sampleEncoding = StandardCharsets.ISO_8859_1;
+        }
+        return marcFormatDeducer.deduce(is, sampleEncoding);
+    }
+
+    /**
+     * Creates a reader of the given format. With a filter, ISO2709 records
+     * are filtered by the reader before they are parsed, see {@link #isSelected}.
+     * @param is input stream
+     * @param format input format
+     * @return new reader
+     * @throws MarcReaderException if the reader could not be created
+     */
+    public MarcReader newReader(InputStream is, MarcFormatDeducer.FORMAT format) throws MarcReaderException {
+        Charset encoding = inputEncoding;
+        if (format == MarcFormatDeducer.FORMAT.LINE
+                && encoding instanceof DanMarc2Charset) {
+            // For line format we need a special
+            // variant of the DanMarc2 charset.
+            encoding = new DanMarc2Charset(DanMarc2Charset.Variant.LINE_FORMAT);
+        }
+
+        switch (format) {
+            case JSONL:
+                return new JsonLineReader(is, encoding);
+            case LINE:
+                return new LineFormatReader(is, encoding);
+            case DANMARC2_LINE:
+                return new DanMarc2LineFormatReader(is, encoding);
+            case MARCXCHANGE:
+            case MARCXML:
+                // Collections are streamed one record at a time
+                return new StreamingMarcXmlReader(is, encoding);
+            default:
+                encoding = getIso2709Encoding();
+                if (recordFilter != null) {
+                    return new LazyIso2709Reader(new BufferedInputStream(is, READ_BUFFER_SIZE), encoding,
+                            recordFilter::test, recordFilter::test);
+                }
+                return new Iso2709Reader(is, encoding);
+        }
+    }
+
+    /**
+     * Records not matching the filter are skipped before they are written,
+     * unless the reader has already skipped them
+     * @param reader reader created by {@link #newReader}
+     * @param record record read by the reader
+     * @return true if the record is selected by the filter
+     */
+    public boolean isSelected(MarcReader reader, MarcRecord record) {
+        return recordFilter == null || reader instanceof LazyIso2709Reader || recordFilter.test(record);
+    }
+
+    /**
+     * Creates a writer of the output format. Line format writers come in
+     * a DANMARC2 and a MARC21 variant, chosen by the given record.
+     * @param record record deciding the writer variant
+     * @return new writer
+     * @throws IllegalArgumentException if collections are not supported by the output format
+     */
+    public MarcWriter newWriter(MarcRecord record) {
+        MarcWriter marcWriter;
+        switch (outputFormat) {
+            case LINE: // pass-through
+            case LINE_CONCAT:
+                marcWriter = getLineFormatWriterVariant(record);
+                break;
+            case ISO:
+                marcWriter = new Iso2709MarcRecordWriter();
+                break;
+            case JSONL:
+                marcWriter = new JsonLineWriter();
+                break;
+            case MARCXCHANGE:
+                marcWriter = getMarcXchangeWriter();
+                break;
+            default:
+                throw new IllegalStateException("Unhandled format: " + outputFormat);
+        }
+
+        if (asCollection && !marcWriter.canOutputCollection()) {
+                throw new IllegalArgumentException("Output format " + outputFormat + " does not support collections");
+        }
+
+        return marcWriter;
+    }
+
+    /**
+     * Converts a record. In collection output records are rendered as
+     * single-record collections to be joined by a {@link StreamingCollectionWriter}.
+     * @param marcWriter writer created by {@link #newWriter}
+     * @param record record to convert
+     * @return converted record
+     * @throws MarcWriterException if the record could not be converted
+     */
+    public byte[] convert(MarcWriter marcWriter, MarcRecord record) throws MarcWriterException {
+        if (fieldProjection != null) {
+            // Projected after the writer variant has been chosen from the complete record
+            record = fieldProjection.apply(record);
+        }
+        if (asCollection) {
+            return marcWriter.writeCollection(Collections.singletonList(record), writeEncoding);
+        }
+        return marcWriter.write(record, writeEncoding);
+    }
+
+    /**
+     * @param record record to examine
+     * @return true if the record is a DANMARC2 record, having no control fields
+     */
+    public static boolean isDanMarc2(MarcRecord record) {
+        final List<Field> fields = record.getFields();
+        return !fields.isEmpty() && fields.get(0) instanceof DataField;
+    }
+
+    /**
+     * @param is input stream allowing two bytes to be pushed back
+     * @return true if the input starts with the gzip magic bytes
+     * @throws IOException if the input could not be read
+     */
+    public static boolean isGzipped(PushbackInputStream is) throws IOException {
+        final byte[] magic = new byte[2];
+        int bytesRead = 0;
+        while (bytesRead < magic.length) {
+            final int n = is.read(magic, bytesRead, magic.length - bytesRead);
+            if (n < 0) {
+                break;
+            }
+            bytesRead += n;
+        }
+        if (bytesRead > 0) {
+            is.unread(magic, 0, bytesRead);
+        }
+        return bytesRead == 2 && (magic[0] & 0xFF) == GZIP_MAGIC_1 && (magic[1] & 0xFF) == GZIP_MAGIC_2;
+    }
+
+    /**
+     * DANMARC2 and MARC-8 ISO2709 input is decoded using lookup tables,
+     * which are only built once for all readers
+     * @return input encoding, wrapped by {@link TranscodingCharset} if it benefits from it
+     */
+    public synchronized Charset getIso2709Encoding() {
+        if (iso2709Encoding == null || !iso2709Encoding.equals(inputEncoding)) {
+            iso2709Encoding = TranscodingCharset.of(inputEncoding);
+        }
+        return iso2709Encoding;
+    }
+
+    private MarcWriter getLineFormatWriterVariant(MarcRecord record) {
+        if (isDanMarc2(record)) {
+            final DanMarc2LineFormatWriter danMarc2LineFormatWriter = outputFormat == RecordFormat.LINE
+                    ? new DanMarc2LineFormatWriter() : new DanMarc2LineFormatConcatWriter();
+
+            if (mode == Mode.LAX) {
+                danMarc2LineFormatWriter
+                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
+                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, true)
+                        .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, true)
+                        .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, false);
+            } else {
+                danMarc2LineFormatWriter
+                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, true)
+                        .setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                        .setProperty(DanMarc2LineFormatWriter.Property.USE_NEWLINE_END_OF_RECORD, false)
+                        .setProperty(DanMarc2LineFormatWriter.Property.USE_WRAPPED_LINES, true);
+            }
+
+            if (includeLeader != null) {
+                danMarc2LineFormatWriter.setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_LEADER, includeLeader);
+            }
+            if (includeWhitespacePadding != null) {
+                danMarc2LineFormatWriter.setProperty(DanMarc2LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING,
+                        includeWhitespacePadding);
+            }
+
+            return danMarc2LineFormatWriter;
+        }
+
+        final LineFormatWriter lineFormatWriter = outputFormat == RecordFormat.LINE
+                ? new LineFormatWriter() : new LineFormatConcatWriter();
+
+        if (mode == Mode.LAX) {
+            lineFormatWriter
+                    .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
+                    .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, true)
+                    .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, true);
+        } else {
+            lineFormatWriter
+                    .setProperty(LineFormatWriter.Property.INCLUDE_LEADER, true)
+                    .setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING, false)
+                    .setProperty(LineFormatWriter.Property.USE_STAR_SUBFIELD_MARKER, false);
+        }
+
+        if (includeLeader != null) {
+            lineFormatWriter.setProperty(LineFormatWriter.Property.INCLUDE_LEADER, includeLeader);
+        }
+        if (includeWhitespacePadding != null) {
+            lineFormatWriter.setProperty(LineFormatWriter.Property.INCLUDE_WHITESPACE_PADDING,
+                    includeWhitespacePadding);
+        }
+
+        return lineFormatWriter;
+    }
+
+    private MarcWriter getMarcXchangeWriter() {
+        final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+        if (mode == Mode.LAX) {
+            marcXchangeV1Writer.setProperty(MarcXchangeV1Writer.Property.ADD_XML_DECLARATION, false);
+        } else {
+            marcXchangeV1Writer.setProperty(MarcXchangeV1Writer.Property.ADD_XML_DECLARATION, true);
+        }
+        return marcXchangeV1Writer;
+    }
+
+    /* Records which could not be read fail the stream */
+    private static Stream<MarcRecord> onlyRecords(Stream<MarcRecordOrError> recordsOrErrors) {
+        return recordsOrErrors.filter(entry -> {
+            if (entry.isError()) {
+                throw new IllegalArgumentException(entry.getErrorMessage());
+            }
+            return entry.isRecord();
+        }).map(MarcRecordOrError::getRecord);
+    }
+
+    private static void closeUnchecked(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Input stream returned by {@link #open(InputStream)}, telling whether the input was gzipped
+     */
+    public static class Input extends PushbackInputStream {
+        private final boolean gzipped;
+
+        private Input(InputStream in, boolean gzipped) {
+            super(in, PUSHBACK_BUFFER_SIZE);
+            this.gzipped = gzipped;
+        }
+
+        /**
+         * @return true if the input is decompressed
+         */
+        public boolean isGzipped() {
+            return gzipped;
+        }
+    }
+}
@@ -8,9 +8,19 @@ package dk.dbc.marc;
 import java.io.IOException;
 import java.io.PushbackInputStream;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
 
+/**
+ * Deduces the MARC format of an input stream by inspecting its leading bytes.
+ * <p>
+ * For ASCII compatible encodings the prolog is matched byte by byte against
+ * precomputed signatures. Only when this is inconclusive, ie. when a line
+ * format tag is followed by a non-ASCII indicator, or when the encoding is
+ * not ASCII compatible, the prolog is decoded and matched using regular
+ * expressions.
+ * </p>
+ */
 public class MarcFormatDeducer {
     private static final Pattern VALID_DANMARC2_LINE_FORMAT = Pattern.compile(
             "^\\p{Digit}{3}\\s+?(\\p{IsLatin}|[0-9 ]{2})?\\s?\\*",
@@ -20,6 +30,16 @@ public class MarcFormatDeducer {
             "^\\p{Digit}{3}\\s+?(\\p{IsLatin}|[0-9 ]{2})?\\s?\\$",
             Pattern.MULTILINE);
 
+    private static final byte[] MARCXCHANGE_NAMESPACE =
+            "info:lc/xmlns/marcxchange-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MARCXML_NAMESPACE =
+            "http://www.loc.gov/MARC21/slim".getBytes(StandardCharsets.US_ASCII);
+    private static final String ASCII_SAMPLE = "<{[$* 0123456789abcdefghijklmnopqrstuvwxyz\n";
+
+    private static final int NO_MATCH = 0;
+    private static final int MATCH = 1;
+    private static final int AMBIGUOUS = 2;
+
     public enum FORMAT {
         DANMARC2_LINE,
         JSONL,
@@ -29,6 +49,44 @@ public class MarcFormatDeducer {
         ISO2709
     }
 
+    public enum CONFIDENCE {
+        /** Format signature found in the raw bytes */
+        HIGH,
+        /** Format signature only found after decoding the prolog */
+        MEDIUM,
+        /** No format signature found, format is the ISO2709 fallback */
+        LOW
+    }
+
+    /**
+     * Outcome of a format deduction
+     */
+    public static class Deduction {
+        private final FORMAT format;
+        private final CONFIDENCE confidence;
+
+        Deduction(FORMAT format, CONFIDENCE confidence) {
+            this.format = format;
+            this.confidence = confidence;
+        }
+
+        public FORMAT getFormat() {
+            return format;
+        }
+
+        public CONFIDENCE getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public String toString() {
+            return "Deduction{" +
+                    "format=" + format +
+                    ", confidence=" + confidence +
+                    '}';
+        }
+    }
+
     private final int prologSize;
 
     /**
@@ -47,23 +105,26 @@ public class MarcFormatDeducer {
      * @return deduced format (ISO2709 is the fallback)
      */
     public FORMAT deduce(PushbackInputStream is, Charset encoding) {
+        return deduceWithConfidence(is, encoding).getFormat();
+    }
+
+    /**
+     * Deduces the MARC format by looking at a sample of the
+     * given input stream, stating how confident the deduction is
+     * @param is input stream to examine
+     * @param encoding input data encoding
+     * @return deduced format (ISO2709 is the fallback) and confidence
+     */
+    public Deduction deduceWithConfidence(PushbackInputStream is, Charset encoding) {
         final byte[] buffer = new byte[prologSize];
         try {
-            final int bytesRead = blockingRead(is,buffer);
+            final int bytesRead = blockingRead(is, buffer);
             if (bytesRead > 0) {
-                final String prolog = safeToString(buffer, encoding);
                 try {
-                    if (isJson(prolog)) {
-                        return FORMAT.JSONL;
-                    } else if (isMarcxchange(prolog)) {
-                        return FORMAT.MARCXCHANGE;
-                    } else if (isMarcXml(prolog)) {
-                        return FORMAT.MARCXML;
-                    } else if (isLineFormat(prolog)) {
-                        return FORMAT.LINE;
-                    } else if (isDanmarc2LineFormat(prolog)) {
-                        return FORMAT.DANMARC2_LINE;
+                    if (isAsciiCompatible(encoding)) {
+                        return deduce(buffer, bytesRead, encoding);
                     }
+                    return deduce(safeToString(buffer, bytesRead, encoding));
                 } finally {
                     is.unread(buffer, 0, bytesRead);
                 }
@@ -71,27 +132,175 @@ public class MarcFormatDeducer {
         } catch (IOException e) {
             throw new IllegalStateException("Error while trying to deduce MARC format", e);
         }
-        return FORMAT.ISO2709;
+        return new Deduction(FORMAT.ISO2709, CONFIDENCE.LOW);
+    }
+
+    private Deduction deduce(byte[] prolog, int length, Charset encoding) {
+        final byte first = prolog[0];
+        if (first == '{' || first == '[') {
+            return new Deduction(FORMAT.JSONL, CONFIDENCE.HIGH);
+        }
+        if (first == '<') {
+            if (contains(prolog, length, MARCXCHANGE_NAMESPACE)) {
+                return new Deduction(FORMAT.MARCXCHANGE, CONFIDENCE.HIGH);
+            }
+            if (contains(prolog, length, MARCXML_NAMESPACE)) {
+                return new Deduction(FORMAT.MARCXML, CONFIDENCE.HIGH);
+            }
+        }
+
+        final int lineFormat = matchLineFormat(prolog, length, (byte) '$');
+        if (lineFormat == MATCH) {
+            return new Deduction(FORMAT.LINE, CONFIDENCE.HIGH);
+        }
+        final int danMarc2LineFormat = lineFormat == NO_MATCH
+                ? matchLineFormat(prolog, length, (byte) '*') : AMBIGUOUS;
+        if (danMarc2LineFormat == MATCH) {
+            return new Deduction(FORMAT.DANMARC2_LINE, CONFIDENCE.HIGH);
+        }
+        if (lineFormat == AMBIGUOUS || danMarc2LineFormat == AMBIGUOUS) {
+            final String decoded = safeToString(prolog, length, encoding);
+            if (isLineFormat(decoded)) {
+                return new Deduction(FORMAT.LINE, CONFIDENCE.MEDIUM);
+            } else if (isDanmarc2LineFormat(decoded)) {
+                return new Deduction(FORMAT.DANMARC2_LINE, CONFIDENCE.MEDIUM);
+            }
+        }
+        return iso2709(prolog, length);
+    }
+
+    private Deduction deduce(String prolog) {
+        if (isJson(prolog)) {
+            return new Deduction(FORMAT.JSONL, CONFIDENCE.MEDIUM);
+        } else if (isMarcxchange(prolog)) {
+            return new Deduction(FORMAT.MARCXCHANGE, CONFIDENCE.MEDIUM);
+        } else if (isMarcXml(prolog)) {
+            return new Deduction(FORMAT.MARCXML, CONFIDENCE.MEDIUM);
+        } else if (isLineFormat(prolog)) {
+            return new Deduction(FORMAT.LINE, CONFIDENCE.MEDIUM);
+        } else if (isDanmarc2LineFormat(prolog)) {
+            return new Deduction(FORMAT.DANMARC2_LINE, CONFIDENCE.MEDIUM);
+        }
+        return new Deduction(FORMAT.ISO2709, CONFIDENCE.LOW);
+    }
+
+    private static Deduction iso2709(byte[] prolog, int length) {
+        if (length >= Iso2709Structure.LEADER_LENGTH
+                && Iso2709Structure.recordLength(prolog) >= 0
+                && Iso2709Structure.baseAddress(prolog) >= 0) {
+            return new Deduction(FORMAT.ISO2709, CONFIDENCE.HIGH);
+        }
+        return new Deduction(FORMAT.ISO2709, CONFIDENCE.LOW);
+    }
+
+    /* Byte level equivalent of the VALID_LINE_FORMAT and VALID_DANMARC2_LINE_FORMAT
+       patterns, a line starting with three digits followed by whitespace, an optional
+       indicator (one Latin letter or two of [0-9 ]), optional whitespace and the marker.
+       Indicators which are not ASCII can not be classified without decoding,
+       so these make the outcome AMBIGUOUS unless another line matches. */
+    private static int matchLineFormat(byte[] prolog, int length, byte marker) {
+        boolean ambiguous = false;
+        for (int lineStart = 0; lineStart < length; lineStart++) {
+            if (lineStart > 0 && prolog[lineStart - 1] != '\n' && prolog[lineStart - 1] != '\r') {
+                continue;
+            }
+            if (lineStart + 3 >= length || !isDigit(prolog[lineStart])
+                    || !isDigit(prolog[lineStart + 1]) || !isDigit(prolog[lineStart + 2])) {
+                continue;
+            }
+            final int whitespaceStart = lineStart + 3;
+            int whitespaceEnd = whitespaceStart;
+            while (whitespaceEnd < length && isWhitespace(prolog[whitespaceEnd])) {
+                whitespaceEnd++;
+            }
+            for (int pos = whitespaceStart + 1; pos <= whitespaceEnd; pos++) {
+                // no indicator
+                if (markerFollows(prolog, length, pos, marker)) {
+                    return MATCH;
+                }
+                if (pos < length) {
+                    final byte b = prolog[pos];
+                    // single letter indicator
+                    if (isAsciiLetter(b) && markerFollows(prolog, length, pos + 1, marker)) {
+                        return MATCH;
+                    }
+                    if (b < 0) {
+                        ambiguous = true;
+                    }
+                    // two character indicator
+                    if (pos + 1 < length && isIndicator(b) && isIndicator(prolog[pos + 1])
+                            && markerFollows(prolog, length, pos + 2, marker)) {
+                        return MATCH;
+                    }
+                }
+            }
+        }
+        return ambiguous ? AMBIGUOUS : NO_MATCH;
+    }
+
+    /* Marker at pos, optionally preceded by a single whitespace */
+    private static boolean markerFollows(byte[] prolog, int length, int pos, byte marker) {
+        if (pos < length && prolog[pos] == marker) {
+            return true;
+        }
+        return pos + 1 < length && isWhitespace(prolog[pos]) && prolog[pos + 1] == marker;
+    }
+
+    private static boolean contains(byte[] prolog, int length, byte[] signature) {
+        outer:
+        for (int i = 0; i <= length - signature.length; i++) {
+            for (int j = 0; j < signature.length; j++) {
+                if (prolog[i + j] != signature[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
     }
 
-    private String safeToString(byte[] bytes, Charset encoding) {
-        return safeToString(bytes, encoding, 8);
+    private static boolean isIndicator(byte b) {
+        return isDigit(b) || b == ' ';
+    }
+
+    private static boolean isAsciiLetter(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z';
+    }
+
+    /* Same as \s in java.util.regex */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static boolean isAsciiCompatible(Charset encoding) {
+        if (encoding.equals(StandardCharsets.UTF_8) || encoding.equals(StandardCharsets.ISO_8859_1)
+                || encoding.equals(StandardCharsets.US_ASCII)) {
+            return true;
+        }
+        try {
+            return ASCII_SAMPLE.equals(new String(ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII), encoding));
+        } catch (RuntimeException e) {
+            return false;
+        }
     }
 
-    private String safeToString(byte[] bytes, Charset encoding, int retries) {
+    private String safeToString(byte[] bytes, int length, Charset encoding) {
         // Since the last of the prolog bytes might be in the
         // middle of a multi-byte character which might cause
         // the character set decoding to throw an exception
         // we do a number of retries.
-        if (retries > 0) {
+        for (int retries = 8; retries > 0; retries--) {
             try {
-                return new String(bytes, encoding);
+                return new String(bytes, 0, length, encoding);
             } catch (RuntimeException e) {
-                if (bytes.length > 5) {
-                    return safeToString(
-                            Arrays.copyOfRange(bytes, 0, bytes.length - 1),
-                            encoding, retries - 1);
+                if (length <= 5) {
+                    break;
                 }
+                length--;
             }
         }
         return "";
@@ -0,0 +1,93 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+
+/**
+ * Entry of a stream read by {@link MarcConverter#recordsOrErrors}, being
+ * either a record selected by the filter or an ISO2709 record which could
+ * not be read.
+ * <p>
+ * Records not selected by the filter are not entries of their own, but are
+ * counted by the entry following them, see {@link #getRecordCount()}. Records
+ * not selected at the end of the input, or at the end of a range of a split
+ * stream, are counted by an entry being neither a record nor an error.
+ * </p>
+ */
+public class MarcRecordOrError {
+    private final MarcRecord record;
+    private final String errorMessage;
+    private final byte[] inputBytes;
+    private final int recordCount;
+    private final long inputOffset;
+    private final long inputEnd;
+
+    MarcRecordOrError(MarcRecord record, String errorMessage, byte[] inputBytes, int recordCount,
+                      long inputOffset, long inputEnd) {
+        this.record = record;
+        this.errorMessage = errorMessage;
+        this.inputBytes = inputBytes;
+        this.recordCount = recordCount;
+        this.inputOffset = inputOffset;
+        this.inputEnd = inputEnd;
+    }
+
+    /**
+     * @return record, or null if this entry is not a record
+     */
+    public MarcRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * @return message telling why the record could not be read, or null if this entry is not an error
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @return raw bytes of the record which could not be read, or null if this entry is not an error
+     */
+    public byte[] getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * Gets the number of input records accounted for by this entry, being
+     * the record of the entry and the records before it which were not
+     * selected by the filter. Summing the counts of the entries in stream
+     * order gives the number of each record in the input, also when the
+     * entries are read by a parallel stream.
+     * @return number of input records, at least one
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return input offset of the record, or -1 if not known
+     */
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * @return input offset after the record, or -1 if not known
+     */
+    public long getInputEnd() {
+        return inputEnd;
+    }
+
+    public boolean isRecord() {
+        return record != null;
+    }
+
+    public boolean isError() {
+        return errorMessage != null && inputBytes != null;
+    }
+}
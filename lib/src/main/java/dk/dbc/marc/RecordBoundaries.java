@@ -0,0 +1,195 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream recording the input offset at the end of every record read
+ * through it, so that the input offsets of a record are known even though
+ * readers read ahead of the record they return.
+ * <p>
+ * Records end at a record terminator in ISO2709, at the end of a non-blank
+ * line in JSONL, and at a blank line or a line consisting of a single
+ * {@code $} in line formats. The end of the input ends the last record if it
+ * has content, and a record starts where the record before it ends. Offsets
+ * are kept until they have been looked up, so the number of offsets kept is
+ * bounded by how far the reader reads ahead.
+ * </p>
+ */
+class RecordBoundaries extends FilterInputStream {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final MarcFormatDeducer.FORMAT format;
+    private final byte[] single = new byte[1];
+    private long position;
+    // Offsets of record ends not yet looked up, in a ring buffer
+    private long[] ends = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private int firstNumber;
+    // Offset at the start of the first record not yet looked up
+    private long firstStart;
+    private boolean recordHasContent = false;
+    private int lineLength = 0;
+    private boolean lineIsDollar = false;
+
+    /**
+     * @param in input stream positioned at the beginning of a record
+     * @param format input format
+     * @param offset input offset of the stream position
+     * @param recordNumber number of the records preceding the stream position
+     */
+    RecordBoundaries(InputStream in, MarcFormatDeducer.FORMAT format, long offset, int recordNumber) {
+        super(in);
+        this.format = format;
+        this.position = offset;
+        this.firstNumber = recordNumber + 1;
+        this.firstStart = offset;
+    }
+
+    /**
+     * @param format input format
+     * @return true if records of the given format can be located in the input
+     */
+    static boolean isSupported(MarcFormatDeducer.FORMAT format) {
+        switch (format) {
+            case ISO2709:
+            case JSONL:
+            case LINE:
+            case DANMARC2_LINE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Gets the input offset at the start of the given record
+     * @param recordNumber number of a record read through this stream, not yet passed to {@link #endOf(int)}
+     * @return input offset of the record, or -1 if not known
+     */
+    long startOf(int recordNumber) {
+        final int index = recordNumber - firstNumber;
+        if (index == 0) {
+            return firstStart;
+        }
+        if (index < 0 || index > size) {
+            return -1;
+        }
+        return ends[(head + index - 1) % ends.length];
+    }
+
+    /**
+     * Gets the input offset at the end of the given record, forgetting the
+     * offsets of the record and the records before it
+     * @param recordNumber number of a record read through this stream
+     * @return input offset after the record, or -1 if the end of the record has not been read
+     */
+    long endOf(int recordNumber) {
+        final int index = recordNumber - firstNumber;
+        if (index < 0 || index >= size) {
+            return -1;
+        }
+        final long end = ends[(head + index) % ends.length];
+        head = (head + index + 1) % ends.length;
+        size -= index + 1;
+        firstNumber = recordNumber + 1;
+        firstStart = end;
+        return end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        final int bytesRead = in.read(bytes, offset, length);
+        if (bytesRead < 0) {
+            if (recordHasContent || lineLength > 0) {
+                addEnd(position);
+            }
+            return bytesRead;
+        }
+        for (int i = offset; i < offset + bytesRead; i++) {
+            scan(bytes[i], position + (i - offset) + 1);
+        }
+        position += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must be scanned like any other bytes
+        final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        final int bytesRead = read(buffer, 0, buffer.length);
+        return Math.max(bytesRead, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void scan(byte b, long next) {
+        switch (format) {
+            case ISO2709:
+                if (b == Iso2709Structure.RECORD_TERMINATOR) {
+                    addEnd(next);
+                } else if (b != '\n' && !isWhitespace(b)) {
+                    lineLength++;
+                }
+                break;
+            case JSONL:
+                if (b == '\n') {
+                    if (lineLength > 0) {
+                        addEnd(next);
+                    }
+                    lineLength = 0;
+                } else if (!isWhitespace(b)) {
+                    lineLength++;
+                }
+                break;
+            default:
+                if (b == '\n') {
+                    if (lineIsDollar && lineLength == 1 || lineLength == 0 && recordHasContent) {
+                        addEnd(next);
+                        recordHasContent = false;
+                    } else if (lineLength > 0) {
+                        recordHasContent = true;
+                    }
+                    lineLength = 0;
+                    lineIsDollar = false;
+                } else if (!isWhitespace(b)) {
+                    lineIsDollar = lineLength == 0 && b == '$';
+                    lineLength++;
+                }
+        }
+    }
+
+    private void addEnd(long end) {
+        if (size == ends.length) {
+            final long[] grown = new long[ends.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = ends[(head + i) % ends.length];
+            }
+            ends = grown;
+            head = 0;
+        }
+        ends[(head + size) % ends.length] = end;
+        size++;
+        recordHasContent = false;
+        lineLength = 0;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Predicate selecting MARC records by the content of their fields.
+ * <p>
+ * Filters are compiled once from expressions of the form
+ * </p>
+ * <pre>
+ * expression = term { "or" term }
+ * term       = factor { "and" factor }
+ * factor     = "not" factor | "(" expression ")" | condition
+ * condition  = selector [ ( "=" | "!=" | "~" | "!~" ) value ]
+ * selector   = tag [ "$" code | ".ind1" | ".ind2" ]
+ * </pre>
+ * <p>
+ * A selector without operator tests that the field, or the subfield, exists.
+ * A tag alone selects the data of control fields and every subfield of data
+ * fields. {@code =} tests for equality and {@code ~} for a regular expression
+ * found anywhere in the value, both being true when any selected value matches,
+ * while {@code !=} and {@code !~} are their negations. Values are either
+ * double-quoted, with backslash escaping quotes and backslashes, or bare words.
+ * </p>
+ * <pre>
+ * 001$b = 870970 and (245$a ~ "^Harry" or not 008)
+ * </pre>
+ * <p>
+ * Records can also be tested as a {@link LazyIso2709Record}, in which case
+ * only fields having the tags referenced by the expression are decoded.
+ * Filters are immutable and thread-safe.
+ * </p>
+ */
+public class RecordFilter implements Predicate<MarcRecord> {
+    private final String expression;
+    private final Predicate<FieldSource> predicate;
+
+    private RecordFilter(String expression, Predicate<FieldSource> predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /**
+     * Compiles filter expression
+     * @param expression filter expression
+     * @return new filter
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static RecordFilter compile(String expression) {
+        final Parser parser = new Parser(expression);
+        final Predicate<FieldSource> predicate = parser.parseExpression();
+        if (parser.token != null) {
+            throw parser.error("Unexpected " + parser.token.text);
+        }
+        return new RecordFilter(expression, predicate);
+    }
+
+    @Override
+    public boolean test(MarcRecord record) {
+        return predicate.test(FieldSource.of(record));
+    }
+
+    /**
+     * Tests record without decoding fields not referenced by the filter
+     * @param record record view
+     * @return true if the record matches the filter
+     */
+    public boolean test(LazyIso2709Record record) {
+        return predicate.test(record);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private enum Part {
+        FIELD,
+        SUBFIELD,
+        IND1,
+        IND2
+    }
+
+    @FunctionalInterface
+    private interface ValueMatcher {
+        boolean matches(String value);
+    }
+
+    /* Condition on the values selected from a field */
+    private static class Condition implements Predicate<FieldSource> {
+        private final String tag;
+        private final Part part;
+        private final char code;
+        private final ValueMatcher matcher;
+
+        Condition(String tag, Part part, char code, ValueMatcher matcher) {
+            this.tag = tag;
+            this.part = part;
+            this.code = code;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public boolean test(FieldSource record) {
+            for (int i = 0; i < record.getFieldCount(); i++) {
+                if (record.hasTag(i, tag) && test(record.getField(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean test(Field field) {
+            if (field instanceof ControlField) {
+                return part == Part.FIELD && (matcher == null || matcher.matches(((ControlField) field).getData()));
+            }
+            final DataField dataField = (DataField) field;
+            switch (part) {
+                case IND1:
+                    return matcher == null || matches(dataField.getInd1());
+                case IND2:
+                    return matcher == null || matches(dataField.getInd2());
+                default:
+                    if (part == Part.FIELD && matcher == null) {
+                        return true;
+                    }
+                    for (SubField subField : dataField.getSubFields()) {
+                        if ((part == Part.FIELD || subField.getCode() == code)
+                                && (matcher == null || matcher.matches(subField.getData()))) {
+                            return true;
+                        }
+                    }
+                    return false;
+            }
+        }
+
+        private boolean matches(Character indicator) {
+            return indicator != null && matcher.matches(String.valueOf(indicator));
+        }
+    }
+
+    private static class Token {
+        private final String text;
+        private final boolean quoted;
+        private final int position;
+
+        Token(String text, boolean quoted, int position) {
+            this.text = text;
+            this.quoted = quoted;
+            this.position = position;
+        }
+
+        boolean is(String keyword) {
+            return !quoted && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /* Recursive descent parser of filter expressions */
+    private static class Parser {
+        private final String expression;
+        private final List<Token> tokens;
+        private int next = 0;
+        private Token token;
+
+        Parser(String expression) {
+            this.expression = expression;
+            this.tokens = tokenize(expression);
+            advance();
+        }
+
+        Predicate<FieldSource> parseExpression() {
+            Predicate<FieldSource> predicate = parseTerm();
+            while (token != null && token.is("or")) {
+                advance();
+                predicate = predicate.or(parseTerm());
+            }
+            return predicate;
+        }
+
+        private Predicate<FieldSource> parseTerm() {
+            Predicate<FieldSource> predicate = parseFactor();
+            while (token != null && token.is("and")) {
+                advance();
+                predicate = predicate.and(parseFactor());
+            }
+            return predicate;
+        }
+
+        private Predicate<FieldSource> parseFactor() {
+            if (token == null) {
+                throw error("Unexpected end of expression");
+            }
+            if (token.is("not")) {
+                advance();
+                return parseFactor().negate();
+            }
+            if (token.is("(")) {
+                advance();
+                final Predicate<FieldSource> predicate = parseExpression();
+                if (token == null || !token.is(")")) {
+                    throw error("Missing )");
+                }
+                advance();
+                return predicate;
+            }
+            return parseCondition();
+        }
+
+        private Predicate<FieldSource> parseCondition() {
+            final Token selector = token;
+            if (selector.quoted || selector.text.length() < 3) {
+                throw error("Expected field tag at " + selector.text);
+            }
+            final String tag = selector.text.substring(0, 3);
+            final String suffix = selector.text.substring(3);
+            final Part part;
+            char code = 0;
+            if (suffix.isEmpty()) {
+                part = Part.FIELD;
+            } else if (suffix.length() == 2 && suffix.charAt(0) == '$') {
+                part = Part.SUBFIELD;
+                code = suffix.charAt(1);
+            } else if (suffix.equalsIgnoreCase(".ind1")) {
+                part = Part.IND1;
+            } else if (suffix.equalsIgnoreCase(".ind2")) {
+                part = Part.IND2;
+            } else {
+                throw error("Invalid selector " + selector.text);
+            }
+            advance();
+
+            if (token == null || !(token.is("=") || token.is("!=") || token.is("~") || token.is("!~"))) {
+                return new Condition(tag, part, code, null);
+            }
+            final String operator = token.text;
+            advance();
+            if (token == null) {
+                throw error("Missing value after " + operator);
+            }
+            final String value = token.text;
+            advance();
+            final ValueMatcher matcher;
+            if (operator.endsWith("~")) {
+                try {
+                    final Pattern pattern = Pattern.compile(value);
+                    matcher = data -> pattern.matcher(data).find();
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid regular expression in filter: " + value, e);
+                }
+            } else {
+                matcher = value::equals;
+            }
+            final Condition condition = new Condition(tag, part, code, matcher);
+            return operator.startsWith("!") ? condition.negate() : condition;
+        }
+
+        private void advance() {
+            token = next < tokens.size() ? tokens.get(next++) : null;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s in filter expression at position %d: %s",
+                    message, token != null ? token.position + 1 : expression.length() + 1, expression));
+        }
+
+        private static List<Token> tokenize(String expression) {
+            final List<Token> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < expression.length()) {
+                final char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')' || c == '=' || c == '~') {
+                    tokens.add(new Token(String.valueOf(c), false, i));
+                    i++;
+                } else if (c == '!' && i + 1 < expression.length()
+                        && (expression.charAt(i + 1) == '=' || expression.charAt(i + 1) == '~')) {
+                    tokens.add(new Token(expression.substring(i, i + 2), false, i));
+                    i += 2;
+                } else if (c == '"') {
+                    final StringBuilder value = new StringBuilder();
+                    int j = i + 1;
+                    while (j < expression.length() && expression.charAt(j) != '"') {
+                        if (expression.charAt(j) == '\\' && j + 1 < expression.length()) {
+                            j++;
+                        }
+                        value.append(expression.charAt(j++));
+                    }
+                    if (j >= expression.length()) {
+                        throw new IllegalArgumentException(String.format(
+                                "Unterminated string in filter expression at position %d: %s", i + 1, expression));
+                    }
+                    tokens.add(new Token(value.toString(), true, i));
+                    i = j + 1;
+                } else {
+                    int j = i;
+                    while (j < expression.length() && !Character.isWhitespace(expression.charAt(j))
+                            && "()=~!\"".indexOf(expression.charAt(j)) < 0) {
+                        j++;
+                    }
+                    if (j == i) {
+                        throw new IllegalArgumentException(String.format(
+                                "Unexpected %c in filter expression at position %d: %s", c, i + 1, expression));
+                    }
+                    tokens.add(new Token(expression.substring(i, j), false, i));
+                    i = j;
+                }
+            }
+            return tokens;
+        }
+    }
+}
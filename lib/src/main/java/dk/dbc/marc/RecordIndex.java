@@ -0,0 +1,504 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import dk.dbc.marc.reader.Iso2709Reader;
+import dk.dbc.marc.reader.JsonLineReader;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sidecar index of ISO2709 and JSONL files, giving the byte offset, length
+ * and optionally the record ID (value of field 001) of every record.
+ * <p>
+ * The index file consists of a fixed size header, a table of fixed size
+ * offset/length entries allowing lookup by record number without reading
+ * the table as a whole, followed by the record IDs if these were included.
+ * The header holds the size and modification time of the indexed file, so
+ * that an index which is out of date can be detected, see {@link #isFor(Path)}.
+ * </p>
+ * <p>
+ * Record IDs are looked up by binary search of a table of slots sorted by
+ * the hash code of the ID, each slot holding the hash code in its upper 32
+ * bits and the record number in its lower 32 bits. The table is followed by
+ * the offsets of the IDs of every record, and the IDs themselves, which are
+ * only read to verify the records having the hash code looked up.
+ * </p>
+ */
+public class RecordIndex implements Closeable {
+    public static final String SUFFIX = ".idx";
+
+    private static final byte[] MAGIC = "MCONVIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int COUNT_OFFSET = MAGIC.length + 4 + 2;
+    private static final int HEADER_SIZE = COUNT_OFFSET + 4 + 8 + 8;
+    private static final int ENTRY_SIZE = 8 + 4;
+    private static final int SLOT_SIZE = 8;
+    private static final int ID_OFFSET_SIZE = 8;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int SCAN_BUFFER_SIZE = 1 << 20;
+    private static final byte ISO2709_FORMAT = 'I';
+    private static final byte JSONL_FORMAT = 'J';
+    private static final int GZIP_MAGIC_1 = 0x1F;
+    private static final int GZIP_MAGIC_2 = 0x8B;
+
+    private final FileChannel channel;
+    private final MarcFormatDeducer.FORMAT format;
+    private final boolean hasIds;
+    private final int size;
+    private final long inputSize;
+    private final long inputModified;
+
+    private RecordIndex(FileChannel channel, MarcFormatDeducer.FORMAT format, boolean hasIds, int size,
+                        long inputSize, long inputModified) {
+        this.channel = channel;
+        this.format = format;
+        this.hasIds = hasIds;
+        this.size = size;
+        this.inputSize = inputSize;
+        this.inputModified = inputModified;
+    }
+
+    /**
+     * @param input indexed file
+     * @return default location of the index of the given file
+     */
+    public static Path sidecarOf(Path input) {
+        return input.resolveSibling(input.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Scans an ISO2709 or JSONL file and writes its index
+     * @param input file to index
+     * @param index index file to write, existing content is overwritten
+     * @param encoding input encoding, only used when including record IDs
+     * @param includeIds if true the value of field 001 is included for every record
+     * @return number of records indexed
+     * @throws IOException on failure to read input or write index
+     * @throws IllegalArgumentException if the input is not ISO2709 or JSONL
+     */
+    public static int create(Path input, Path index, Charset encoding, boolean includeIds) throws IOException {
+        final Path directory = index.toAbsolutePath().getParent();
+        final Path ids = includeIds ? Files.createTempFile(directory, "mconv", ".ids") : null;
+        final Path idOffsets = includeIds ? Files.createTempFile(directory, "mconv", ".ido") : null;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            final MarcFormatDeducer.FORMAT format = deduceFormat(in);
+            final long inputModified = Files.getLastModifiedTime(input).toMillis();
+            final RecordScanner scanner;
+            try (DataOutputStream entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)));
+                 DataOutputStream idOutput = ids != null
+                         ? new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(ids))) : null;
+                 DataOutputStream idOffsetOutput = idOffsets != null
+                         ? new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(idOffsets))) : null) {
+                entries.write(MAGIC);
+                entries.writeInt(VERSION);
+                entries.writeByte(format == MarcFormatDeducer.FORMAT.JSONL ? JSONL_FORMAT : ISO2709_FORMAT);
+                entries.writeBoolean(includeIds);
+                entries.writeInt(0);
+                entries.writeLong(in.size());
+                entries.writeLong(inputModified);
+                scanner = new RecordScanner(format, encoding, entries, idOutput, idOffsetOutput);
+                scanner.scan(in);
+            }
+            if (ids != null) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(index, StandardOpenOption.APPEND)))) {
+                    for (long slot : scanner.sortedSlots()) {
+                        out.writeLong(slot);
+                    }
+                    Files.copy(idOffsets, out);
+                    Files.copy(ids, out);
+                }
+            }
+            try (FileChannel out = FileChannel.open(index, StandardOpenOption.WRITE)) {
+                writeFully(out, ByteBuffer.allocate(4).putInt(scanner.getCount()).flip(), COUNT_OFFSET);
+            }
+            return scanner.getCount();
+        } finally {
+            if (ids != null) {
+                Files.deleteIfExists(ids);
+                Files.deleteIfExists(idOffsets);
+            }
+        }
+    }
+
+    /**
+     * Opens an existing index
+     * @param index index file
+     * @return index
+     * @throws IOException if the index could not be read or is not an index file
+     */
+    public static RecordIndex open(Path index) throws IOException {
+        final FileChannel channel = FileChannel.open(index, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            final byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(index + " is not a record index");
+            }
+            if (header.getInt() != VERSION) {
+                throw new IOException(index + " was created by another version of mconv and must be recreated");
+            }
+            final MarcFormatDeducer.FORMAT format = header.get() == JSONL_FORMAT
+                    ? MarcFormatDeducer.FORMAT.JSONL : MarcFormatDeducer.FORMAT.ISO2709;
+            final boolean hasIds = header.get() != 0;
+            return new RecordIndex(channel, format, hasIds, header.getInt(), header.getLong(), header.getLong());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return format of the indexed file, either ISO2709 or JSONL
+     */
+    public MarcFormatDeducer.FORMAT getFormat() {
+        return format;
+    }
+
+    /**
+     * @return true if the index includes record IDs
+     */
+    public boolean hasIds() {
+        return hasIds;
+    }
+
+    /**
+     * @return number of records in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param input indexed file
+     * @return true if this index was created for the given file in its current state,
+     * judged by the size and modification time of the file
+     * @throws IOException if the file attributes could not be read
+     */
+    public boolean isFor(Path input) throws IOException {
+        return Files.size(input) == inputSize && Files.getLastModifiedTime(input).toMillis() == inputModified;
+    }
+
+    /**
+     * Looks up a range of records by their number
+     * @param first number of first record, the first record in the file is number 1
+     * @param last number of last record (inclusive), truncated to the size of the index
+     * @return entries of the records in the range
+     * @throws IOException on failure to read the index
+     */
+    public List<Entry> get(int first, int last) throws IOException {
+        if (first < 1 || last < first) {
+            throw new IllegalArgumentException("Invalid record range " + first + "-" + last);
+        }
+        last = Math.min(last, size);
+        final List<Entry> entries = new ArrayList<>(Math.max(0, last - first + 1));
+        if (first > last) {
+            return entries;
+        }
+        final ByteBuffer table = ByteBuffer.allocate((last - first + 1) * ENTRY_SIZE);
+        readFully(channel, table, HEADER_SIZE + (long) (first - 1) * ENTRY_SIZE);
+        table.flip();
+        for (int number = first; number <= last; number++) {
+            entries.add(new Entry(number, table.getLong(), table.getInt()));
+        }
+        return entries;
+    }
+
+    /**
+     * Looks up records by ID
+     * @param id value of field 001
+     * @return entries of all records with the given ID
+     * @throws IOException on failure to read the index
+     * @throws IllegalStateException if the index does not include record IDs
+     */
+    public List<Entry> find(String id) throws IOException {
+        if (!hasIds) {
+            throw new IllegalStateException("Index does not include record IDs");
+        }
+        final int hash = id.hashCode();
+        final long slotsOffset = HEADER_SIZE + (long) size * ENTRY_SIZE;
+        // Finds the first slot of the hash code
+        final long first = (long) hash << 32;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (readLong(slotsOffset + (long) middle * SLOT_SIZE) < first) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // Slots having the same hash code are ordered by record number
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = low; i < size; i++) {
+            final long slot = readLong(slotsOffset + (long) i * SLOT_SIZE);
+            if ((int) (slot >> 32) != hash) {
+                break;
+            }
+            final int number = (int) slot;
+            if (id.equals(readId(number))) {
+                entries.addAll(get(number, number));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Location of a single record
+     */
+    public static class Entry {
+        private final int number;
+        private final long offset;
+        private final int length;
+
+        Entry(int number, long offset, int length) {
+            this.number = number;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "number=" + number +
+                    ", offset=" + offset +
+                    ", length=" + length +
+                    '}';
+        }
+    }
+
+    private String readId(int number) throws IOException {
+        final long idOffsetsOffset = HEADER_SIZE + (long) size * (ENTRY_SIZE + SLOT_SIZE);
+        final long idsOffset = idOffsetsOffset + (long) size * ID_OFFSET_SIZE;
+        final long offset = idsOffset + readLong(idOffsetsOffset + (long) (number - 1) * ID_OFFSET_SIZE);
+        final ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(channel, length, offset);
+        // IDs are stored as written by DataOutput.writeUTF, prefixed by their length
+        final ByteBuffer utf = ByteBuffer.allocate(2 + (length.getShort(0) & 0xFFFF));
+        readFully(channel, utf, offset);
+        return new DataInputStream(new ByteArrayInputStream(utf.array())).readUTF();
+    }
+
+    private long readLong(long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(channel, buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private static MarcFormatDeducer.FORMAT deduceFormat(FileChannel in) throws IOException {
+        final ByteBuffer prolog = ByteBuffer.allocate(1000);
+        in.read(prolog, 0);
+        if (prolog.position() >= 2 && (prolog.get(0) & 0xFF) == GZIP_MAGIC_1 && (prolog.get(1) & 0xFF) == GZIP_MAGIC_2) {
+            throw new IllegalArgumentException("Compressed input can not be indexed");
+        }
+        final MarcFormatDeducer.FORMAT format = new MarcFormatDeducer(prolog.capacity()).deduce(
+                new PushbackInputStream(new ByteArrayInputStream(prolog.array(), 0, prolog.position()), prolog.capacity()),
+                StandardCharsets.ISO_8859_1);
+        if (format != MarcFormatDeducer.FORMAT.ISO2709 && format != MarcFormatDeducer.FORMAT.JSONL) {
+            throw new IllegalArgumentException("Only ISO2709 and JSONL input can be indexed, not " + format);
+        }
+        return format;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Record index is truncated");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /* Splits input into records at record terminators (ISO2709) or newlines (JSONL) */
+    private static class RecordScanner {
+        private final MarcFormatDeducer.FORMAT format;
+        private final Charset encoding;
+        private final DataOutputStream entries;
+        private final DataOutputStream ids;
+        private final DataOutputStream idOffsets;
+        private final ByteArrayOutputStream record;
+        private final byte terminator;
+        private int count = 0;
+        private long idsSize = 0;
+        private long[] slots;
+
+        RecordScanner(MarcFormatDeducer.FORMAT format, Charset encoding, DataOutputStream entries,
+                      DataOutputStream ids, DataOutputStream idOffsets) {
+            this.format = format;
+            this.encoding = encoding;
+            this.entries = entries;
+            this.ids = ids;
+            this.idOffsets = idOffsets;
+            this.record = ids != null ? new ByteArrayOutputStream() : null;
+            this.slots = ids != null ? new long[INITIAL_SLOTS] : null;
+            this.terminator = format == MarcFormatDeducer.FORMAT.JSONL ? (byte) '\n' : Iso2709Structure.RECORD_TERMINATOR;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /* Slots of the record IDs, sorted by hash code and record number */
+        long[] sortedSlots() {
+            final long[] sorted = Arrays.copyOf(slots, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        int scan(FileChannel in) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            final byte[] bytes = buffer.array();
+            final boolean jsonl = format == MarcFormatDeducer.FORMAT.JSONL;
+            long position = 0;
+            long recordStart = 0;
+            // For JSONL trailing whitespace is not part of the record, and blank lines are no records
+            long recordEnd = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer, position)) > 0) {
+                int chunkStart = 0;
+                for (int i = 0; i < bytesRead; i++) {
+                    final byte b = bytes[i];
+                    if (b == terminator) {
+                        if (record != null) {
+                            record.write(bytes, chunkStart, i + 1 - chunkStart);
+                        }
+                        final long next = position + i + 1;
+                        add(recordStart, (jsonl ? recordEnd : next) - recordStart);
+                        recordStart = next;
+                        recordEnd = next;
+                        chunkStart = i + 1;
+                    } else if (jsonl && !isWhitespace(b)) {
+                        recordEnd = position + i + 1;
+                    }
+                }
+                if (record != null) {
+                    record.write(bytes, chunkStart, bytesRead - chunkStart);
+                }
+                position += bytesRead;
+                buffer.clear();
+            }
+            if (recordStart < position) {
+                add(recordStart, (jsonl ? recordEnd : position) - recordStart);
+            }
+            return count;
+        }
+
+        private void add(long offset, long dataLength) throws IOException {
+            if (dataLength > Integer.MAX_VALUE) {
+                throw new IOException("Record at offset " + offset + " is too large to be indexed");
+            }
+            if (dataLength > 0) {
+                count++;
+                entries.writeLong(offset);
+                entries.writeInt((int) dataLength);
+                if (ids != null) {
+                    addId(idOf(record.toByteArray(), (int) dataLength));
+                }
+            }
+            if (record != null) {
+                record.reset();
+            }
+        }
+
+        private void addId(String id) throws IOException {
+            if (count > slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+            slots[count - 1] = (long) id.hashCode() << 32 | count;
+            idOffsets.writeLong(idsSize);
+            final int before = ids.size();
+            ids.writeUTF(id);
+            // The byte count of the stream is an int, which may have wrapped
+            idsSize += ids.size() - before;
+        }
+
+        private String idOf(byte[] bytes, int length) {
+            try {
+                final InputStream is = new ByteArrayInputStream(bytes, 0, length);
+                final MarcReader reader = format == MarcFormatDeducer.FORMAT.JSONL
+                        ? new JsonLineReader(is, encoding) : new Iso2709Reader(is, encoding);
+                final MarcRecord marcRecord = reader.read();
+                return marcRecord != null ? idOf(marcRecord) : "";
+            } catch (MarcReaderException | RuntimeException e) {
+                // Records which can not be parsed are indexed without ID
+                return "";
+            }
+        }
+
+        private static String idOf(MarcRecord marcRecord) {
+            for (Field field : marcRecord.getFields()) {
+                if ("001".equals(field.getTag())) {
+                    if (field instanceof ControlField) {
+                        return ((ControlField) field).getData();
+                    }
+                    for (SubField subField : ((DataField) field).getSubFields()) {
+                        if (subField.getCode() == 'a') {
+                            return subField.getData();
+                        }
+                    }
+                }
+            }
+            return "";
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r';
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Key of MARC records made from the values of selected fields or subfields,
+ * used for sorting and de-duplicating records.
+ * <p>
+ * Keys are parsed from a comma separated list of selectors, each being a tag
+ * optionally followed by {@code $} and a subfield code, eg. {@code 001$a,001$b}.
+ * A tag alone selects the data of a control field, or the first subfield of a
+ * data field, so that {@code 001} selects the record id in both MARC21 and
+ * DANMARC2 records. Only the first occurrence of each selector is used, and
+ * missing values are empty.
+ * </p>
+ * <p>
+ * Keys of records compare as strings in the order of the selectors, with
+ * values compared by character code. Record keys are immutable and thread-safe.
+ * </p>
+ */
+public class RecordKey implements Function<MarcRecord, String> {
+    /* Separates the values of a key, ordering shorter values before longer
+       values starting with the same characters */
+    private static final char SEPARATOR = '\0';
+
+    private final String specification;
+    private final List<Selector> selectors;
+
+    private RecordKey(String specification, List<Selector> selectors) {
+        this.specification = specification;
+        this.selectors = selectors;
+    }
+
+    /**
+     * Parses record key
+     * @param specification comma separated list of tags with optional subfield code
+     * @return new record key
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    public static RecordKey parse(String specification) {
+        final List<Selector> selectors = new ArrayList<>();
+        for (String entry : specification.split(",")) {
+            final String trimmed = entry.trim();
+            if (trimmed.length() == 3) {
+                selectors.add(new Selector(trimmed, null));
+            } else if (trimmed.length() == 5 && trimmed.charAt(3) == '$') {
+                selectors.add(new Selector(trimmed.substring(0, 3), trimmed.charAt(4)));
+            } else {
+                throw new IllegalArgumentException("Invalid record key '" + trimmed + "' in " + specification);
+            }
+        }
+        return new RecordKey(specification, selectors);
+    }
+
+    /**
+     * @param record record to get key of
+     * @return key of the record, comparable to keys of other records using {@link String#compareTo}
+     */
+    @Override
+    public String apply(MarcRecord record) {
+        if (selectors.size() == 1) {
+            return selectors.get(0).valueOf(record);
+        }
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < selectors.size(); i++) {
+            if (i > 0) {
+                key.append(SEPARATOR);
+            }
+            key.append(selectors.get(i).valueOf(record));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key key of a record
+     * @return true if the record has a value for at least one of the selectors
+     */
+    public boolean hasValues(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != SEPARATOR) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return specification;
+    }
+
+    private static class Selector {
+        private final String tag;
+        private final Character code;
+
+        Selector(String tag, Character code) {
+            this.tag = tag;
+            this.code = code;
+        }
+
+        String valueOf(MarcRecord record) {
+            for (Field field : record.getFields()) {
+                if (!tag.equals(field.getTag())) {
+                    continue;
+                }
+                if (field instanceof ControlField) {
+                    if (code == null) {
+                        return valueOf(((ControlField) field).getData());
+                    }
+                    continue;
+                }
+                for (SubField subField : ((DataField) field).getSubFields()) {
+                    if (code == null || subField.getCode() == code) {
+                        return valueOf(subField.getData());
+                    }
+                }
+            }
+            return "";
+        }
+
+        private static String valueOf(String data) {
+            return data != null ? data : "";
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.Iso2709ReaderException;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator reading the records of an input stream, or of a byte range of
+ * an ISO2709 or JSONL file, which can be split at record boundaries for
+ * parallel streams.
+ * <p>
+ * Ranges are split in halves, the second half starting at the first record
+ * boundary after the middle of the range, until ranges are smaller than
+ * {@value #MIN_SPLIT_SIZE} bytes. An ISO2709 record boundary is a record
+ * terminator (0x1D) followed by a leader whose record length points to
+ * another record terminator (or to the end of the file), and JSONL records
+ * start after a newline. A range is only split before any of its records
+ * have been read, and its records are then read by a reader of its own from
+ * the range memory-mapped, or using positional reads of the shared file
+ * channel if the range is too large to be mapped.
+ * </p>
+ * <p>
+ * Records which could not be read by an ISO2709 reader are returned as
+ * errors, while other reader failures throw an {@link IllegalArgumentException}.
+ * Input offsets are given for the input formats supported by {@link RecordBoundaries}.
+ * </p>
+ */
+class RecordSpliterator implements Spliterator<MarcRecordOrError> {
+    static final long MIN_SPLIT_SIZE = 1L << 16;
+
+    private static final int LEADER_RECORD_LENGTH_SIZE = 5;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int SCAN_BUFFER_SIZE = 65536;
+
+    private final MarcConverter converter;
+    private final MarcFormatDeducer.FORMAT format;
+    private final FileChannel channel;
+    private final long size;
+    private final long end;
+    private long start;
+    private InputStream in;
+    private MarcReader reader = null;
+    private RecordBoundaries boundaries = null;
+    // Number of records read, and of records accounted for by returned entries
+    private int recordsRead = 0;
+    private int recordsReturned = 0;
+
+    /**
+     * Creates a spliterator reading a file from the given offset
+     * @param converter converter creating readers and filtering records
+     * @param channel file to read, left open
+     * @param format file format, see {@link #isSupported}
+     * @param offset file offset of the first record to read
+     * @throws IOException if the file size could not be determined
+     */
+    RecordSpliterator(MarcConverter converter, FileChannel channel, MarcFormatDeducer.FORMAT format, long offset)
+            throws IOException {
+        this(converter, format, channel, channel.size(), offset, channel.size(), null);
+    }
+
+    /**
+     * Creates a spliterator reading an input stream, which can not be split
+     * @param converter converter creating readers and filtering records
+     * @param in input stream positioned at the beginning of a record, left open
+     * @param format input format
+     * @param offset input offset of the stream position
+     */
+    RecordSpliterator(MarcConverter converter, InputStream in, MarcFormatDeducer.FORMAT format, long offset) {
+        this(converter, format, null, -1, offset, -1, in);
+    }
+
+    private RecordSpliterator(MarcConverter converter, MarcFormatDeducer.FORMAT format, FileChannel channel,
+                              long size, long start, long end, InputStream in) {
+        this.converter = converter;
+        this.format = format;
+        this.channel = channel;
+        this.size = size;
+        this.start = start;
+        this.end = end;
+        this.in = in;
+    }
+
+    /**
+     * @param format input format
+     * @param encoding input encoding
+     * @return true if record boundaries of the given format can be located in the raw bytes
+     */
+    static boolean isSupported(MarcFormatDeducer.FORMAT format, Charset encoding) {
+        return format == MarcFormatDeducer.FORMAT.ISO2709
+                // A newline byte is only a newline in single byte and UTF-8 encodings
+                || format == MarcFormatDeducer.FORMAT.JSONL && (encoding.equals(StandardCharsets.UTF_8)
+                        || encoding.equals(StandardCharsets.ISO_8859_1)
+                        || encoding.equals(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super MarcRecordOrError> action) {
+        if (reader == null) {
+            open();
+        }
+        final MarcRecordOrError entry = next();
+        if (entry == null) {
+            return false;
+        }
+        action.accept(entry);
+        return true;
+    }
+
+    @Override
+    public Spliterator<MarcRecordOrError> trySplit() {
+        if (channel == null || reader != null || end - start < 2 * MIN_SPLIT_SIZE) {
+            return null;
+        }
+        final long middle;
+        try {
+            middle = findRecordBoundary(start + (end - start) / 2);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (middle <= start || middle >= end) {
+            return null;
+        }
+        // The prefix is handed over, while this spliterator keeps the
+        // suffix, so that the encounter order is retained
+        final RecordSpliterator prefix = new RecordSpliterator(converter, format, channel, size, start, middle, null);
+        start = middle;
+        return prefix;
+    }
+
+    /**
+     * @return number of bytes in the range, since the number of records is unknown
+     */
+    @Override
+    public long estimateSize() {
+        return channel != null ? end - start : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private void open() {
+        try {
+            if (in == null) {
+                in = end - start <= Integer.MAX_VALUE
+                        ? new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start))
+                        : new BufferedInputStream(new RangeInputStream(channel, start, end), READ_BUFFER_SIZE);
+            }
+            if (RecordBoundaries.isSupported(format)) {
+                boundaries = new RecordBoundaries(in, format, start, 0);
+                reader = converter.newReader(boundaries, format);
+            } else {
+                reader = converter.newReader(in, format);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (MarcReaderException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /* Reads the next record selected by the filter or the next erroneous
+       record, or counts the records not selected at the end of the input */
+    private MarcRecordOrError next() {
+        while (true) {
+            final MarcRecord record;
+            try {
+                record = reader.read();
+            } catch (Iso2709ReaderException e) {
+                String errorMessage = e.getMessage();
+                final Throwable cause = e.getCause();
+                if (cause != null) {
+                    errorMessage = cause.getMessage();
+                }
+                recordsRead = countRecordsRead(recordsRead + 1);
+                return entry(null, errorMessage, e.getRecordBytes());
+            } catch (MarcReaderException e) {
+                throw new IllegalArgumentException(e);
+            }
+            if (record == null) {
+                recordsRead = countRecordsRead(recordsRead);
+                return recordsRead > recordsReturned ? entry(null, null, null) : null;
+            }
+            recordsRead = countRecordsRead(recordsRead + 1);
+            if (converter.isSelected(reader, record)) {
+                return entry(record, null, null);
+            }
+        }
+    }
+
+    /* Records skipped by a lazy reader are still counted */
+    private int countRecordsRead(int recordsRead) {
+        return reader instanceof LazyIso2709Reader ? ((LazyIso2709Reader) reader).getRecordCount() : recordsRead;
+    }
+
+    private MarcRecordOrError entry(MarcRecord record, String errorMessage, byte[] inputBytes) {
+        final long inputOffset = boundaries != null ? boundaries.startOf(recordsRead) : -1;
+        final long inputEnd = boundaries != null ? boundaries.endOf(recordsRead) : -1;
+        final MarcRecordOrError entry = new MarcRecordOrError(record, errorMessage, inputBytes,
+                recordsRead - recordsReturned, inputOffset, inputEnd);
+        recordsReturned = recordsRead;
+        return entry;
+    }
+
+    /* Returns offset of the first record starting after the given position,
+       or the file size if no such record exists */
+    private long findRecordBoundary(long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        final byte separator = format == MarcFormatDeducer.FORMAT.ISO2709
+                ? Iso2709Structure.RECORD_TERMINATOR : (byte) '\n';
+        long bufferOffset = position;
+        while (bufferOffset < size) {
+            buffer.clear();
+            final int bytesRead = channel.read(buffer, bufferOffset);
+            if (bytesRead <= 0) {
+                break;
+            }
+            for (int i = 0; i < bytesRead; i++) {
+                if (buffer.get(i) == separator) {
+                    final long candidate = bufferOffset + i + 1;
+                    if (format != MarcFormatDeducer.FORMAT.ISO2709 || isRecordStart(candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+            bufferOffset += bytesRead;
+        }
+        return size;
+    }
+
+    private boolean isRecordStart(long offset) throws IOException {
+        if (offset >= size) {
+            return true;
+        }
+        final ByteBuffer leader = ByteBuffer.allocate(LEADER_RECORD_LENGTH_SIZE);
+        if (channel.read(leader, offset) < LEADER_RECORD_LENGTH_SIZE) {
+            return false;
+        }
+        int recordLength = 0;
+        for (int i = 0; i < LEADER_RECORD_LENGTH_SIZE; i++) {
+            final byte b = leader.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            recordLength = recordLength * 10 + (b - '0');
+        }
+        final long terminatorOffset = offset + recordLength - 1;
+        if (recordLength <= LEADER_RECORD_LENGTH_SIZE || terminatorOffset >= size) {
+            return false;
+        }
+        final ByteBuffer terminator = ByteBuffer.allocate(1);
+        return channel.read(terminator, terminatorOffset) == 1
+                && terminator.get(0) == Iso2709Structure.RECORD_TERMINATOR;
+    }
+
+    /**
+     * Input stream reading a byte range of a file channel using positional
+     * reads, leaving the channel position untouched
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            final int bytesRead = channel.read(
+                    ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+            if (bytesRead < 0) {
+                return -1;
+            }
+            position += bytesRead;
+            return bytesRead;
+        }
+    }
+
+    /**
+     * Input stream reading a memory-mapped byte range
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.writer.MarcWriter;
+import dk.dbc.marc.writer.MarcWriterException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+/**
+ * Writes a MARC collection one record at a time.
+ * <p>
+ * Each record is rendered as a single-record collection by the
+ * underlying {@link MarcWriter}. The collection header of the first
+ * record is written once, the record itself is written as it arrives
+ * and the collection footer is written by {@link #finish()}. The result
+ * is byte-identical to {@link MarcWriter#writeCollection} for the same
+ * records, but memory usage is independent of the number of records.
+ * </p>
+ * <p>
+ * Collections are located using their XML markup, the record starts at
+ * the first {@code <record} element and the footer starts at the last
+ * closing tag.
+ * </p>
+ */
+public class StreamingCollectionWriter {
+    private final MarcWriter marcWriter;
+    private final Charset encoding;
+    private final OutputStream out;
+    private final byte[] recordStartMarker;
+    private final byte[] closingTagMarker;
+
+    private byte[] footer;
+
+    /**
+     * @param marcWriter writer used to render records, must support collections
+     * @param encoding output encoding
+     * @param out destination of the collection
+     */
+    public StreamingCollectionWriter(MarcWriter marcWriter, Charset encoding, OutputStream out) {
+        if (!marcWriter.canOutputCollection()) {
+            throw new IllegalArgumentException(marcWriter.getClass().getSimpleName() + " does not support collections");
+        }
+        this.marcWriter = marcWriter;
+        this.encoding = encoding;
+        this.out = out;
+        this.recordStartMarker = "<record".getBytes(encoding);
+        this.closingTagMarker = "</".getBytes(encoding);
+    }
+
+    /**
+     * Creates a writer only accepting records already rendered as
+     * single-record collections through {@link #writeSingletonCollection(byte[])}
+     * @param encoding output encoding
+     * @param out destination of the collection
+     */
+    public StreamingCollectionWriter(Charset encoding, OutputStream out) {
+        this.marcWriter = null;
+        this.encoding = encoding;
+        this.out = out;
+        this.recordStartMarker = "<record".getBytes(encoding);
+        this.closingTagMarker = "</".getBytes(encoding);
+    }
+
+    /**
+     * Appends a record to the collection
+     * @param record record to append
+     * @throws MarcWriterException if the record could not be rendered
+     * @throws IOException if writing to the output stream failed
+     */
+    public void write(MarcRecord record) throws MarcWriterException, IOException {
+        if (marcWriter == null) {
+            throw new IllegalStateException("No MarcWriter available for rendering records");
+        }
+        writeSingletonCollection(marcWriter.writeCollection(Collections.singletonList(record), encoding));
+    }
+
+    /**
+     * Appends a record rendered as a single-record collection
+     * @param bytes output of {@link MarcWriter#writeCollection} for exactly one record
+     * @throws MarcWriterException if no record could be located in the given bytes
+     * @throws IOException if writing to the output stream failed
+     */
+    public void writeSingletonCollection(byte[] bytes) throws MarcWriterException, IOException {
+        final int recordStart = indexOf(bytes, recordStartMarker);
+        final int footerStart = lastIndexOf(bytes, closingTagMarker);
+        if (recordStart < 0 || footerStart <= recordStart) {
+            throw new MarcWriterException("Unable to locate record in collection output");
+        }
+        if (footer == null) {
+            out.write(bytes, 0, recordStart);
+            footer = new byte[bytes.length - footerStart];
+            System.arraycopy(bytes, footerStart, footer, 0, footer.length);
+        }
+        out.write(bytes, recordStart, footerStart - recordStart);
+    }
+
+    /**
+     * Ends the collection. Nothing is written if no records were appended.
+     * @throws IOException if writing to the output stream failed
+     */
+    public void finish() throws IOException {
+        if (footer != null) {
+            out.write(footer);
+            footer = null;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] marker) {
+        for (int i = 0; i <= bytes.length - marker.length; i++) {
+            if (matchesAt(bytes, marker, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] bytes, byte[] marker) {
+        for (int i = bytes.length - marker.length; i >= 0; i--) {
+            if (matchesAt(bytes, marker, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesAt(byte[] bytes, byte[] marker, int offset) {
+        for (int j = 0; j < marker.length; j++) {
+            if (bytes[offset + j] != marker[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Leader;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MARCXCHANGE and MARCXML reader pulling one record at a time out of a
+ * document using a StAX stream reader.
+ * <p>
+ * Only the record being read is held in memory, so collections of any size
+ * are read using bounded memory. The text of leaders, control fields and
+ * subfields is collected in a single buffer reused for all elements, and
+ * elements are matched by local name regardless of namespace, so records are
+ * also found when wrapped in other elements, eg. in SRU responses.
+ * </p>
+ * <p>
+ * DTDs and external entities are not processed.
+ * </p>
+ */
+public class StreamingMarcXmlReader implements MarcReader {
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private final XMLStreamReader xml;
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param in input stream
+     * @param encoding character set of the document
+     * @throws MarcReaderException if the document could not be opened
+     */
+    public StreamingMarcXmlReader(InputStream in, Charset encoding) throws MarcReaderException {
+        try {
+            // The factory is shared, while the readers it creates are not
+            synchronized (XML_INPUT_FACTORY) {
+                // UTF-8 is decoded by the parser itself, avoiding a separate decoding pass
+                xml = StandardCharsets.UTF_8.equals(encoding)
+                        ? XML_INPUT_FACTORY.createXMLStreamReader(in, encoding.name())
+                        : XML_INPUT_FACTORY.createXMLStreamReader(new InputStreamReader(in, encoding));
+            }
+        } catch (XMLStreamException e) {
+            throw new MarcReaderException("Unable to read XML document", e);
+        }
+    }
+
+    /**
+     * Reads the next record of the document
+     * @return next record or null if there are no more records
+     * @throws MarcReaderException if reading input failed or the document is not well-formed
+     */
+    @Override
+    public MarcRecord read() throws MarcReaderException {
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "record".equals(xml.getLocalName())) {
+                    return readRecord();
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new MarcReaderException("Unable to read record: " + e.getMessage(), e);
+        }
+    }
+
+    /* Reads the content of the current record element */
+    private MarcRecord readRecord() throws XMLStreamException {
+        final MarcRecord record = new MarcRecord();
+        DataField dataField = null;
+        while (true) {
+            switch (xml.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    switch (xml.getLocalName()) {
+                        case "leader":
+                            record.setLeader(new Leader().setData(readText()));
+                            break;
+                        case "controlfield":
+                            // The tag is taken before the reader moves past the start element
+                            final String tag = attribute("tag");
+                            record.addField(new ControlField().setTag(tag).setData(readText()));
+                            break;
+                        case "datafield":
+                            dataField = new DataField().setTag(attribute("tag"));
+                            setIndicators(dataField);
+                            record.addField(dataField);
+                            break;
+                        case "subfield":
+                            if (dataField != null) {
+                                final String code = attribute("code");
+                                dataField.addSubField(new SubField()
+                                        .setCode(code.isEmpty() ? ' ' : code.charAt(0))
+                                        .setData(readText()));
+                            }
+                            break;
+                        default:
+                            // Unknown elements are ignored
+                            break;
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if ("record".equals(xml.getLocalName())) {
+                        return record;
+                    }
+                    if ("datafield".equals(xml.getLocalName())) {
+                        dataField = null;
+                    }
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document in record", xml.getLocation());
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void setIndicators(DataField dataField) {
+        final String ind1 = attribute("ind1");
+        if (!ind1.isEmpty()) {
+            dataField.setInd1(ind1.charAt(0));
+        }
+        final String ind2 = attribute("ind2");
+        if (!ind2.isEmpty()) {
+            dataField.setInd2(ind2.charAt(0));
+        }
+        // MARCXCHANGE allows further indicators
+        final String ind3 = attribute("ind3");
+        if (!ind3.isEmpty()) {
+            dataField.setInd3(ind3.charAt(0));
+        }
+    }
+
+    private String attribute(String name) {
+        final String value = xml.getAttributeValue(null, name);
+        return value != null ? value : "";
+    }
+
+    /* Reads the text of the current element, copying characters directly
+       from the parser into the reused buffer */
+    private String readText() throws XMLStreamException {
+        text.setLength(0);
+        while (true) {
+            switch (xml.next()) {
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    text.append(xml.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    return text.toString();
+                case XMLStreamConstants.START_ELEMENT:
+                    throw new XMLStreamException("Unexpected element " + xml.getLocalName()
+                            + " in text-only element", xml.getLocation());
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of document in element", xml.getLocation());
+                default:
+                    // Comments and processing instructions
+                    break;
+            }
+        }
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
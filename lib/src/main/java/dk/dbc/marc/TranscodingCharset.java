@@ -0,0 +1,384 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Wrapper of the DANMARC2 and MARC-8 charsets adding table driven fast paths.
+ * <p>
+ * When created, every byte value is probed using the wrapped charset, and bytes
+ * which decode to a single character independently of the bytes following them
+ * are entered in lookup tables from byte to character, from byte to UTF-8 and from
+ * character back to byte. Decoders and encoders translate input through these
+ * tables until they meet a byte or character not in the tables, eg. a diacritic
+ * or an escape sequence, from where the rest of the input is handed to a decoder
+ * or encoder of the wrapped charset. Those are kept for reuse by the thread, since
+ * {@link String} creates a new decoder or encoder for every conversion.
+ * </p>
+ * <p>
+ * Combining marks are encoded before the letter they follow, so the encoder only
+ * translates a letter through the table once the character following it is known
+ * not to be a combining mark.
+ * </p>
+ * <p>
+ * The wrapper has the name of the wrapped charset and is thread-safe.
+ * </p>
+ */
+public class TranscodingCharset extends Charset {
+    private static final int BYTE_VALUES = 256;
+    /* Characters above this are never entered in the encoding table */
+    private static final int MAX_TABLE_CHAR = 0x3000;
+    /* Byte sequences following a probed byte, covering letters, digits,
+       separators and the escape sequences of DANMARC2 */
+    private static final String[] DECODER_PROBES = {"a", "Z", "0", "9", " ", "*", "$", "@", "@@", "00e5", "\u001F"};
+    private static final String[] ENCODER_PROBES = {"a", "Z", "0", " ", "\u00E5"};
+
+    private final Charset charset;
+    private final boolean[] simpleBytes = new boolean[BYTE_VALUES];
+    private final char[] decodeTable = new char[BYTE_VALUES];
+    private final byte[][] utf8Table = new byte[BYTE_VALUES][];
+    private final int[] encodeTable;
+    private final float averageBytesPerChar;
+    private final float maxBytesPerChar;
+    private final float averageCharsPerByte;
+    private final float maxCharsPerByte;
+    private final byte[] replacement;
+    private final ThreadLocal<CharsetDecoder> idleDecoders = new ThreadLocal<>();
+    private final ThreadLocal<CharsetEncoder> idleEncoders = new ThreadLocal<>();
+
+    private TranscodingCharset(Charset charset) {
+        super(charset.name(), charset.aliases().toArray(new String[0]));
+        this.charset = charset;
+        final CharsetDecoder decoder = charset.newDecoder();
+        final CharsetEncoder encoder = charset.newEncoder();
+        averageCharsPerByte = decoder.averageCharsPerByte();
+        maxCharsPerByte = decoder.maxCharsPerByte();
+        averageBytesPerChar = encoder.averageBytesPerChar();
+        maxBytesPerChar = encoder.maxBytesPerChar();
+        replacement = encoder.replacement();
+
+        int maxChar = -1;
+        for (int b = 0; b < BYTE_VALUES; b++) {
+            final String decoded = probeDecode(new byte[]{(byte) b});
+            if (decoded != null && decoded.length() == 1 && isContextFree((byte) b, decoded)) {
+                simpleBytes[b] = true;
+                decodeTable[b] = decoded.charAt(0);
+                utf8Table[b] = decoded.getBytes(StandardCharsets.UTF_8);
+                if (decoded.charAt(0) < MAX_TABLE_CHAR) {
+                    maxChar = Math.max(maxChar, decoded.charAt(0));
+                }
+            }
+        }
+        encodeTable = new int[maxChar + 1];
+        Arrays.fill(encodeTable, -1);
+        for (int b = 0; b < BYTE_VALUES; b++) {
+            final char c = decodeTable[b];
+            if (simpleBytes[b] && c <= maxChar && encodeTable[c] < 0 && isEncodedAs(c, (byte) b)) {
+                encodeTable[c] = b;
+            }
+        }
+    }
+
+    /**
+     * Adds fast paths to charsets benefitting from them
+     * @param charset charset to wrap
+     * @return wrapper of DANMARC2 and MARC-8 charsets, any other charset is returned as is
+     */
+    public static Charset of(Charset charset) {
+        if (charset instanceof DanMarc2Charset || charset instanceof Marc8Charset) {
+            return new TranscodingCharset(charset);
+        }
+        return charset;
+    }
+
+    /**
+     * Converts bytes from one charset to another. Input consisting only of bytes
+     * in the lookup tables of a {@link TranscodingCharset} is translated directly
+     * to UTF-8 without decoding it to characters.
+     * @param bytes buffer holding the input
+     * @param offset offset of the input in the buffer
+     * @param length length of the input
+     * @param from charset of the input
+     * @param to charset of the output
+     * @return converted bytes
+     */
+    public static byte[] transcode(byte[] bytes, int offset, int length, Charset from, Charset to) {
+        if (from instanceof TranscodingCharset && StandardCharsets.UTF_8.equals(to)) {
+            final byte[] utf8 = ((TranscodingCharset) from).toUtf8(bytes, offset, length);
+            if (utf8 != null) {
+                return utf8;
+            }
+        }
+        return new String(bytes, offset, length, from).getBytes(to);
+    }
+
+    /**
+     * @return the wrapped charset
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public boolean contains(Charset cs) {
+        return charset.contains(cs);
+    }
+
+    @Override
+    public CharsetDecoder newDecoder() {
+        return new Decoder();
+    }
+
+    @Override
+    public CharsetEncoder newEncoder() {
+        return new Encoder();
+    }
+
+    /* Returns null unless every byte is in the lookup tables */
+    private byte[] toUtf8(byte[] bytes, int offset, int length) {
+        int size = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte[] utf8 = utf8Table[bytes[i] & 0xFF];
+            if (utf8 == null) {
+                return null;
+            }
+            size += utf8.length;
+        }
+        if (size == length) {
+            // Only single-byte characters
+            final byte[] result = new byte[length];
+            for (int i = 0; i < length; i++) {
+                result[i] = utf8Table[bytes[offset + i] & 0xFF][0];
+            }
+            return result;
+        }
+        final byte[] result = new byte[size];
+        int position = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte[] utf8 = utf8Table[bytes[i] & 0xFF];
+            System.arraycopy(utf8, 0, result, position, utf8.length);
+            position += utf8.length;
+        }
+        return result;
+    }
+
+    private boolean isContextFree(byte b, String decoded) {
+        final String repeated = probeDecode(new byte[]{b, b});
+        if (repeated == null || !repeated.equals(decoded + decoded)) {
+            return false;
+        }
+        for (String probe : DECODER_PROBES) {
+            final byte[] probeBytes = probe.getBytes(StandardCharsets.US_ASCII);
+            final byte[] sequence = new byte[probeBytes.length + 1];
+            sequence[0] = b;
+            System.arraycopy(probeBytes, 0, sequence, 1, probeBytes.length);
+            final String expected = probeDecode(probeBytes);
+            final String actual = probeDecode(sequence);
+            if (expected == null ? actual != null && !actual.startsWith(decoded)
+                    : !(decoded + expected).equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isEncodedAs(char c, byte b) {
+        for (String probe : ENCODER_PROBES) {
+            final byte[] expected = probeEncode(probe);
+            if (expected == null) {
+                continue;
+            }
+            final byte[] actual = probeEncode(c + probe);
+            if (actual == null || actual.length != expected.length + 1 || actual[0] != b) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (actual[i + 1] != expected[i]) {
+                    return false;
+                }
+            }
+        }
+        final byte[] single = probeEncode(String.valueOf(c));
+        return single != null && single.length == 1 && single[0] == b;
+    }
+
+    private String probeDecode(byte[] bytes) {
+        try {
+            return charset.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private byte[] probeEncode(String s) {
+        try {
+            final ByteBuffer encoded = charset.newEncoder().encode(CharBuffer.wrap(s));
+            final byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            return bytes;
+        } catch (CharacterCodingException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /* Takes decoder of the wrapped charset kept by this thread, if any */
+    private CharsetDecoder acquireDecoder() {
+        final CharsetDecoder decoder = idleDecoders.get();
+        if (decoder == null) {
+            return charset.newDecoder();
+        }
+        idleDecoders.set(null);
+        return decoder.reset();
+    }
+
+    private CharsetEncoder acquireEncoder() {
+        final CharsetEncoder encoder = idleEncoders.get();
+        if (encoder == null) {
+            return charset.newEncoder();
+        }
+        idleEncoders.set(null);
+        return encoder.reset();
+    }
+
+    private static boolean isCombiningMark(char c) {
+        final int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private class Decoder extends CharsetDecoder {
+        private CharsetDecoder delegate;
+
+        Decoder() {
+            super(TranscodingCharset.this, averageCharsPerByte, maxCharsPerByte);
+        }
+
+        @Override
+        protected CoderResult decodeLoop(ByteBuffer in, CharBuffer out) {
+            if (delegate == null) {
+                if (in.hasArray() && out.hasArray()) {
+                    final byte[] src = in.array();
+                    final char[] dst = out.array();
+                    int inPosition = in.arrayOffset() + in.position();
+                    final int inLimit = in.arrayOffset() + in.limit();
+                    int outPosition = out.arrayOffset() + out.position();
+                    final int outLimit = out.arrayOffset() + out.limit();
+                    while (inPosition < inLimit && outPosition < outLimit && simpleBytes[src[inPosition] & 0xFF]) {
+                        dst[outPosition++] = decodeTable[src[inPosition++] & 0xFF];
+                    }
+                    in.position(inPosition - in.arrayOffset());
+                    out.position(outPosition - out.arrayOffset());
+                } else {
+                    while (in.hasRemaining() && out.hasRemaining() && simpleBytes[in.get(in.position()) & 0xFF]) {
+                        out.put(decodeTable[in.get() & 0xFF]);
+                    }
+                }
+                if (!in.hasRemaining()) {
+                    return CoderResult.UNDERFLOW;
+                }
+                if (!out.hasRemaining() && simpleBytes[in.get(in.position()) & 0xFF]) {
+                    return CoderResult.OVERFLOW;
+                }
+                // The rest of the input is decoded by the wrapped charset
+                delegate = acquireDecoder();
+            }
+            return delegate.decode(in, out, false);
+        }
+
+        @Override
+        protected CoderResult implFlush(CharBuffer out) {
+            if (delegate == null) {
+                return CoderResult.UNDERFLOW;
+            }
+            CoderResult result = delegate.decode(ByteBuffer.allocate(0), out, true);
+            if (result.isUnderflow()) {
+                result = delegate.flush(out);
+            }
+            if (result.isUnderflow()) {
+                idleDecoders.set(delegate);
+                delegate = null;
+            }
+            return result;
+        }
+
+        @Override
+        protected void implReset() {
+            delegate = null;
+        }
+    }
+
+    private class Encoder extends CharsetEncoder {
+        private CharsetEncoder delegate;
+
+        Encoder() {
+            super(TranscodingCharset.this, averageBytesPerChar, maxBytesPerChar, replacement);
+        }
+
+        @Override
+        protected CoderResult encodeLoop(CharBuffer in, ByteBuffer out) {
+            if (delegate == null) {
+                while (in.hasRemaining() && out.hasRemaining()) {
+                    final int b = tableEncoding(in);
+                    if (b < 0) {
+                        break;
+                    }
+                    out.put((byte) b);
+                    in.position(in.position() + 1);
+                }
+                if (!in.hasRemaining()) {
+                    return CoderResult.UNDERFLOW;
+                }
+                if (!out.hasRemaining() && tableEncoding(in) >= 0) {
+                    return CoderResult.OVERFLOW;
+                }
+                // The rest of the input is encoded by the wrapped charset
+                delegate = acquireEncoder();
+            }
+            return delegate.encode(in, out, false);
+        }
+
+        /* Returns the table encoding of the next character, or -1 if it has none or may be
+           followed by a combining mark, in which case the wrapped charset must encode it */
+        private int tableEncoding(CharBuffer in) {
+            final int position = in.position();
+            final char c = in.get(position);
+            if (c >= encodeTable.length || position + 1 >= in.limit() || isCombiningMark(in.get(position + 1))) {
+                return -1;
+            }
+            return encodeTable[c];
+        }
+
+        @Override
+        protected CoderResult implFlush(ByteBuffer out) {
+            if (delegate == null) {
+                return CoderResult.UNDERFLOW;
+            }
+            CoderResult result = delegate.encode(CharBuffer.allocate(0), out, true);
+            if (result.isUnderflow()) {
+                result = delegate.flush(out);
+            }
+            if (result.isUnderflow()) {
+                idleEncoders.set(delegate);
+                delegate = null;
+            }
+            return result;
+        }
+
+        @Override
+        protected void implReset() {
+            delegate = null;
+        }
+    }
+}
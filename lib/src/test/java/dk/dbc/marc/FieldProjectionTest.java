@@ -0,0 +1,66 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FieldProjectionTest {
+    private final MarcRecord record = new MarcRecord()
+            .addField(new ControlField().setTag("001").setData("12345678"))
+            .addField(new DataField("245", "10")
+                    .addSubField(new SubField().setCode('a').setData("Harry Potter"))
+                    .addSubField(new SubField().setCode('b').setData("and the Philosopher's Stone"))
+                    .addSubField(new SubField().setCode('c').setData("J.K. Rowling")))
+            .addField(new DataField("650", " 0")
+                    .addSubField(new SubField().setCode('a').setData("Magic")))
+            .addField(new DataField("651", " 0")
+                    .addSubField(new SubField().setCode('z').setData("England")))
+            .addField(new DataField("700", "1 ")
+                    .addSubField(new SubField().setCode('a').setData("Fry, Stephen")));
+
+    @Test
+    void projectsFieldsAndSubfields() {
+        final MarcRecord projected = FieldProjection.parse("001, 245$ac, 65.$a").apply(record);
+        assertThat("tags", tags(projected), is(List.of("001", "245", "650")));
+        final DataField title = (DataField) projected.getFields().get(1);
+        assertThat("ind1", title.getInd1(), is('1'));
+        assertThat("subfields", title.getSubFields().size(), is(2));
+        assertThat("subfield c", title.getSubFields().get(1).getData(), is("J.K. Rowling"));
+    }
+
+    @Test
+    void leavesOriginalRecordUnchanged() {
+        FieldProjection.parse("001").apply(record);
+        assertThat(tags(record), is(List.of("001", "245", "650", "651", "700")));
+    }
+
+    @Test
+    void invalidSpecifications() {
+        assertThrows(IllegalArgumentException.class, () -> FieldProjection.parse("24"));
+        assertThrows(IllegalArgumentException.class, () -> FieldProjection.parse("245$"));
+        assertThrows(IllegalArgumentException.class, () -> FieldProjection.parse("001,,245"));
+    }
+
+    private static List<String> tags(MarcRecord record) {
+        final List<String> tags = new ArrayList<>();
+        for (Field field : record.getFields()) {
+            tags.add(field.getTag());
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class Iso2709TranscoderTest {
+    private static final String UTF8_RECORD = "00047n    2200037   4500010000900000\u001E00\u001Faxαx\u001E\u001D";
+
+    @Test
+    void danMarc2ToUtf8() throws IOException {
+        assertThat(transcode(new DanMarc2Charset(), "record_with_utf8_in_danmarc2.iso"), is(UTF8_RECORD));
+    }
+
+    @Test
+    void marc8ToUtf8() throws IOException {
+        assertThat(transcode(new Marc8Charset(), "record_with_utf8_in_marc8.iso"), is(UTF8_RECORD));
+    }
+
+    @Test
+    void transcodedRecordIsValid() throws IOException {
+        final byte[] record = Files.readAllBytes(Paths.get("src/test/resources/marc_collection.expected_dm2.iso"));
+        final byte[] transcoded = new Iso2709Transcoder(TranscodingCharset.of(new DanMarc2Charset()),
+                StandardCharsets.UTF_8).transcode(record, 0);
+        assertThat(Iso2709Structure.validateHeader(transcoded, transcoded.length, transcoded.length),
+                is(nullValue()));
+    }
+
+    private static String transcode(Charset charset, String resource) throws IOException {
+        final byte[] record = Files.readAllBytes(Paths.get("src/test/resources", resource));
+        final byte[] transcoded = new Iso2709Transcoder(TranscodingCharset.of(charset), StandardCharsets.UTF_8)
+                .transcode(record, 0);
+        return new String(transcoded, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.Field;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LazyIso2709RecordTest {
+    private static final Charset ENCODING = StandardCharsets.ISO_8859_1;
+
+    @Test
+    void decodesFieldsOnDemand() throws IOException {
+        final LazyIso2709Record record = parse(isoRecord(), 0);
+        assertThat("leader", record.getLeader(), is("12437nam  22004453i 4500"));
+        assertThat("field count", record.getFieldCount(), is(35));
+        assertThat("tag", record.getTag(15), is("245"));
+        assertThat("has tag", record.hasTag(15, "245"), is(true));
+
+        final ControlField controlField = (ControlField) record.getField(0);
+        assertThat("control field", controlField.getData(), is("EBC4838558"));
+        final DataField dataField = (DataField) record.getField(15);
+        assertThat("ind1", dataField.getInd1(), is('1'));
+        assertThat("ind2", dataField.getInd2(), is('0'));
+        assertThat("subfields", dataField.getSubFields().size(), is(2));
+        assertThat("subfield data", dataField.getSubFields().get(1).getData(),
+                is("The Seizing Art of Tai Chi Chuan."));
+        assertThat("cached", record.getField(15) == dataField, is(true));
+    }
+
+    @Test
+    void parsesRecordAtOffset() throws IOException {
+        final byte[] isoRecord = isoRecord();
+        final byte[] buffer = new byte[isoRecord.length + 10];
+        System.arraycopy(isoRecord, 0, buffer, 10, isoRecord.length);
+        final LazyIso2709Record record = LazyIso2709Record.parse(buffer, 10, isoRecord.length, ENCODING);
+        assertThat(((ControlField) record.getField(0)).getData(), is("EBC4838558"));
+    }
+
+    @Test
+    void convertsToMarcRecord() throws IOException, MarcReaderException {
+        final LazyIso2709Record record = parse(isoRecord(), 0);
+        final MarcRecord marcRecord = record.toMarcRecord();
+        assertThat("field count", marcRecord.getFields().size(), is(record.getFieldCount()));
+        for (int i = 0; i < record.getFieldCount(); i++) {
+            final Field field = marcRecord.getFields().get(i);
+            assertThat("tag of field " + i, field.getTag(), is(record.getTag(i)));
+        }
+
+        final RecordFilter filter = RecordFilter.compile("001 = EBC4838558 and 245$b ~ \"^The Seizing\"");
+        assertThat("filter lazy record", filter.test(record), is(true));
+        assertThat("filter marc record", filter.test(marcRecord), is(true));
+    }
+
+    @Test
+    void invalidHeader() throws IOException {
+        final byte[] isoRecord = isoRecord();
+        Arrays.fill(isoRecord, 12, 17, (byte) 'x');
+        assertThrows(IllegalArgumentException.class, () -> parse(isoRecord, 0));
+    }
+
+    private static LazyIso2709Record parse(byte[] bytes, int offset) {
+        return LazyIso2709Record.parse(bytes, offset, bytes.length - offset, ENCODING);
+    }
+
+    private static byte[] isoRecord() throws IOException {
+        return Files.readAllBytes(Paths.get("src/test/resources/marc_collection.iso"));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class LineConcatEscaperTest {
+    @Test
+    void escapesQuotesAndJoinsLines() {
+        assertThat(escape("001 00 *a\"x\"\n245 00 *aTitle\n$\n"),
+                is("\"001 00 *a\\\"x\\\"\\n\" +\n\"245 00 *aTitle\\n\" +\n\"$\\n\"\n"));
+    }
+
+    @Test
+    void keepsInteriorEmptyLines() {
+        assertThat(escape("a\n\nb\n\n"), is("\"a\\n\" +\n\"\\n\" +\n\"b\\n\"\n"));
+    }
+
+    @Test
+    void onlyNewlines() {
+        assertThat(escape("\n\n"), is("\n"));
+    }
+
+    @Test
+    void empty() {
+        assertThat(escape(""), is("\"\\n\"\n"));
+    }
+
+    @Test
+    void byteAndCharacterEscapingAgree() {
+        final String lines = "010 00 *axαx\n245 00 *a\"citat\"\n\n$\n";
+        assertThat(escape(lines), is(LineConcatEscaper.escape(lines)));
+    }
+
+    private static String escape(String lines) {
+        return new String(LineConcatEscaper.escape(lines.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8);
+    }
+}
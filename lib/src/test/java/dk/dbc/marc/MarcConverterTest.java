@@ -0,0 +1,163 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class MarcConverterTest {
+    private static final Path ISO_COLLECTION = Paths.get("src/test/resources/marc_collection.iso");
+    private static final Path JSONL_RECORDS = Paths.get("src/test/resources/marc.jsonl");
+
+    private Path file;
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void parallelIsoRecordsAreIdenticalToSequentialRecords() throws IOException {
+        file = repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final MarcConverter converter = new MarcConverter(RecordFormat.JSONL);
+        assertThat(parallelRecords(converter, file), is(sequentialRecords(converter, file)));
+    }
+
+    @Test
+    void parallelJsonlRecordsAreIdenticalToSequentialRecords() throws IOException {
+        file = repeated(JSONL_RECORDS, ".jsonl", new byte[] {'\n'});
+        final MarcConverter converter = new MarcConverter(RecordFormat.ISO);
+        assertThat(parallelRecords(converter, file), is(sequentialRecords(converter, file)));
+    }
+
+    @Test
+    void writeParallelStreamToChannel() throws IOException {
+        file = repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final MarcConverter converter = new MarcConverter(RecordFormat.LINE);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final long expectedCount;
+        try (InputStream is = Files.newInputStream(file)) {
+            expectedCount = converter.write(converter.records(is), expected);
+        }
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        try (Stream<MarcRecord> records = converter.records(file)) {
+            assertThat("record count", converter.write(records.parallel(), Channels.newChannel(written)),
+                    is(expectedCount));
+        }
+        assertThat(written.toByteArray(), is(expected.toByteArray()));
+    }
+
+    @Test
+    void filterRecordWithInvalidHeader() throws IOException {
+        final byte[] isoRecord = Files.readAllBytes(ISO_COLLECTION);
+        // An entry map without lengths is rejected by the strict header validation
+        // of the lazy reader, but ignored when the record is parsed as a whole
+        isoRecord[20] = ' ';
+        isoRecord[21] = ' ';
+        assertThat("not selected", filtered(isoRecord, "001 = nomatch").size(), is(0));
+        assertThat("selected", filtered(isoRecord, "001 = EBC4838558").size(), is(1));
+    }
+
+    @Test
+    void erroneousRecordsAreReturnedAsErrors() throws IOException {
+        final byte[] isoRecord = Files.readAllBytes(ISO_COLLECTION);
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(isoRecord);
+        input.write("garbage\u001D".getBytes(StandardCharsets.US_ASCII));
+        input.write(isoRecord);
+        final List<MarcRecordOrError> entries = new MarcConverter(RecordFormat.LINE)
+                .recordsOrErrors(new ByteArrayInputStream(input.toByteArray()), 0)
+                .collect(Collectors.toList());
+        assertThat("entries", entries.size(), is(3));
+        assertThat("record", entries.get(0).isRecord(), is(true));
+        assertThat("error", entries.get(1).isError(), is(true));
+        assertThat("error bytes", new String(entries.get(1).getInputBytes(), StandardCharsets.US_ASCII),
+                is("garbage\u001D"));
+        assertThat("error offset", entries.get(1).getInputOffset(), is((long) isoRecord.length));
+        assertThat("error end", entries.get(1).getInputEnd(), is(isoRecord.length + 8L));
+        assertThat("record after error", entries.get(2).isRecord(), is(true));
+        assertThat("record counts", entries.stream().mapToInt(MarcRecordOrError::getRecordCount).sum(), is(3));
+    }
+
+    @Test
+    void recordsNotSelectedAreCounted() throws IOException {
+        file = repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final MarcConverter converter = new MarcConverter(RecordFormat.LINE)
+                .withFilter(RecordFilter.compile("001 = nomatch"));
+        final List<MarcRecordOrError> entries;
+        try (Stream<MarcRecordOrError> recordsOrErrors = converter.recordsOrErrors(file, 0)) {
+            entries = recordsOrErrors.parallel().collect(Collectors.toList());
+        }
+        assertThat("no records", entries.stream().noneMatch(MarcRecordOrError::isRecord), is(true));
+        assertThat("record count", entries.stream().mapToInt(MarcRecordOrError::getRecordCount).sum(),
+                is((int) (Files.size(file) / Files.size(ISO_COLLECTION))));
+    }
+
+    @Test
+    void recordsOrErrorsFromOffset() throws IOException {
+        file = repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final long offset = Files.size(ISO_COLLECTION);
+        final MarcConverter converter = new MarcConverter(RecordFormat.LINE);
+        final List<MarcRecordOrError> entries;
+        try (Stream<MarcRecordOrError> recordsOrErrors = converter.recordsOrErrors(file, offset)) {
+            entries = recordsOrErrors.collect(Collectors.toList());
+        }
+        assertThat("first offset", entries.get(0).getInputOffset(), is(offset));
+        assertThat("last end", entries.get(entries.size() - 1).getInputEnd(), is(Files.size(file)));
+        assertThat("records", (long) entries.size(), is(Files.size(file) / offset - 1));
+    }
+
+    private static List<MarcRecord> filtered(byte[] isoRecord, String where) throws IOException {
+        final MarcConverter converter = new MarcConverter(RecordFormat.LINE).withFilter(RecordFilter.compile(where));
+        return converter.records(new ByteArrayInputStream(isoRecord)).collect(Collectors.toList());
+    }
+
+    /* Creates a file large enough to be split into several ranges */
+    static Path repeated(Path source, String suffix, byte[] separator) throws IOException {
+        final Path path = Files.createTempFile("mconv", suffix);
+        final long copies = 4 * RecordSpliterator.MIN_SPLIT_SIZE / Files.size(source) + 1;
+        try (OutputStream os = Files.newOutputStream(path, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long i = 0; i < copies; i++) {
+                Files.copy(source, os);
+                os.write(separator);
+            }
+        }
+        return path;
+    }
+
+    private static List<MarcRecord> parallelRecords(MarcConverter converter, Path path) throws IOException {
+        try (Stream<MarcRecord> records = converter.records(path)) {
+            return records.parallel().collect(Collectors.toList());
+        }
+    }
+
+    private static List<MarcRecord> sequentialRecords(MarcConverter converter, Path path) throws IOException {
+        try (InputStream is = Files.newInputStream(path)) {
+            return converter.records(is).collect(Collectors.toList());
+        }
+    }
+}
@@ -7,6 +7,7 @@ package dk.dbc.marc;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.PushbackInputStream;
@@ -69,6 +70,45 @@ class MarcFormatDeducerTest {
         assertThat(format, is(MarcFormatDeducer.FORMAT.ISO2709));
     }
 
+    @Test
+    void confidenceOfSignatureMatch() {
+        final MarcFormatDeducer.Deduction deduction = deducer.deduceWithConfidence(
+                fromResource("src/test/resources/marc_collection.iso", PUSHBACK_BUFFER_SIZE),
+                StandardCharsets.UTF_8);
+        assertThat("format", deduction.getFormat(), is(MarcFormatDeducer.FORMAT.ISO2709));
+        assertThat("confidence", deduction.getConfidence(), is(MarcFormatDeducer.CONFIDENCE.HIGH));
+    }
+
+    @Test
+    void confidenceOfFallback() {
+        final MarcFormatDeducer.Deduction deduction = deducer.deduceWithConfidence(
+                fromBytes("<html>not marc</html>".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        assertThat("format", deduction.getFormat(), is(MarcFormatDeducer.FORMAT.ISO2709));
+        assertThat("confidence", deduction.getConfidence(), is(MarcFormatDeducer.CONFIDENCE.LOW));
+    }
+
+    @Test
+    void nonAsciiIndicatorIsResolvedByDecoding() {
+        final MarcFormatDeducer.Deduction deduction = deducer.deduceWithConfidence(
+                fromBytes("245 \u00e6 *aTitle\n".getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        assertThat("format", deduction.getFormat(), is(MarcFormatDeducer.FORMAT.DANMARC2_LINE));
+        assertThat("confidence", deduction.getConfidence(), is(MarcFormatDeducer.CONFIDENCE.MEDIUM));
+    }
+
+    @Test
+    void deduceFromAsciiIncompatibleEncoding() {
+        final MarcFormatDeducer.FORMAT format = deducer.deduce(
+                fromBytes("{\"leader\": []}".getBytes(StandardCharsets.UTF_16)),
+                StandardCharsets.UTF_16);
+        assertThat(format, is(MarcFormatDeducer.FORMAT.JSONL));
+    }
+
+    private PushbackInputStream fromBytes(byte[] bytes) {
+        return new PushbackInputStream(new ByteArrayInputStream(bytes), PUSHBACK_BUFFER_SIZE);
+    }
+
     private PushbackInputStream fromResource(String resource, int pushbackBufferSize) {
         try {
             return new PushbackInputStream(
@@ -0,0 +1,63 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.DataField;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.binding.SubField;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RecordFilterTest {
+    private final MarcRecord record = new MarcRecord()
+            .addField(new ControlField().setTag("001").setData("12345678"))
+            .addField(new DataField("245", "10")
+                    .addSubField(new SubField().setCode('a').setData("Harry Potter"))
+                    .addSubField(new SubField().setCode('c').setData("J.K. Rowling")))
+            .addField(new DataField("650", " 0")
+                    .addSubField(new SubField().setCode('a').setData("Magic")));
+
+    @Test
+    void conditions() {
+        assertThat("exists", matches("245"), is(true));
+        assertThat("missing", matches("100"), is(false));
+        assertThat("subfield exists", matches("245$c"), is(true));
+        assertThat("subfield missing", matches("245$b"), is(false));
+        assertThat("control field equals", matches("001 = 12345678"), is(true));
+        assertThat("subfield equals", matches("245$a = \"Harry Potter\""), is(true));
+        assertThat("any subfield equals", matches("245 = \"J.K. Rowling\""), is(true));
+        assertThat("not equals", matches("245$a != \"Harry Potter\""), is(false));
+        assertThat("regex", matches("245$a ~ \"^Harry\""), is(true));
+        assertThat("not regex", matches("245$a !~ Potter"), is(false));
+        assertThat("indicator", matches("245.ind1 = 1 and 650.ind2 = 0"), is(true));
+    }
+
+    @Test
+    void combinators() {
+        assertThat("and", matches("001 = 12345678 and 650$a = Tricks"), is(false));
+        assertThat("or", matches("001 = 12345678 or 650$a = Tricks"), is(true));
+        assertThat("not", matches("not 100"), is(true));
+        assertThat("precedence", matches("100 and 245 or 650"), is(true));
+        assertThat("parentheses", matches("100 and (245 or 650)"), is(false));
+    }
+
+    @Test
+    void invalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> RecordFilter.compile("245$a ="));
+        assertThrows(IllegalArgumentException.class, () -> RecordFilter.compile("(245"));
+        assertThrows(IllegalArgumentException.class, () -> RecordFilter.compile("245 650"));
+        assertThrows(IllegalArgumentException.class, () -> RecordFilter.compile("245$a ~ \"[\""));
+        assertThrows(IllegalArgumentException.class, () -> RecordFilter.compile("245$a = \"open"));
+    }
+
+    private boolean matches(String expression) {
+        return RecordFilter.compile(expression).test(record);
+    }
+}
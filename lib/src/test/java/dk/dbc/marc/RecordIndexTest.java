@@ -0,0 +1,143 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class RecordIndexTest {
+    private static final Path ISO_RECORD = Paths.get("src/test/resources/marc_collection.iso");
+    private static final Path SMALL_ISO_RECORD = Paths.get("src/test/resources/record_with_utf8_in_danmarc2.iso");
+    private static final Path JSONL_RECORDS = Paths.get("src/test/resources/marc.jsonl");
+
+    private Path isoFile;
+    private Path indexFile;
+
+    @BeforeEach
+    void createIsoFile() throws IOException {
+        isoFile = Files.createTempFile("mconv", ".iso");
+        indexFile = RecordIndex.sidecarOf(isoFile);
+        try (OutputStream os = Files.newOutputStream(isoFile, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Files.copy(ISO_RECORD, os);
+            Files.copy(SMALL_ISO_RECORD, os);
+            Files.copy(ISO_RECORD, os);
+        }
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        Files.deleteIfExists(isoFile);
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Test
+    void indexIso2709() throws IOException {
+        final long isoRecordSize = Files.size(ISO_RECORD);
+        final long smallIsoRecordSize = Files.size(SMALL_ISO_RECORD);
+        assertThat("number of records indexed",
+                RecordIndex.create(isoFile, indexFile, StandardCharsets.UTF_8, false), is(3));
+        try (RecordIndex index = RecordIndex.open(indexFile)) {
+            assertThat("format", index.getFormat(), is(MarcFormatDeducer.FORMAT.ISO2709));
+            assertThat("size", index.size(), is(3));
+            final List<RecordIndex.Entry> entries = index.get(2, 3);
+            assertThat("number of entries", entries.size(), is(2));
+            assertThat("record 2 offset", entries.get(0).getOffset(), is(isoRecordSize));
+            assertThat("record 2 length", entries.get(0).getLength(), is((int) smallIsoRecordSize));
+            assertThat("record 3 offset", entries.get(1).getOffset(), is(isoRecordSize + smallIsoRecordSize));
+            assertThat("record 3 length", entries.get(1).getLength(), is((int) isoRecordSize));
+        }
+    }
+
+    @Test
+    void rangeIsTruncatedToIndexSize() throws IOException {
+        RecordIndex.create(isoFile, indexFile, StandardCharsets.UTF_8, false);
+        try (RecordIndex index = RecordIndex.open(indexFile)) {
+            assertThat("entries beyond last record", index.get(3, 1000).size(), is(1));
+            assertThat("entries after last record", index.get(4, 1000).size(), is(0));
+        }
+    }
+
+    @Test
+    void findJsonlRecordById() throws IOException {
+        final Path jsonlIndexFile = Files.createTempFile("mconv", RecordIndex.SUFFIX);
+        try {
+            assertThat("number of records indexed",
+                    RecordIndex.create(JSONL_RECORDS, jsonlIndexFile, StandardCharsets.UTF_8, true), is(2));
+            try (RecordIndex index = RecordIndex.open(jsonlIndexFile)) {
+                assertThat("format", index.getFormat(), is(MarcFormatDeducer.FORMAT.JSONL));
+                final List<RecordIndex.Entry> entries = index.find("30769431");
+                assertThat("number of entries", entries.size(), is(1));
+                assertThat("record number", entries.get(0).getNumber(), is(2));
+                final String line = Files.readAllLines(JSONL_RECORDS).get(0);
+                assertThat("record offset", entries.get(0).getOffset(), is((long) line.length() + 1));
+                assertThat("record length", entries.get(0).getLength(), is(line.length()));
+            }
+        } finally {
+            Files.deleteIfExists(jsonlIndexFile);
+        }
+    }
+
+    @Test
+    void findRecordsByIdAmongManyRecords() throws IOException {
+        final Path jsonlFile = Files.createTempFile("mconv", ".jsonl");
+        final Path jsonlIndexFile = RecordIndex.sidecarOf(jsonlFile);
+        try {
+            try (OutputStream os = Files.newOutputStream(jsonlFile, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int i = 1; i <= 1000; i++) {
+                    // Every tenth record shares its ID with the preceding record
+                    os.write(jsonlRecord(i % 10 == 0 ? i - 1 : i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            RecordIndex.create(jsonlFile, jsonlIndexFile, StandardCharsets.UTF_8, true);
+            try (RecordIndex index = RecordIndex.open(jsonlIndexFile)) {
+                assertThat("unique ID", index.find("id-500").get(0).getNumber(), is(500));
+                final List<RecordIndex.Entry> entries = index.find("id-999");
+                assertThat("number of entries for duplicated ID", entries.size(), is(2));
+                assertThat("first duplicate", entries.get(0).getNumber(), is(999));
+                assertThat("second duplicate", entries.get(1).getNumber(), is(1000));
+                assertThat("unknown ID", index.find("id-1000").size(), is(0));
+            }
+        } finally {
+            Files.deleteIfExists(jsonlFile);
+            Files.deleteIfExists(jsonlIndexFile);
+        }
+    }
+
+    @Test
+    void indexIsOutOfDateWhenInputChanges() throws IOException {
+        RecordIndex.create(isoFile, indexFile, StandardCharsets.UTF_8, false);
+        try (RecordIndex index = RecordIndex.open(indexFile)) {
+            assertThat("unchanged input", index.isFor(isoFile), is(true));
+            Files.setLastModifiedTime(isoFile,
+                    FileTime.fromMillis(Files.getLastModifiedTime(isoFile).toMillis() + 1000));
+            assertThat("touched input", index.isFor(isoFile), is(false));
+        }
+        RecordIndex.create(isoFile, indexFile, StandardCharsets.UTF_8, false);
+        Files.write(isoFile, Files.readAllBytes(SMALL_ISO_RECORD), StandardOpenOption.APPEND);
+        try (RecordIndex index = RecordIndex.open(indexFile)) {
+            assertThat("appended input", index.isFor(isoFile), is(false));
+        }
+    }
+
+    private static String jsonlRecord(int id) {
+        return "{\"fields\":[{\"name\":\"001\",\"indicator\":[\"0\",\"0\"],"
+                + "\"subfields\":[{\"name\":\"a\",\"value\":\"id-" + id + "\"}]}]}\n";
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class RecordSpliteratorTest {
+    private static final Path ISO_COLLECTION = Paths.get("src/test/resources/marc_collection.iso");
+    private static final Path JSONL_RECORDS = Paths.get("src/test/resources/marc.jsonl");
+
+    private Path file;
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void splitJsonlAtRecordBoundary() throws IOException {
+        file = MarcConverterTest.repeated(JSONL_RECORDS, ".jsonl", new byte[] {'\n'});
+        assertThat(splitRecords(MarcFormatDeducer.FORMAT.JSONL), is(sequentialRecords()));
+    }
+
+    @Test
+    void splitIsoAtRecordBoundary() throws IOException {
+        file = MarcConverterTest.repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        assertThat(splitRecords(MarcFormatDeducer.FORMAT.ISO2709), is(sequentialRecords()));
+    }
+
+    @Test
+    void entriesOfSplitRangesAreContiguous() throws IOException {
+        file = MarcConverterTest.repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final List<MarcRecordOrError> entries = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final Spliterator<MarcRecordOrError> suffix = new RecordSpliterator(
+                    new MarcConverter(RecordFormat.LINE), channel, MarcFormatDeducer.FORMAT.ISO2709, 0);
+            final Spliterator<MarcRecordOrError> prefix = suffix.trySplit();
+            assertThat("split", prefix, is(notNullValue()));
+            prefix.forEachRemaining(entries::add);
+            suffix.forEachRemaining(entries::add);
+        }
+        long offset = 0;
+        for (MarcRecordOrError entry : entries) {
+            assertThat("record count", entry.getRecordCount(), is(1));
+            assertThat("input offset", entry.getInputOffset(), is(offset));
+            offset += Files.size(ISO_COLLECTION);
+            assertThat("input end", entry.getInputEnd(), is(offset));
+        }
+        assertThat("file end", offset, is(Files.size(file)));
+    }
+
+    @Test
+    void splitFromOffset() throws IOException {
+        file = MarcConverterTest.repeated(ISO_COLLECTION, ".iso", new byte[0]);
+        final long offset = Files.size(ISO_COLLECTION);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final Spliterator<MarcRecordOrError> suffix = new RecordSpliterator(
+                    new MarcConverter(RecordFormat.LINE), channel, MarcFormatDeducer.FORMAT.ISO2709, offset);
+            final Spliterator<MarcRecordOrError> prefix = suffix.trySplit();
+            assertThat("split", prefix, is(notNullValue()));
+            assertThat("range sizes", prefix.estimateSize() + suffix.estimateSize(), is(Files.size(file) - offset));
+            final MarcRecordOrError[] first = new MarcRecordOrError[1];
+            prefix.tryAdvance(entry -> first[0] = entry);
+            assertThat("first offset", first[0].getInputOffset(), is(offset));
+        }
+    }
+
+    private List<MarcRecord> splitRecords(MarcFormatDeducer.FORMAT format) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final Spliterator<MarcRecordOrError> suffix = new RecordSpliterator(
+                    new MarcConverter(RecordFormat.JSONL), channel, format, 0);
+            final Spliterator<MarcRecordOrError> prefix = suffix.trySplit();
+            assertThat("split", prefix, is(notNullValue()));
+            assertThat("range sizes", prefix.estimateSize() + suffix.estimateSize(), is(Files.size(file)));
+            final List<MarcRecord> records = new ArrayList<>();
+            prefix.forEachRemaining(entry -> records.add(entry.getRecord()));
+            suffix.forEachRemaining(entry -> records.add(entry.getRecord()));
+            return records;
+        }
+    }
+
+    private List<MarcRecord> sequentialRecords() throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            return new MarcConverter(RecordFormat.JSONL).records(is).collect(Collectors.toList());
+        }
+    }
+}
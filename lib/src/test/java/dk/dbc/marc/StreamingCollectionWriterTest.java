@@ -0,0 +1,83 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.reader.MarcXchangeV1Reader;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class StreamingCollectionWriterTest {
+    @Test
+    void outputIsIdenticalToWriteCollection() throws Exception {
+        final List<MarcRecord> records = readRecords("src/test/resources/marc_collection.xml");
+        final MarcXchangeV1Writer marcWriter = new MarcXchangeV1Writer();
+
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final StreamingCollectionWriter collectionWriter = new StreamingCollectionWriter(
+                marcWriter, StandardCharsets.UTF_8, streamed);
+        for (MarcRecord record : records) {
+            collectionWriter.write(record);
+        }
+        collectionWriter.finish();
+
+        assertThat(streamed.toString(StandardCharsets.UTF_8),
+                is(new String(marcWriter.writeCollection(records, StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void outputIsIdenticalToWriteCollectionWithXmlDeclaration() throws Exception {
+        final List<MarcRecord> records = readRecords("src/test/resources/marc_collection.xml");
+        final MarcXchangeV1Writer marcWriter = new MarcXchangeV1Writer();
+        marcWriter.setProperty(MarcXchangeV1Writer.Property.ADD_XML_DECLARATION, true);
+
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final StreamingCollectionWriter collectionWriter = new StreamingCollectionWriter(
+                marcWriter, StandardCharsets.UTF_8, streamed);
+        for (MarcRecord record : records) {
+            collectionWriter.write(record);
+        }
+        collectionWriter.finish();
+
+        assertThat(streamed.toString(StandardCharsets.UTF_8),
+                is(new String(marcWriter.writeCollection(records, StandardCharsets.UTF_8), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void noOutputForEmptyCollection() throws IOException {
+        final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        final StreamingCollectionWriter collectionWriter = new StreamingCollectionWriter(
+                new MarcXchangeV1Writer(), StandardCharsets.UTF_8, streamed);
+        collectionWriter.finish();
+
+        assertThat(streamed.size(), is(0));
+    }
+
+    private List<MarcRecord> readRecords(String resource) throws IOException, MarcReaderException {
+        try (FileInputStream is = new FileInputStream(Paths.get(resource).toFile())) {
+            final MarcXchangeV1Reader reader = new MarcXchangeV1Reader(is, StandardCharsets.UTF_8);
+            final List<MarcRecord> records = new ArrayList<>();
+            MarcRecord record = reader.read();
+            while (record != null) {
+                records.add(record);
+                record = reader.read();
+            }
+            return records;
+        }
+    }
+}
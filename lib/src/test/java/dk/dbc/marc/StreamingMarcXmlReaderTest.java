@@ -0,0 +1,78 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import dk.dbc.marc.binding.ControlField;
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReader;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.marc.reader.MarcXchangeV1Reader;
+import dk.dbc.marc.reader.MarcXmlReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StreamingMarcXmlReaderTest {
+    private static final String MARCXCHANGE_COLLECTION = "src/test/resources/marc_collection.xml";
+    private static final String MARCXML_COLLECTION = "src/test/resources/marcxml_collection.xml";
+
+    @Test
+    void marcXchangeRecordsAreIdenticalToMarcXchangeV1Reader() throws IOException, MarcReaderException {
+        try (InputStream expected = new FileInputStream(MARCXCHANGE_COLLECTION);
+             InputStream streamed = new FileInputStream(MARCXCHANGE_COLLECTION)) {
+            assertThat(readAll(new StreamingMarcXmlReader(streamed, StandardCharsets.UTF_8)),
+                    is(readAll(new MarcXchangeV1Reader(expected, StandardCharsets.UTF_8))));
+        }
+    }
+
+    @Test
+    void marcXmlRecordsAreIdenticalToMarcXmlReader() throws IOException, MarcReaderException {
+        try (InputStream expected = new FileInputStream(MARCXML_COLLECTION);
+             InputStream streamed = new FileInputStream(MARCXML_COLLECTION)) {
+            assertThat(readAll(new StreamingMarcXmlReader(streamed, StandardCharsets.UTF_8)),
+                    is(readAll(new MarcXmlReader(expected, StandardCharsets.UTF_8))));
+        }
+    }
+
+    @Test
+    void recordsWrappedInOtherElements() throws MarcReaderException {
+        final String xml = "<response><records><record xmlns='http://www.loc.gov/MARC21/slim'>"
+                + "<controlfield tag='001'>a&amp;b<![CDATA[<c>]]></controlfield></record></records></response>";
+        final MarcReader reader = new StreamingMarcXmlReader(
+                new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        final MarcRecord record = reader.read();
+        assertThat("control field", ((ControlField) record.getFields().get(0)).getData(), is("a&b<c>"));
+        assertThat("end of input", reader.read(), is(nullValue()));
+    }
+
+    @Test
+    void truncatedDocument() throws MarcReaderException {
+        final MarcReader reader = new StreamingMarcXmlReader(new ByteArrayInputStream(
+                "<collection><record><leader>".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        assertThrows(MarcReaderException.class, reader::read);
+    }
+
+    private static List<MarcRecord> readAll(MarcReader reader) throws MarcReaderException {
+        final List<MarcRecord> records = new ArrayList<>();
+        MarcRecord record = reader.read();
+        while (record != null) {
+            records.add(record);
+            record = reader.read();
+        }
+        return records;
+    }
+}
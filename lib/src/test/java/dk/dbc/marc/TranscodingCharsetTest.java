@@ -0,0 +1,82 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GPLv3
+ * See license text in LICENSE.txt
+ */
+
+package dk.dbc.marc;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class TranscodingCharsetTest {
+    private static final String[] TEXTS = {
+            "", "Tremontaine - episode 1", "Kjøbenhavn og Århus", "Café Łódź", "@ * $ 0123", "ä ö ü ß é è ê"
+    };
+
+    @Test
+    void onlyWrapsMarcCharsets() {
+        assertThat(TranscodingCharset.of(StandardCharsets.UTF_8), is(sameInstance(StandardCharsets.UTF_8)));
+        assertThat(TranscodingCharset.of(new DanMarc2Charset()), is(instanceOf(TranscodingCharset.class)));
+        assertThat(TranscodingCharset.of(new Marc8Charset()), is(instanceOf(TranscodingCharset.class)));
+    }
+
+    @Test
+    void danMarc2() throws IOException {
+        assertSameAsWrapped(new DanMarc2Charset(), "record_with_utf8_in_danmarc2.iso");
+        assertSameAsWrapped(new DanMarc2Charset(), "marc_collection.expected_dm2.iso");
+    }
+
+    @Test
+    void marc8() throws IOException {
+        assertSameAsWrapped(new Marc8Charset(), "record_with_utf8_in_marc8.iso");
+    }
+
+    @Test
+    void encodeCombiningMarks() {
+        for (Charset charset : new Charset[]{new DanMarc2Charset(), new Marc8Charset()}) {
+            final Charset wrapped = TranscodingCharset.of(charset);
+            for (String text : new String[]{"e\u0301", "Cafe\u0301 au lait", "a\u030A\u0301"}) {
+                assertThat(charset + " " + text, text.getBytes(wrapped), is(text.getBytes(charset)));
+            }
+        }
+    }
+
+    private static void assertSameAsWrapped(Charset charset, String resource) throws IOException {
+        final Charset wrapped = TranscodingCharset.of(charset);
+        final byte[] bytes = Files.readAllBytes(Paths.get("src/test/resources", resource));
+        final String expected = new String(bytes, charset);
+        assertThat("decode " + resource, new String(bytes, wrapped), is(expected));
+        assertThat("stream " + resource, readAll(bytes, wrapped), is(expected));
+        assertThat("transcode " + resource, new String(
+                TranscodingCharset.transcode(bytes, 0, bytes.length, wrapped, StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8), is(expected));
+
+        for (String text : TEXTS) {
+            final byte[] encoded = text.getBytes(charset);
+            assertThat("encode " + text, new String(text.getBytes(wrapped), charset), is(new String(encoded, charset)));
+            assertThat("decode " + text, new String(encoded, wrapped), is(new String(encoded, charset)));
+        }
+    }
+
+    private static String readAll(byte[] bytes, Charset charset) throws IOException {
+        final StringWriter out = new StringWriter();
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(bytes), charset)) {
+            reader.transferTo(out);
+        }
+        return out.toString();
+    }
+}